@@ -0,0 +1,191 @@
+package com.example.osmzhttpserver;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Turns NV21 preview frames into JPEGs and keeps the stream within budget. When encoding takes
+ * longer than the frame interval, the frames exceed the target bitrate or viewers fall behind,
+ * quality is lowered first and then the resolution halved; with headroom both come back in the
+ * opposite order. Only used from the encoder thread.
+ */
+public class AdaptiveJpegEncoder {
+    private static final String TAG = "AdaptiveJpegEncoder";
+    private static final int DEFAULT_MIN_QUALITY = 30;
+    private static final int DEFAULT_MAX_QUALITY = 80;
+    private static final int QUALITY_STEP = 10;
+    // Resolution is halved at most this many times
+    private static final int MAX_SCALE_SHIFT = 2;
+    // Frames between adjustments, so one slow frame does not flip the settings
+    private static final int ADAPT_INTERVAL = 5;
+    // Weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    private volatile int minQuality = DEFAULT_MIN_QUALITY;
+    private volatile int maxQuality = DEFAULT_MAX_QUALITY;
+    private volatile int targetFps;
+    private volatile long targetBytesPerSecond;
+
+    private volatile int quality = DEFAULT_MAX_QUALITY;
+    private volatile int scaleShift;
+    private volatile long lastEncodeMicros;
+    private volatile double averageEncodeMicros;
+    private double averageFrameBytes;
+    private int framesSinceAdjustment;
+
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(64 * 1024);
+    private byte[] scaled;
+
+    /** @param targetFps frame rate the encode time has to keep up with */
+    public AdaptiveJpegEncoder(int targetFps) {
+        this.targetFps = targetFps;
+    }
+
+    public void setTargetFps(int fps) {
+        this.targetFps = fps;
+    }
+
+    /** Bytes per second the stream should stay under at the target frame rate; 0 for no limit. */
+    public void setTargetBitrate(long bytesPerSecond) {
+        this.targetBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Range the quality is adapted in; equal values fix it. */
+    public void setQualityRange(int min, int max) {
+        this.minQuality = min;
+        this.maxQuality = max;
+        this.quality = Math.max(min, Math.min(max, quality));
+    }
+
+    /**
+     * Encodes a frame at the current quality and scale.
+     *
+     * @param backlog frames the viewers skipped since the previous frame because they were busy
+     * @return the JPEG, or null if the frame could not be encoded
+     */
+    public byte[] encode(byte[] nv21, int width, int height, long backlog) {
+        long start = System.nanoTime();
+        int shift = scaleShift;
+        byte[] source = nv21;
+        if (shift > 0) {
+            int scaledWidth = scaledSize(width, shift);
+            int scaledHeight = scaledSize(height, shift);
+            int size = scaledWidth * scaledHeight * 3 / 2;
+            if (scaled == null || scaled.length != size) {
+                scaled = new byte[size];
+            }
+            downscale(nv21, width, height, shift, scaled);
+            source = scaled;
+            width = scaledWidth;
+            height = scaledHeight;
+        }
+        jpeg.reset();
+        YuvImage image = new YuvImage(source, ImageFormat.NV21, width, height, null);
+        if (!image.compressToJpeg(new Rect(0, 0, width, height), quality, jpeg)) {
+            return null;
+        }
+        byte[] result = jpeg.toByteArray();
+        adapt(System.nanoTime() - start, result.length, backlog);
+        return result;
+    }
+
+    /** Records one frame and adjusts quality and scale when it is time to. */
+    void adapt(long encodeNanos, int frameBytes, long backlog) {
+        long micros = encodeNanos / 1000;
+        lastEncodeMicros = micros;
+        if (averageEncodeMicros == 0) {
+            averageEncodeMicros = micros;
+            averageFrameBytes = frameBytes;
+        } else {
+            averageEncodeMicros += SMOOTHING * (micros - averageEncodeMicros);
+            averageFrameBytes += SMOOTHING * (frameBytes - averageFrameBytes);
+        }
+        boolean behind = backlog > 0;
+        if (++framesSinceAdjustment < ADAPT_INTERVAL && !behind) {
+            return;
+        }
+        framesSinceAdjustment = 0;
+
+        int fps = Math.max(1, targetFps);
+        double budgetMicros = 1000000.0 / fps;
+        long bitrateLimit = targetBytesPerSecond;
+        double bytesPerSecond = averageFrameBytes * fps;
+        if (behind || averageEncodeMicros > budgetMicros * 0.8 || (bitrateLimit > 0 && bytesPerSecond > bitrateLimit)) {
+            degrade();
+        } else if (averageEncodeMicros < budgetMicros * 0.4 && (bitrateLimit <= 0 || bytesPerSecond < bitrateLimit * 0.6)) {
+            improve();
+        }
+    }
+
+    private void degrade() {
+        if (quality > minQuality) {
+            quality = Math.max(minQuality, quality - QUALITY_STEP);
+        } else if (scaleShift < MAX_SCALE_SHIFT) {
+            scaleShift++;
+            // A quarter of the pixels leaves room for better quality
+            quality = (minQuality + maxQuality) / 2;
+            // The averages describe the old resolution
+            averageEncodeMicros /= 4;
+            averageFrameBytes /= 4;
+        }
+    }
+
+    private void improve() {
+        if (quality < maxQuality) {
+            quality = Math.min(maxQuality, quality + QUALITY_STEP);
+        } else if (scaleShift > 0) {
+            scaleShift--;
+            quality = minQuality;
+            averageEncodeMicros *= 4;
+            averageFrameBytes *= 4;
+        }
+    }
+
+    /** Width or height after halving it shift times, kept even for the NV21 chroma layout. */
+    static int scaledSize(int size, int shift) {
+        return (size >> shift) & ~1;
+    }
+
+    /** Nearest-neighbour downscale of an NV21 image by 2^shift into out. */
+    static void downscale(byte[] nv21, int width, int height, int shift, byte[] out) {
+        int outWidth = scaledSize(width, shift);
+        int outHeight = scaledSize(height, shift);
+        int o = 0;
+        for (int y = 0; y < outHeight; y++) {
+            int row = (y << shift) * width;
+            for (int x = 0; x < outWidth; x++) {
+                out[o++] = nv21[row + (x << shift)];
+            }
+        }
+        // Interleaved V/U pairs, one per 2x2 luma block
+        int chroma = width * height;
+        for (int y = 0; y < outHeight / 2; y++) {
+            int row = chroma + (y << shift) * width;
+            for (int x = 0; x < outWidth / 2; x++) {
+                int i = row + ((x << shift) << 1);
+                out[o++] = nv21[i];
+                out[o++] = nv21[i + 1];
+            }
+        }
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /** Width and height are divided by 2^shift. */
+    public int getScaleShift() {
+        return scaleShift;
+    }
+
+    public long getLastEncodeMicros() {
+        return lastEncodeMicros;
+    }
+
+    public long getAverageEncodeMicros() {
+        return (long) averageEncodeMicros;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.osmzhttpserver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Fixed-layout little-endian record of a {@link TelemetrySnapshot}, about a quarter of the size of the
+ * JSON and written without any intermediate objects. An encoder reuses one buffer, so keep one
+ * per thread.
+ *
+ * <pre>
+ * offset size
+ *      0    1  version (1)
+ *      1    1  groups present: 1 accelerometer, 2 gyroscope, 4 location
+ *      2    2  record size in bytes (88)
+ *      4    8  sequence
+ *     12    8  time, epoch ms
+ *     20   12  accelerometer x, y, z (float32)
+ *     32    8  accelerometer time
+ *     40   12  gyroscope x, y, z (float32)
+ *     52    8  gyroscope time
+ *     60   16  latitude, longitude (float64)
+ *     76    4  accuracy (float32)
+ *     80    8  location time
+ * </pre>
+ * Groups without a reading are zero. Fields may be appended in later versions; readers skip to
+ * the record size.
+ */
+public class BinaryTelemetryEncoder {
+    public static final String MEDIA_TYPE = "application/vnd.osmz.telemetry";
+    private static final String JSON_MEDIA_TYPE = "application/json";
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 88;
+
+    public static final int ACCELEROMETER = 1;
+    public static final int GYROSCOPE = 2;
+    public static final int LOCATION = 4;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Encodes into the encoder's buffer and returns it positioned over the record. The buffer is
+     * overwritten by the next call.
+     */
+    public ByteBuffer encode(TelemetrySnapshot snapshot, long timeMs) {
+        buffer.clear();
+        encode(snapshot, timeMs, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Writes one record at the position of a little-endian buffer with RECORD_SIZE bytes left. */
+    public static void encode(TelemetrySnapshot snapshot, long timeMs, ByteBuffer out) {
+        int groups = (snapshot.hasAccelerometer() ? ACCELEROMETER : 0)
+                | (snapshot.hasGyroscope() ? GYROSCOPE : 0)
+                | (snapshot.hasLocation() ? LOCATION : 0);
+        out.put((byte) VERSION);
+        out.put((byte) groups);
+        out.putShort((short) RECORD_SIZE);
+        out.putLong(snapshot.sequence);
+        out.putLong(timeMs);
+        out.putFloat(snapshot.accelerometerX);
+        out.putFloat(snapshot.accelerometerY);
+        out.putFloat(snapshot.accelerometerZ);
+        out.putLong(snapshot.accelerometerTimeMs);
+        out.putFloat(snapshot.gyroscopeX);
+        out.putFloat(snapshot.gyroscopeY);
+        out.putFloat(snapshot.gyroscopeZ);
+        out.putLong(snapshot.gyroscopeTimeMs);
+        out.putDouble(snapshot.latitude);
+        out.putDouble(snapshot.longitude);
+        out.putFloat(snapshot.accuracy);
+        out.putLong(snapshot.locationTimeMs);
+    }
+
+    /**
+     * Reads one record from a little-endian buffer and moves past it.
+     *
+     * @throws IllegalArgumentException if the record is truncated or of an unknown version
+     */
+    public static TelemetrySnapshot decode(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < 4 || in.get(start) != VERSION) {
+            throw new IllegalArgumentException("Not a telemetry record");
+        }
+        int size = in.getShort(start + 2) & 0xffff;
+        if (size < RECORD_SIZE || in.remaining() < size) {
+            throw new IllegalArgumentException("Truncated telemetry record");
+        }
+        in.position(start + 4);
+        long sequence = in.getLong();
+        in.getLong();
+        TelemetrySnapshot snapshot = new TelemetrySnapshot(sequence,
+                in.getFloat(), in.getFloat(), in.getFloat(), in.getLong(),
+                in.getFloat(), in.getFloat(), in.getFloat(), in.getLong(),
+                in.getDouble(), in.getDouble(), in.getFloat(), in.getLong());
+        in.position(start + size);
+        return snapshot;
+    }
+
+    /** Whether an Accept header asks for records at least as much as for JSON; wildcards never do. */
+    public static boolean prefersBinary(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        float binary = 0;
+        float json = 0;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase(Locale.US);
+            if (!name.equals(MEDIA_TYPE) && !name.equals(JSON_MEDIA_TYPE)) {
+                continue;
+            }
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals(MEDIA_TYPE)) {
+                binary = q;
+            } else {
+                json = q;
+            }
+        }
+        return binary > 0 && binary >= json;
+    }
+}
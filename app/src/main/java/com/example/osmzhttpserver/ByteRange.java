@@ -0,0 +1,73 @@
+package com.example.osmzhttpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** One satisfiable range of a Range request, with inclusive bounds as used in Content-Range. */
+public final class ByteRange {
+    // More ranges than this is more likely abuse than a media player, the header is ignored
+    static final int MAX_RANGES = 16;
+
+    public final long start;
+    public final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String contentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    /**
+     * Parses a Range header against a representation of the given length.
+     *
+     * @return the satisfiable ranges in request order, an empty list if none can be satisfied
+     *         (416), or null if the header is malformed or not in bytes and must be ignored (200)
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(spec.substring(0, dash).trim());
+                String lastPart = spec.substring(dash + 1).trim();
+                long last = lastPart.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPart);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < length) {
+                    ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+}
@@ -9,19 +9,19 @@ import android.widget.Button;
 import android.widget.FrameLayout;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import android.os.Environment;
 
 public class CameraActivity extends Activity {
-    public static final int MEDIA_TYPE_IMAGE = 1;
     private static final String TAG = "CameraActivity";
+    // One picture per second, oldest deleted beyond this many bytes
+    private static final long ARCHIVE_INTERVAL_MS = 1000;
+    private static final long ARCHIVE_MAX_BYTES = 64L * 1024 * 1024;
     private Camera mCamera;
     private CameraPreview mPreview;
+    private CameraFrameProducer mFrameProducer;
+    private final MjpegStreamer mStreamer = new MjpegStreamer(0, 0);
+    private final SnapshotHolder mSnapshots = new SnapshotHolder(ARCHIVE_INTERVAL_MS);
 
     /** A safe way to get an instance of the Camera object. */
     public static Camera getCameraInstance(){
@@ -50,16 +50,7 @@ public class CameraActivity extends Activity {
                 mPreview = new CameraPreview(this, mCamera);
                 FrameLayout preview = findViewById(R.id.camera_preview);
                 preview.addView(mPreview);
-
-                // Schedule the timer to take a picture every second
-                Timer timer = new Timer();
-                timer.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        // Trigger the camera to take a picture
-                        mCamera.takePicture(null, null, mPicture);
-                    }
-                }, 0, 1000); // Delay of 0 milliseconds, repeat every 1000 milliseconds (1 second)
+                startArchiving();
             } else {
                 Log.e(TAG, "Failed to initialize camera.");
             }
@@ -78,57 +69,16 @@ public class CameraActivity extends Activity {
         }
     }
 
-    /** Create a File for saving an image or video */
-    private static File getOutputMediaFile(int type){
-        // To be safe, you should check that the SDCard is mounted
-        // using Environment.getExternalStorageState() before doing this.
-        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
+    /** Archives preview frames into a size-capped rolling directory instead of one file per takePicture. */
+    private void startArchiving() {
+        File directory = new File(Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_PICTURES), "MyCameraApp");
-        // This location works best if you want the created images to be shared
-        // between applications and persist after your app has been uninstalled.
-        // Create the storage directory if it does not exist
-        if (! mediaStorageDir.exists()){
-            if (! mediaStorageDir.mkdirs()){
-                Log.d(TAG, "failed to create directory");
-                return null;
-            }
-        }
-        // Create a media file name
-        File mediaFile;
-        if (type == MEDIA_TYPE_IMAGE){
-            mediaFile = new File(mediaStorageDir.getPath() + File.separator +
-                    "IMG_"+ System.currentTimeMillis() + ".jpg");
-        } else {
-            return null;
-        }
-
-        return mediaFile;
+        mSnapshots.setArchive(new SnapshotArchive(directory, ARCHIVE_MAX_BYTES, ARCHIVE_INTERVAL_MS));
+        mFrameProducer = new CameraFrameProducer(mStreamer, mSnapshots, new AdaptiveJpegEncoder(1));
+        mFrameProducer.start();
+        mPreview.setFrameProducer(mFrameProducer);
     }
 
-    private Camera.PictureCallback mPicture = new Camera.PictureCallback() {
-        @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            Log.d(TAG, "Picture taken.");
-
-            File pictureFile = getOutputMediaFile(MEDIA_TYPE_IMAGE);
-            if (pictureFile == null){
-                Log.d(TAG, "Error creating media file, check storage permissions");
-                return;
-            }
-
-            try {
-                FileOutputStream fos = new FileOutputStream(pictureFile);
-                fos.write(data);
-                fos.close();
-                Log.d(TAG, "Image saved successfully.");
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "File not found: " + e.getMessage());
-            } catch (IOException e) {
-                Log.e(TAG, "Error accessing file: " + e.getMessage());
-            }
-        }
-    };
-
     void releaseCamera(){
         if (mCamera != null){
             mCamera.release();        // release the camera for other applications
@@ -148,22 +98,15 @@ public class CameraActivity extends Activity {
         FrameLayout preview = findViewById(R.id.camera_preview);
         preview.addView(mPreview);
 
-        // Schedule the timer to take a picture every second
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                // Trigger the camera to take a picture
-                mCamera.takePicture(null, null, mPicture);
-            }
-        }, 0, 1000); // Delay of 0 milliseconds, repeat every 1000 milliseconds (1 second)
+        startArchiving();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Stop the timer when the activity is destroyed to prevent memory leaks
-        Timer timer = new Timer();
-        timer.cancel();
+        if (mFrameProducer != null) {
+            mFrameProducer.stop();
+        }
+        releaseCamera();
     }
 }
@@ -0,0 +1,195 @@
+package com.example.osmzhttpserver;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer of the live stream and the snapshots. The camera fills a fixed pool of preview
+ * buffers (setPreviewCallbackWithBuffer), so no frame is allocated on the camera path. Wanted
+ * frames are handed to one encoder thread through a lock-free queue and come back through another
+ * one once encoded; the camera thread never waits for the encoder. The encoder adapts quality
+ * and resolution so the stream degrades instead of falling behind.
+ */
+public class CameraFrameProducer implements Camera.PreviewCallback {
+    private static final String TAG = "CameraFrameProducer";
+    // Frames waiting for the encoder, which only encodes the newest of them
+    private static final int QUEUE_CAPACITY = 2;
+    // The queued frames, the one being encoded and one the camera is filling
+    private static final int POOL_SIZE = QUEUE_CAPACITY + 2;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final MjpegStreamer streamer;
+    private final SnapshotHolder snapshots;
+    private final AdaptiveJpegEncoder encoder;
+    // Camera thread -> encoder
+    private final SpscQueue<byte[]> filled = new SpscQueue<>(QUEUE_CAPACITY);
+    // Encoder -> camera thread
+    private final SpscQueue<byte[]> recycled = new SpscQueue<>(POOL_SIZE);
+    private volatile boolean running;
+    private volatile Thread encoderThread;
+
+    // Size of the pool buffers; buffers of another size are left to the GC
+    private volatile int frameWidth;
+    private volatile int frameHeight;
+    private volatile int frameSize;
+
+    // Only touched on the camera thread
+    private Camera attachedCamera;
+    private int buffersWithCamera;
+
+    private final AtomicLong capturedFrames = new AtomicLong();
+    private final AtomicLong encodedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    public CameraFrameProducer(MjpegStreamer streamer, SnapshotHolder snapshots, AdaptiveJpegEncoder encoder) {
+        this.streamer = streamer;
+        this.snapshots = snapshots;
+        this.encoder = encoder;
+    }
+
+    /** Quality, bitrate and latency of the encoding stage. */
+    public AdaptiveJpegEncoder getEncoder() {
+        return encoder;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "MjpegEncoder");
+        thread.setDaemon(true);
+        encoderThread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        LockSupport.unpark(encoderThread);
+    }
+
+    /**
+     * Sizes the buffer pool for the camera's preview format and registers for frames. Call on the
+     * camera thread whenever a camera is opened or its preview size changes.
+     */
+    public void attach(Camera camera) {
+        Camera.Parameters parameters = camera.getParameters();
+        if (parameters.getPreviewFormat() != ImageFormat.NV21) {
+            Log.e(TAG, "Unsupported preview format: " + parameters.getPreviewFormat());
+            return;
+        }
+        Camera.Size size = parameters.getPreviewSize();
+        int bytes = size.width * size.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        if (camera == attachedCamera && bytes == frameSize) {
+            return;
+        }
+        frameWidth = size.width;
+        frameHeight = size.height;
+        frameSize = bytes;
+        attachedCamera = camera;
+        // A new camera holds none of our buffers; the old ones still in flight are dropped on return
+        buffersWithCamera = 0;
+        camera.setPreviewCallbackWithBuffer(this);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            giveToCamera(camera, new byte[bytes]);
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        buffersWithCamera--;
+        // Buffers the encoder is done with go back to the camera first
+        byte[] buffer;
+        while ((buffer = recycled.poll()) != null) {
+            giveToCamera(camera, buffer);
+        }
+        if (data == null) {
+            return;
+        }
+        capturedFrames.incrementAndGet();
+        // Keep at least one buffer with the camera, or it stops calling back and nothing is recycled
+        if (running && buffersWithCamera > 0 && (streamer.wantsFrame() || snapshots.wantsFrame())) {
+            if (filled.offer(data)) {
+                LockSupport.unpark(encoderThread);
+                return;
+            }
+            droppedFrames.incrementAndGet();
+        }
+        giveToCamera(camera, data);
+    }
+
+    private void giveToCamera(Camera camera, byte[] buffer) {
+        if (buffer.length != frameSize || buffersWithCamera >= POOL_SIZE) {
+            return;
+        }
+        camera.addCallbackBuffer(buffer);
+        buffersWithCamera++;
+    }
+
+    private void encodeLoop() {
+        long skippedByViewers = streamer.getSkippedFrames();
+        while (running) {
+            byte[] frame = filled.poll();
+            if (frame == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            // Only the newest frame is worth encoding
+            byte[] newer;
+            while ((newer = filled.poll()) != null) {
+                recycled.offer(frame);
+                droppedFrames.incrementAndGet();
+                frame = newer;
+            }
+            int width = frameWidth;
+            int height = frameHeight;
+            if (frame.length == frameSize) {
+                // Frames the viewers skipped tell that their connections cannot keep up
+                long skipped = streamer.getSkippedFrames();
+                encode(frame, width, height, skipped - skippedByViewers);
+                skippedByViewers = skipped;
+            }
+            recycled.offer(frame);
+        }
+    }
+
+    private void encode(byte[] frame, int width, int height, long backlog) {
+        byte[] bytes;
+        try {
+            bytes = encoder.encode(frame, width, height, backlog);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error encoding frame: " + e.getMessage());
+            return;
+        }
+        if (bytes == null) {
+            return;
+        }
+        encodedFrames.incrementAndGet();
+        // Both only keep a reference, the array is never touched again
+        streamer.publish(bytes, encoder.getLastEncodeMicros());
+        snapshots.update(bytes);
+    }
+
+    public long getCapturedFrames() {
+        return capturedFrames.get();
+    }
+
+    public long getEncodedFrames() {
+        return encodedFrames.get();
+    }
+
+    /** Frames the encoder had no time for; the camera got their buffers straight back. */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+}
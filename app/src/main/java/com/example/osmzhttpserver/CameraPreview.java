@@ -11,6 +11,7 @@ import java.io.IOException;
 public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
     private SurfaceHolder mHolder;
     private Camera mCamera;
+    private CameraFrameProducer mFrameProducer;
     public final String TAG = "CameraPreview";
 
     public CameraPreview(Context context, Camera camera) {
@@ -27,12 +28,10 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     public void startPreview() {
         try {
             mCamera.setPreviewDisplay(mHolder);
+            if (mFrameProducer != null) {
+                mFrameProducer.attach(mCamera);
+            }
             mCamera.startPreview();
-            mCamera.setPreviewCallback(new Camera.PreviewCallback() {
-                public void onPreviewFrame(byte[] data, Camera camera) {
-                    Log.d(TAG, "Working On Preview Frame...");
-                }
-            });
         } catch (IOException e) {
             Log.e(TAG, "Error setting camera preview: " + e.getMessage());
         }
@@ -81,6 +80,14 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
     }
 
+    /** Receives the preview frames in its own buffers, attached again whenever the camera changes. */
+    public void setFrameProducer(CameraFrameProducer producer) {
+        mFrameProducer = producer;
+        if (mCamera != null) {
+            producer.attach(mCamera);
+        }
+    }
+
     public void setCamera(Camera camera) {
         mCamera = camera;
         if (mCamera != null) {
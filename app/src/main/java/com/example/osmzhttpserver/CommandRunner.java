@@ -0,0 +1,210 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CGI-style endpoint, mounted at a pattern with a {command} parameter such as
+ * "/cgi-bin/{command}". Only whitelisted commands run, with fixed arguments. Output is streamed
+ * to the client through an {@link HttpResponse} as it is produced. A command holds the worker
+ * thread that serves it, so concurrent commands are capped below the worker count; a command is
+ * killed when it runs too long or the client goes away.
+ */
+public class CommandRunner implements Router.Handler {
+    private static final String TAG = "CommandRunner";
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final Map<String, String[]> commands;
+    private final Semaphore slots;
+    private final long timeoutMs;
+    // Kills commands that run past their timeout
+    private final ScheduledExecutorService watchdog;
+    // Guarded by itself
+    private final Set<Process> running = new HashSet<>();
+    private volatile boolean closed;
+
+    private final AtomicLong completedCommands = new AtomicLong();
+    private final AtomicLong rejectedCommands = new AtomicLong();
+    private final AtomicLong killedCommands = new AtomicLong();
+
+    /**
+     * @param commands     command name as it appears in the URL, to the argv it runs
+     * @param maxProcesses concurrent commands; keep it below the worker count so files are still served
+     * @param timeoutMs    commands running longer are killed and their response cut off
+     */
+    public CommandRunner(Map<String, String[]> commands, int maxProcesses, long timeoutMs) {
+        this.commands = new HashMap<>(commands);
+        this.slots = new Semaphore(maxProcesses);
+        this.timeoutMs = timeoutMs;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CommandWatchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+        String name = request.getPathParameter("command");
+        String[] argv = name != null ? commands.get(name) : null;
+        if (argv == null) {
+            sendErrorResponse(out, request, 404);
+            return;
+        }
+        if (closed || !slots.tryAcquire()) {
+            Log.d(TAG, "Command limit reached");
+            rejectedCommands.incrementAndGet();
+            ResponseHeaderWriter.begin(503)
+                    .header("Retry-After", RETRY_AFTER_SECONDS)
+                    .contentLength(0)
+                    .connection(request.isKeepAlive())
+                    .writeTo(out);
+            return;
+        }
+        try {
+            run(name, argv, request, out);
+        } finally {
+            slots.release();
+        }
+    }
+
+    /** Kills every running command; later requests are answered with 503. */
+    public void close() {
+        closed = true;
+        List<Process> processes;
+        synchronized (running) {
+            processes = new ArrayList<>(running);
+        }
+        for (Process process : processes) {
+            kill(process);
+        }
+        watchdog.shutdownNow();
+    }
+
+    public int getRunningCommands() {
+        synchronized (running) {
+            return running.size();
+        }
+    }
+
+    public long getCompletedCommands() {
+        return completedCommands.get();
+    }
+
+    public long getRejectedCommands() {
+        return rejectedCommands.get();
+    }
+
+    public long getKilledCommands() {
+        return killedCommands.get();
+    }
+
+    private void run(String name, String[] argv, HttpRequest request, HttpOutput out) throws IOException {
+        final Process process;
+        try {
+            process = new ProcessBuilder(argv).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting " + name + ": " + e.getMessage());
+            sendErrorResponse(out, request, 500);
+            return;
+        }
+        synchronized (running) {
+            running.add(process);
+        }
+        final AtomicBoolean killed = new AtomicBoolean();
+        ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                killed.set(true);
+                kill(process);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        try {
+            // Commands get no input
+            process.getOutputStream().close();
+
+            HttpResponse response = new HttpResponse(out, request, 200, "text/plain; charset=utf-8");
+            // The head goes out before the command prints anything
+            response.flush();
+
+            InputStream output = process.getInputStream();
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            while (true) {
+                int n;
+                try {
+                    n = output.read(buffer);
+                } catch (IOException e) {
+                    // The pipe goes away when the process is killed
+                    n = -1;
+                }
+                if (n < 0) {
+                    break;
+                }
+                response.write(buffer, 0, n);
+                // Sent as soon as the command prints it; a failed write means the client is gone
+                response.flush();
+            }
+
+            int status;
+            try {
+                status = process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            if (killed.get() || closed) {
+                Log.d(TAG, "Killed " + name);
+                killedCommands.incrementAndGet();
+                response.abort();
+                return;
+            }
+            Log.d(TAG, name + " exited with " + status);
+            completedCommands.incrementAndGet();
+            response.close();
+        } finally {
+            timeout.cancel(false);
+            // Nothing to do if it exited, otherwise the client went away mid-command
+            process.destroy();
+            synchronized (running) {
+                running.remove(process);
+            }
+        }
+    }
+
+    private static void kill(Process process) {
+        process.destroy();
+        try {
+            // Children of the command may still hold the pipe open, this wakes the reader anyway
+            process.getInputStream().close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing command output: " + e.getMessage());
+        }
+    }
+
+    private static void sendErrorResponse(HttpOutput out, HttpRequest request, int statusCode) throws IOException {
+        ResponseHeaderWriter.begin(statusCode)
+                .contentLength(0)
+                .connection(request.isKeepAlive())
+                .writeTo(out);
+    }
+}
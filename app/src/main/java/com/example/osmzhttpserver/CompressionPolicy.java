@@ -0,0 +1,133 @@
+package com.example.osmzhttpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-coding rules for responses: which media types are worth compressing, from what size,
+ * and which of gzip and deflate the client accepts. Images, video and archives are already
+ * compressed and are left alone.
+ */
+public class CompressionPolicy {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    static final String VARY = "Vary: Accept-Encoding\r\n";
+
+    private static final int DEFAULT_MINIMUM_SIZE = 1024;
+
+    private final Set<String> compressibleTypes = ConcurrentHashMap.newKeySet();
+    private volatile int minimumSize = DEFAULT_MINIMUM_SIZE;
+
+    public CompressionPolicy() {
+        for (String type : new String[]{"application/json", "application/javascript", "application/x-javascript",
+                "application/xml", "application/xhtml+xml", "image/svg+xml"}) {
+            compressibleTypes.add(type);
+        }
+    }
+
+    /** Allows compression of another media type; all text types are allowed already. */
+    public void addCompressibleType(String mimeType) {
+        compressibleTypes.add(mimeType.toLowerCase(Locale.US));
+    }
+
+    /** Bodies smaller than this go out as they are; the gzip framing alone is about 20 bytes. */
+    public void setMinimumSize(int bytes) {
+        minimumSize = bytes;
+    }
+
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+        return type.startsWith("text/") || compressibleTypes.contains(type);
+    }
+
+    public boolean shouldCompress(String contentType, long length) {
+        return length >= minimumSize && isCompressible(contentType);
+    }
+
+    /**
+     * Content coding to use for a client, preferring gzip on equal weight.
+     *
+     * @return GZIP, DEFLATE or null if the client accepts neither
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = quality(acceptEncoding, GZIP);
+        float deflate = quality(acceptEncoding, DEFLATE);
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /** Whether the client accepts gzip at all, for serving precompressed files. */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && quality(acceptEncoding, GZIP) > 0;
+    }
+
+    /** Weight the Accept-Encoding value gives a coding, falling back to "*"; 0 if not acceptable. */
+    private static float quality(String acceptEncoding, String coding) {
+        float wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim().toLowerCase(Locale.US);
+            boolean matches = name.equals(coding) || (coding.equals(GZIP) && name.equals("x-gzip"));
+            if (!matches && !name.equals("*")) {
+                continue;
+            }
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (matches) {
+                return q;
+            }
+            wildcard = q;
+        }
+        return wildcard;
+    }
+
+    /**
+     * Compresses data with the given coding. "deflate" is the zlib format, as HTTP defines it.
+     *
+     * @param level Deflater level; cached variants are worth Deflater.BEST_COMPRESSION
+     */
+    public static byte[] compress(byte[] data, int offset, int length, String encoding, final int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 3));
+        if (GZIP.equals(encoding)) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192) {
+                {
+                    def.setLevel(level);
+                }
+            }) {
+                gzip.write(data, offset, length);
+            }
+        } else {
+            Deflater deflater = new Deflater(level);
+            try (DeflaterOutputStream zlib = new DeflaterOutputStream(out, deflater, 8192)) {
+                zlib.write(data, offset, length);
+            } finally {
+                deflater.end();
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed pool of worker threads fed from a bounded accept queue. Work is only refused when the
+ * queue is actually full, so the caller can answer 503 instead of spawning more threads.
+ */
+public class ConnectionDispatcher {
+    private static final String TAG = "ConnectionDispatcher";
+
+    private final ThreadPoolExecutor executor;
+    private final int workerCount;
+    private final int queueCapacity;
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalServiceNanos = new AtomicLong();
+
+    public ConnectionDispatcher(int workerCount, int queueCapacity) {
+        this.workerCount = workerCount;
+        this.queueCapacity = queueCapacity;
+        // Core == max: the pool never grows past workerCount, extra work waits in the queue
+        this.executor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queues a connection task for the worker pool.
+     *
+     * @return false when the accept queue is full and the task was not taken
+     */
+    public boolean dispatch(final Runnable task) {
+        acceptedCount.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        totalServiceNanos.addAndGet(System.nanoTime() - start);
+                        completedCount.incrementAndGet();
+                    }
+                }
+            });
+            queuedCount.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            Log.d(TAG, "Accept queue full (" + queueCapacity + "), rejecting connection");
+            return false;
+        }
+    }
+
+    /** Seconds a rejected client should wait, estimated from how long it takes to drain a full queue. */
+    public int getRetryAfterSeconds() {
+        long completed = completedCount.get();
+        if (completed == 0) {
+            return 1;
+        }
+        double avgServiceSeconds = totalServiceNanos.get() / (double) completed / 1_000_000_000d;
+        double drainSeconds = avgServiceSeconds * (queueCapacity + workerCount) / workerCount;
+        return (int) Math.max(1, Math.ceil(drainSeconds));
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Waits for queued and running tasks to finish after {@link #shutdown()}. */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HttpWorker-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.osmzhttpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request body view of a persistent connection: reads stop at the declared Content-Length so
+ * the next pipelined request is left in the underlying stream.
+ */
+class ContentLengthInputStream extends InputStream {
+    // Bodies left unread by a handler are skipped up to this size, larger ones close the connection
+    private static final long MAX_DRAIN_BYTES = 256 * 1024;
+
+    private final InputStream in;
+    private long remaining;
+
+    ContentLengthInputStream(InputStream in, long contentLength) {
+        this.in = in;
+        this.remaining = contentLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b >= 0) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+        // The connection outlives the body
+    }
+
+    /**
+     * Discards whatever the handler did not read.
+     *
+     * @return false if the body was too large to skip and the connection has to be closed
+     */
+    boolean skipRemaining() throws IOException {
+        if (remaining > MAX_DRAIN_BYTES) {
+            return false;
+        }
+        byte[] buffer = new byte[4096];
+        while (remaining > 0) {
+            if (read(buffer, 0, buffer.length) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
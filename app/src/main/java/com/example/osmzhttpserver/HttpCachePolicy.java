@@ -0,0 +1,109 @@
+package com.example.osmzhttpserver;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validators and Cache-Control values for served files. ETags are derived from size and
+ * modification time, so they cost nothing to compute and change whenever the file does.
+ */
+public class HttpCachePolicy {
+    private final Map<String, String> cacheControlByExtension = new ConcurrentHashMap<>();
+    private volatile String defaultCacheControl = "no-cache";
+
+    public HttpCachePolicy() {
+        String images = "public, max-age=86400";
+        for (String extension : new String[]{"jpg", "jpeg", "png", "gif", "webp", "ico"}) {
+            cacheControlByExtension.put(extension, images);
+        }
+        cacheControlByExtension.put("css", "public, max-age=3600");
+        cacheControlByExtension.put("js", "public, max-age=3600");
+    }
+
+    /** Cache-Control value for files with the given extension, e.g. ("mp4", "public, max-age=600"). */
+    public void setCacheControl(String extension, String value) {
+        cacheControlByExtension.put(extension.toLowerCase(Locale.US), value);
+    }
+
+    /** Used for extensions without an explicit value; "no-cache" makes clients revalidate every time. */
+    public void setDefaultCacheControl(String value) {
+        defaultCacheControl = value;
+    }
+
+    public String getCacheControl(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0) {
+            String value = cacheControlByExtension.get(fileName.substring(dot + 1).toLowerCase(Locale.US));
+            if (value != null) {
+                return value;
+            }
+        }
+        return defaultCacheControl;
+    }
+
+    /** Strong ETag built from the file size and modification time. */
+    public static String etag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /** ETag of a content-coded representation; it must differ from the identity one. */
+    public static String variantEtag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /** Header lines carrying the validators and caching rules for a file. */
+    public String validatorHeaders(String fileName, String etag, long lastModified) {
+        return "ETag: " + etag + "\r\n" +
+                "Last-Modified: " + HttpDates.format(lastModified) + "\r\n" +
+                "Cache-Control: " + getCacheControl(fileName) + "\r\n";
+    }
+
+    /**
+     * Whether the client's cached copy is still current. If-None-Match takes precedence over
+     * If-Modified-Since, as required by RFC 7232.
+     */
+    public static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+        long since = HttpDates.parse(request.getHeader("If-Modified-Since"));
+        // HTTP dates have one second resolution
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    /**
+     * Whether a Range request may be served as partial content. An If-Range validator that no
+     * longer matches means the client's partial copy is stale and it must get the whole file.
+     */
+    public static boolean isRangeApplicable(HttpRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range needs the strong comparison, so weak tags never match
+            return ifRange.equals(etag);
+        }
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /** Weak comparison against a comma separated list of entity tags, or "*". */
+    static boolean matchesAny(String headerValue, String etag) {
+        String tag = stripWeak(etag);
+        for (String candidate : headerValue.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripWeak(candidate).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.osmzhttpserver;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/** Formatting and parsing of HTTP-date header values (RFC 7231, section 7.1.1.1). */
+public final class HttpDates {
+    private static final String RFC_1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    // Obsolete forms a server still has to accept
+    private static final String RFC_850 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
+    private static final String ASCTIME = "EEE MMM d HH:mm:ss yyyy";
+
+    private HttpDates() {
+    }
+
+    public static String format(long timeMillis) {
+        return newFormat(RFC_1123).format(new Date(timeMillis));
+    }
+
+    /** Milliseconds since the epoch, or -1 if the value is not a valid HTTP-date. */
+    public static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        for (String pattern : new String[]{RFC_1123, RFC_850, ASCTIME}) {
+            try {
+                return newFormat(pattern).parse(value.trim()).getTime();
+            } catch (ParseException e) {
+                // try the next format
+            }
+        }
+        return -1;
+    }
+
+    private static SimpleDateFormat newFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
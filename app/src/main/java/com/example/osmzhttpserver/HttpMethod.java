@@ -0,0 +1,41 @@
+package com.example.osmzhttpserver;
+
+/** Request methods known to the server; anything else parses as OTHER. */
+public enum HttpMethod {
+    GET,
+    HEAD,
+    POST,
+    PUT,
+    DELETE,
+    OPTIONS,
+    PATCH,
+    TRACE,
+    CONNECT,
+    OTHER;
+
+    private static final HttpMethod[] KNOWN = {GET, HEAD, POST, PUT, DELETE, OPTIONS, PATCH, TRACE, CONNECT};
+
+    private final byte[] token = name().getBytes();
+
+    /** Method whose token is data[start, end); method names are case-sensitive. */
+    static HttpMethod of(byte[] data, int start, int end) {
+        for (HttpMethod method : KNOWN) {
+            if (method.matches(data, start, end)) {
+                return method;
+            }
+        }
+        return OTHER;
+    }
+
+    private boolean matches(byte[] data, int start, int end) {
+        if (end - start != token.length) {
+            return false;
+        }
+        for (int i = 0; i < token.length; i++) {
+            if (data[start + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.osmzhttpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Response stream of a client connection. Besides ordinary writes it can send a region of a file
+ * straight from the page cache, so large bodies never pass through the Java heap.
+ */
+public abstract class HttpOutput extends OutputStream {
+    /**
+     * Writes count bytes of the file starting at position, after anything written before.
+     * Returns once the bytes have been handed to the socket; the caller still owns the channel.
+     */
+    public abstract void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Like {@link #transferFrom}, but hands the channel over: it is closed once the region has been
+     * written or the connection fails. An output that writes on another thread returns without
+     * waiting for that.
+     */
+    public void transferAndClose(FileChannel file, long position, long count) throws IOException {
+        try {
+            transferFrom(file, position, count);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a response head followed by its body. Implementations may hand both to the socket in
+     * one gathering write instead of copying the body.
+     */
+    public void write(byte[] head, int headOffset, int headLength, byte[] body, int bodyOffset, int bodyLength) throws IOException {
+        write(head, headOffset, headLength);
+        write(body, bodyOffset, bodyLength);
+    }
+
+    /**
+     * Takes the connection away from the request: everything written so far is flushed and
+     * further bytes go through the returned connection from any thread. The worker returns without
+     * closing the socket.
+     */
+    public PushConnection detach() throws IOException {
+        throw new IOException("Push is not supported on this connection");
+    }
+
+    /** Whether {@link #detach()} has handed the connection over. */
+    public boolean isDetached() {
+        return false;
+    }
+}
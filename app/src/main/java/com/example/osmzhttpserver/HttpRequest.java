@@ -0,0 +1,269 @@
+package com.example.osmzhttpserver;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request line and headers of one HTTP request, as filled in by {@link HttpRequestParser}. The
+ * raw head is kept in a reusable buffer with an index of offsets into it; strings are only decoded
+ * when a getter asks for them. The parser reuses the instance for the next request on the
+ * connection, so it must not be kept past the response.
+ */
+public class HttpRequest {
+    static final int MAX_HEADER_SIZE = 16 * 1024;
+    static final int MAX_HEADERS = 64;
+
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes();
+
+    // Raw request head, data[0, length)
+    final byte[] data = new byte[MAX_HEADER_SIZE];
+    int length;
+
+    HttpMethod method;
+    int methodEnd;
+    int uriStart;
+    int uriEnd;
+    // Index of the '?' in the URI, or -1
+    int queryStart;
+    int versionStart;
+    int versionEnd;
+
+    // Name start, name end, value start and value end of each header
+    final int[] headers = new int[MAX_HEADERS * 4];
+    int headerCount;
+
+    private String uri;
+    private String path;
+    private String decodedPath;
+    private boolean keepAlive;
+    // Set by the router for parameterized routes
+    private String[] pathParameterNames;
+    private String[] pathParameterValues;
+
+    HttpRequest() {
+        reset();
+    }
+
+    void reset() {
+        length = 0;
+        method = null;
+        methodEnd = uriStart = uriEnd = versionStart = versionEnd = 0;
+        queryStart = -1;
+        headerCount = 0;
+        uri = null;
+        path = null;
+        decodedPath = null;
+        keepAlive = false;
+        pathParameterNames = null;
+        pathParameterValues = null;
+    }
+
+    public HttpMethod getMethodType() {
+        return method;
+    }
+
+    public String getMethod() {
+        return method != HttpMethod.OTHER ? method.name() : decode(0, methodEnd);
+    }
+
+    public String getUri() {
+        if (uri == null) {
+            uri = decode(uriStart, uriEnd);
+        }
+        return uri;
+    }
+
+    public String getPath() {
+        if (path == null) {
+            path = queryStart < 0 ? getUri() : decode(uriStart, queryStart);
+        }
+        return path;
+    }
+
+    /** Path with its %XX escapes decoded as UTF-8; null if an escape is malformed or decodes to NUL. */
+    public String getDecodedPath() {
+        if (decodedPath == null) {
+            int end = queryStart < 0 ? uriEnd : queryStart;
+            byte[] bytes = new byte[end - uriStart];
+            int count = 0;
+            for (int i = uriStart; i < end; i++) {
+                int b = data[i];
+                if (b == '%') {
+                    int high = i + 2 < end ? Character.digit(data[i + 1], 16) : -1;
+                    int low = high >= 0 ? Character.digit(data[i + 2], 16) : -1;
+                    if (low < 0 || (high | low) == 0) {
+                        return null;
+                    }
+                    b = high << 4 | low;
+                    i += 2;
+                }
+                bytes[count++] = (byte) b;
+            }
+            // Unlike a query, a path keeps '+' as it is
+            decodedPath = new String(bytes, 0, count, StandardCharsets.UTF_8);
+        }
+        return decodedPath;
+    }
+
+    public String getQuery() {
+        return queryStart < 0 ? null : decode(queryStart + 1, uriEnd);
+    }
+
+    /** First value of a query parameter, URL-decoded; null if absent. */
+    public String getQueryParameter(String name) {
+        String query = getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                try {
+                    return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Value of a {name} segment of the route that matched, as sent; null if there is none. */
+    public String getPathParameter(String name) {
+        if (pathParameterNames != null) {
+            for (int i = 0; i < pathParameterNames.length; i++) {
+                if (pathParameterNames[i].equals(name)) {
+                    return pathParameterValues[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    void setPathParameters(String[] names, String[] values) {
+        pathParameterNames = names;
+        pathParameterValues = values;
+    }
+
+    public String getVersion() {
+        // A request line without a version is treated as HTTP/1.0
+        return versionEnd > versionStart ? decode(versionStart, versionEnd) : "HTTP/1.0";
+    }
+
+    public String getRequestLine() {
+        return getMethod() + " " + getUri() + " " + getVersion();
+    }
+
+    /** Header value by case-insensitive name, repeated headers joined with ", ". */
+    public String getHeader(String name) {
+        String value = null;
+        for (int i = 0; i < headerCount; i++) {
+            if (nameEquals(i, name)) {
+                String next = decode(headers[i * 4 + 2], headers[i * 4 + 3]);
+                value = value == null ? next : value + ", " + next;
+            }
+        }
+        return value;
+    }
+
+    /** Declared body length, 0 when absent and -1 when it cannot be determined. */
+    public long getContentLength() {
+        if (indexOfHeader("Transfer-Encoding", 0) >= 0) {
+            return -1;
+        }
+        int index = indexOfHeader("Content-Length", 0);
+        if (index < 0) {
+            return 0;
+        }
+        if (indexOfHeader("Content-Length", index + 1) >= 0) {
+            return -1;
+        }
+        int start = headers[index * 4 + 2];
+        int end = headers[index * 4 + 3];
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /** Whether the client asked for a persistent connection, per HTTP/1.0 and 1.1 defaults. */
+    public boolean wantsKeepAlive() {
+        String connection = getHeader("Connection");
+        if (isHttp11()) {
+            return connection == null || !hasToken(connection, "close");
+        }
+        return connection != null && hasToken(connection, "keep-alive");
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    private boolean isHttp11() {
+        if (versionEnd - versionStart != HTTP_1_1.length) {
+            return false;
+        }
+        for (int i = 0; i < HTTP_1_1.length; i++) {
+            if (data[versionStart + i] != HTTP_1_1[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOfHeader(String name, int from) {
+        for (int i = from; i < headerCount; i++) {
+            if (nameEquals(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int index, String name) {
+        int start = headers[index * 4];
+        int end = headers[index * 4 + 1];
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int a = data[start + i];
+            int b = name.charAt(i);
+            if (a != b && toLower(a) != toLower(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private String decode(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
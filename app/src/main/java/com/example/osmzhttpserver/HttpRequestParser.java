@@ -0,0 +1,223 @@
+package com.example.osmzhttpserver;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental HTTP/1.x request head parser. Bytes can be fed in any split, as they arrive from a
+ * blocking read or a selector loop; the parser copies them into its {@link HttpRequest} and indexes
+ * each line once it is complete, so nothing is allocated per request. One parser serves all
+ * requests of a connection.
+ */
+public class HttpRequestParser {
+    /** Chunk size for {@link #readFrom}; the pushback stream must hold at least this many bytes. */
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final HttpRequest request = new HttpRequest();
+    private int lineStart;
+    private boolean requestLineParsed;
+    private boolean complete;
+    private byte[] readBuffer;
+
+    /** Thrown when the request head exceeds the size or header count limits. */
+    public static class HeaderTooLargeException extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        public HeaderTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /** Request parsed so far; complete once {@link #isComplete()} is true. */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** True if part of a request head has been received. */
+    public boolean hasPartialRequest() {
+        return request.length > 0 && !complete;
+    }
+
+    /** Starts over for the next request on the connection. */
+    public void reset() {
+        request.reset();
+        lineStart = 0;
+        requestLineParsed = false;
+        complete = false;
+    }
+
+    /**
+     * Consumes bytes up to the end of the request head. Bytes after it belong to the body or the
+     * next request and are left to the caller.
+     *
+     * @return the number of bytes consumed
+     */
+    public int feed(byte[] buffer, int offset, int count) throws ProtocolException {
+        int pos = offset;
+        int end = offset + count;
+        while (pos < end && !complete) {
+            if (request.length == 0) {
+                // Tolerate stray CRLFs between pipelined requests
+                if (buffer[pos] == '\r' || buffer[pos] == '\n') {
+                    pos++;
+                    continue;
+                }
+            }
+            int lineEnd = pos;
+            while (lineEnd < end && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int chunk = (lineEnd < end ? lineEnd + 1 : end) - pos;
+            if (request.length + chunk > HttpRequest.MAX_HEADER_SIZE) {
+                throw new HeaderTooLargeException("Request header too large");
+            }
+            System.arraycopy(buffer, pos, request.data, request.length, chunk);
+            request.length += chunk;
+            pos += chunk;
+            if (lineEnd < end) {
+                parseLine(lineStart, request.length - 1);
+                lineStart = request.length;
+            }
+        }
+        return pos - offset;
+    }
+
+    /** Same as {@link #feed(byte[], int, int)}, advancing the buffer's position. */
+    public int feed(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.hasArray()) {
+            int consumed = feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.position() + consumed);
+            return consumed;
+        }
+        // Direct buffers go through the read buffer in chunks
+        byte[] chunk = readBuffer();
+        int consumed = 0;
+        while (buffer.hasRemaining() && !complete) {
+            int position = buffer.position();
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            int used = feed(chunk, 0, n);
+            buffer.position(position + used);
+            consumed += used;
+        }
+        return consumed;
+    }
+
+    /**
+     * Blocking convenience for stream based connections: reads until a request head is complete
+     * and pushes any bytes past it back onto the stream.
+     *
+     * @return null if the connection was closed before a request arrived
+     */
+    public HttpRequest readFrom(PushbackInputStream in) throws IOException {
+        reset();
+        byte[] buffer = readBuffer();
+        while (!complete) {
+            // PushbackInputStream blocks for more input after handing out pushed back bytes, so
+            // never ask for more than is already there, e.g. with a pipelined request waiting
+            int n = in.read(buffer, 0, Math.max(1, Math.min(buffer.length, in.available())));
+            if (n < 0) {
+                if (request.length > 0) {
+                    throw new ProtocolException("Connection closed inside request header");
+                }
+                return null;
+            }
+            int consumed = feed(buffer, 0, n);
+            if (consumed < n) {
+                in.unread(buffer, consumed, n - consumed);
+            }
+        }
+        return request;
+    }
+
+    private byte[] readBuffer() {
+        if (readBuffer == null) {
+            readBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        return readBuffer;
+    }
+
+    /** Indexes the line data[start, lf), where lf is the position of its line feed. */
+    private void parseLine(int start, int lf) throws ProtocolException {
+        byte[] data = request.data;
+        int end = lf > start && data[lf - 1] == '\r' ? lf - 1 : lf;
+        if (!requestLineParsed) {
+            parseRequestLine(data, start, end);
+            requestLineParsed = true;
+        } else if (start == end) {
+            complete = true;
+        } else {
+            parseHeader(data, start, end);
+        }
+    }
+
+    private void parseRequestLine(byte[] data, int start, int end) throws ProtocolException {
+        int methodEnd = indexOf(data, start, end, (byte) ' ');
+        if (methodEnd <= start) {
+            throw new ProtocolException("Invalid request line");
+        }
+        int uriStart = methodEnd + 1;
+        int uriEnd = indexOf(data, uriStart, end, (byte) ' ');
+        if (uriEnd < 0) {
+            uriEnd = end;
+        }
+        if (uriEnd == uriStart) {
+            throw new ProtocolException("Invalid request line");
+        }
+
+        request.method = HttpMethod.of(data, start, methodEnd);
+        request.methodEnd = methodEnd;
+        request.uriStart = uriStart;
+        request.uriEnd = uriEnd;
+        request.queryStart = indexOf(data, uriStart, uriEnd, (byte) '?');
+        request.versionStart = Math.min(uriEnd + 1, end);
+        request.versionEnd = end;
+    }
+
+    private void parseHeader(byte[] data, int start, int end) throws ProtocolException {
+        int colon = indexOf(data, start, end, (byte) ':');
+        if (colon <= start || data[start] == ' ' || data[start] == '\t') {
+            throw new ProtocolException("Invalid header line");
+        }
+        if (request.headerCount == HttpRequest.MAX_HEADERS) {
+            throw new HeaderTooLargeException("Too many request headers");
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(data[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(data[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        int slot = request.headerCount++ * 4;
+        request.headers[slot] = start;
+        request.headers[slot + 1] = nameEnd;
+        request.headers[slot + 2] = valueStart;
+        request.headers[slot + 3] = valueEnd;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
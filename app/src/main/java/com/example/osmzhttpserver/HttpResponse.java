@@ -0,0 +1,187 @@
+package com.example.osmzhttpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Body stream of a response whose length is not known up front. Writes are coalesced into a
+ * buffer of one chunk; a body that fits in it is sent on close with a Content-Length, anything
+ * larger, or flushed early, goes out with Transfer-Encoding: chunked as the buffer fills. HTTP/1.0
+ * clients get the body unframed and the connection closes after it.
+ */
+public class HttpResponse extends OutputStream {
+    static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final HttpOutput out;
+    private final HttpRequest request;
+    private final int statusCode;
+    private final String contentType;
+    private final StringBuilder headerLines = new StringBuilder();
+    private final byte[] buffer;
+    // "<size in hex>\r\n" of the chunk being sent
+    private final byte[] chunkHead = new byte[10];
+    private int count;
+    private boolean committed;
+    private boolean chunked;
+    private boolean closed;
+
+    public HttpResponse(HttpOutput out, HttpRequest request, int statusCode, String contentType) {
+        this(out, request, statusCode, contentType, DEFAULT_CHUNK_SIZE);
+    }
+
+    /** @param chunkSize bytes coalesced before a chunk is sent */
+    public HttpResponse(HttpOutput out, HttpRequest request, int statusCode, String contentType, int chunkSize) {
+        this.out = out;
+        this.request = request;
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.buffer = new byte[chunkSize];
+    }
+
+    /** Adds a header line; only before the first byte of the response has been sent. */
+    public HttpResponse header(String name, String value) {
+        if (committed) {
+            throw new IllegalStateException("Response head already sent");
+        }
+        headerLines.append(name).append(": ").append(value).append("\r\n");
+        return this;
+    }
+
+    /** Whether the head is out, so the status and length can no longer change. */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("Response closed");
+        }
+        if (count == buffer.length) {
+            sendBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Response closed");
+        }
+        if (count + len <= buffer.length) {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            return;
+        }
+        sendBuffer();
+        if (len >= buffer.length) {
+            // Big enough to go out as its own chunk without a copy
+            sendChunk(b, off, len);
+        } else {
+            System.arraycopy(b, off, buffer, 0, len);
+            count = len;
+        }
+    }
+
+    /** Sends the head and what is buffered now, for bodies produced over time. */
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        sendBuffer();
+        out.flush();
+    }
+
+    /** Ends the body; the connection stays usable for the next request where the framing allows. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!committed) {
+            committed = true;
+            head().contentLength(count)
+                    .connection(request.isKeepAlive())
+                    .writeTo(out, buffer, 0, count);
+        } else {
+            sendBuffer();
+            if (chunked) {
+                out.write(LAST_CHUNK);
+            }
+        }
+        count = 0;
+        out.flush();
+    }
+
+    /**
+     * Ends the response without completing the body, e.g. when its source failed halfway. The
+     * connection is closed after it, so the client can tell the body is cut short.
+     */
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        count = 0;
+        request.setKeepAlive(false);
+        if (committed) {
+            out.flush();
+        } else {
+            committed = true;
+            ResponseHeaderWriter.begin(500)
+                    .contentLength(0)
+                    .connection(false)
+                    .writeTo(out);
+        }
+    }
+
+    private ResponseHeaderWriter head() {
+        ResponseHeaderWriter head = ResponseHeaderWriter.begin(statusCode);
+        if (contentType != null) {
+            head.contentType(contentType);
+        }
+        return head.lines(headerLines.toString());
+    }
+
+    /** Sends the buffer as the next piece of the body, sending the head first if needed. */
+    private void sendBuffer() throws IOException {
+        if (!committed) {
+            committed = true;
+            // HTTP/1.0 clients cannot take chunks, their body ends with the connection
+            chunked = !"HTTP/1.0".equals(request.getVersion());
+            if (!chunked) {
+                request.setKeepAlive(false);
+            }
+            ResponseHeaderWriter head = head();
+            if (chunked) {
+                head.header("Transfer-Encoding", "chunked");
+            }
+            head.connection(request.isKeepAlive()).writeTo(out);
+        }
+        if (count > 0) {
+            sendChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private void sendChunk(byte[] b, int off, int len) throws IOException {
+        if (!chunked) {
+            out.write(b, off, len);
+            return;
+        }
+        int digits = Math.max(1, (35 - Integer.numberOfLeadingZeros(len)) / 4);
+        for (int i = 0; i < digits; i++) {
+            chunkHead[i] = HEX[(len >>> (4 * (digits - 1 - i))) & 0xf];
+        }
+        chunkHead[digits] = '\r';
+        chunkHead[digits + 1] = '\n';
+        out.write(chunkHead, 0, digits + 2, b, off, len);
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.osmzhttpserver;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.OnSuccessListener;
+
+/**
+ * Latest location fix from one long-lived fused location subscription. Reads never block and
+ * never touch the location client; they only feed the read rate the update interval is adapted
+ * to, so location is polled often while clients look at it and rarely when nobody does.
+ */
+public class LocationCache {
+    private static final String TAG = "LocationCache";
+
+    /** One fix, immutable. */
+    public static final class Fix {
+        public final double latitude;
+        public final double longitude;
+        public final float accuracy;
+        public final long timeMs;
+
+        Fix(double latitude, double longitude, float accuracy, long timeMs) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.timeMs = timeMs;
+        }
+
+        public long getAgeMs() {
+            return System.currentTimeMillis() - timeMs;
+        }
+    }
+
+    private final Context context;
+    private final FusedLocationProviderClient client;
+    private final TelemetryStore store;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ReadRatePolicy policy = new ReadRatePolicy();
+
+    private volatile Fix latest;
+    // Guarded by this; interval of the current subscription, 0 while there is none
+    private long requestedIntervalMs;
+    private boolean started;
+    private boolean adjustPending;
+
+    private final LocationCallback callback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            if (result != null && result.getLastLocation() != null) {
+                update(result.getLastLocation());
+            }
+            // Fixes keep arriving while nobody reads, which is when the interval can grow
+            scheduleAdjust();
+        }
+    };
+
+    private final Runnable adjust = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LocationCache.this) {
+                adjustPending = false;
+                if (started) {
+                    subscribe(policy.targetIntervalMs(System.currentTimeMillis()));
+                }
+            }
+        }
+    };
+
+    /** @param store also receives every fix, or null */
+    public LocationCache(Context context, TelemetryStore store) {
+        this.context = context.getApplicationContext();
+        this.client = LocationServices.getFusedLocationProviderClient(this.context);
+        this.store = store;
+    }
+
+    /** Subscribes to updates, starting at the idle interval; false without location permission. */
+    public synchronized boolean start() {
+        if (started) {
+            return true;
+        }
+        if (ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
+                && ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "No location permission");
+            return false;
+        }
+        started = true;
+        try {
+            // Something to answer with until the first update arrives
+            client.getLastLocation().addOnSuccessListener(new OnSuccessListener<Location>() {
+                @Override
+                public void onSuccess(Location location) {
+                    if (location != null && latest == null) {
+                        update(location);
+                    }
+                }
+            });
+        } catch (SecurityException e) {
+            Log.e(TAG, "Error reading last location: " + e.getMessage());
+        }
+        subscribe(policy.targetIntervalMs(System.currentTimeMillis()));
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        requestedIntervalMs = 0;
+        client.removeLocationUpdates(callback);
+    }
+
+    /** Latest fix or null, without waiting; counts as a read for the adaptive interval. */
+    public Fix getLatest() {
+        noteRead();
+        return latest;
+    }
+
+    /** Records that a client looked at location through some other path, such as the store. */
+    public void noteRead() {
+        long now = System.currentTimeMillis();
+        boolean faster;
+        synchronized (this) {
+            policy.onRead(now);
+            faster = started && policy.targetIntervalMs(now) * 2 <= requestedIntervalMs;
+        }
+        if (faster) {
+            // A client reads more often than fixes arrive, speed up now rather than at the next fix
+            scheduleAdjust();
+        }
+    }
+
+    public synchronized long getRequestedIntervalMs() {
+        return requestedIntervalMs;
+    }
+
+    private void update(Location location) {
+        Fix fix = new Fix(location.getLatitude(), location.getLongitude(), location.getAccuracy(), location.getTime());
+        latest = fix;
+        if (store != null) {
+            store.updateLocation(fix.latitude, fix.longitude, fix.accuracy, fix.timeMs);
+        }
+    }
+
+    private synchronized void scheduleAdjust() {
+        if (!adjustPending) {
+            adjustPending = true;
+            // The location client is only ever called from the main thread
+            handler.post(adjust);
+        }
+    }
+
+    /** Replaces the subscription if the interval moved by a factor of two or more. Guarded by this. */
+    private void subscribe(long intervalMs) {
+        long current = requestedIntervalMs;
+        if (current != 0 && intervalMs * 2 > current && intervalMs < current * 2) {
+            return;
+        }
+        LocationRequest request = LocationRequest.create()
+                .setPriority(intervalMs >= ReadRatePolicy.MAX_INTERVAL_MS
+                        ? LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY
+                        : LocationRequest.PRIORITY_HIGH_ACCURACY)
+                .setInterval(intervalMs)
+                .setFastestInterval(intervalMs / 2);
+        try {
+            // Same callback, so the client replaces the old request instead of adding one
+            client.requestLocationUpdates(request, callback, Looper.getMainLooper());
+            requestedIntervalMs = intervalMs;
+            Log.d(TAG, "Location interval " + intervalMs + " ms");
+        } catch (SecurityException e) {
+            Log.e(TAG, "Error requesting location updates: " + e.getMessage());
+        }
+    }
+
+    /** Update interval that follows how often clients read; nobody reading means the slowest one. */
+    static final class ReadRatePolicy {
+        static final long MIN_INTERVAL_MS = 1000;
+        static final long MAX_INTERVAL_MS = 60 * 1000;
+        static final long DEFAULT_INTERVAL_MS = 10 * 1000;
+        // Readers silent this long are gone
+        static final long IDLE_MS = 5 * 60 * 1000;
+        // Weight of the newest gap in the average
+        private static final double SMOOTHING = 0.2;
+
+        private long lastReadMs = -1;
+        private double averageGapMs = -1;
+
+        void onRead(long nowMs) {
+            if (lastReadMs >= 0) {
+                long gap = nowMs - lastReadMs;
+                averageGapMs = averageGapMs < 0 ? gap : averageGapMs + SMOOTHING * (gap - averageGapMs);
+            }
+            lastReadMs = nowMs;
+        }
+
+        long targetIntervalMs(long nowMs) {
+            if (lastReadMs < 0 || nowMs - lastReadMs > IDLE_MS) {
+                return MAX_INTERVAL_MS;
+            }
+            if (averageGapMs < 0) {
+                return DEFAULT_INTERVAL_MS;
+            }
+            // A reader that went quiet counts as at least as slow as the silence so far
+            double gap = Math.max(averageGapMs, nowMs - lastReadMs);
+            return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, (long) gap));
+        }
+    }
+}
@@ -26,11 +26,8 @@ import android.widget.FrameLayout;
 import android.widget.TextView;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
@@ -42,9 +39,27 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     private static TextView logTextView;
     private static final int MAX_THREADS = 5;
+    // Each viewer holds a worker thread, leave some for other requests
+    private static final int MAX_STREAM_VIEWERS = 3;
+    private static final int MAX_STREAM_FPS = 15;
+    // Encoding quality and resolution drop to keep the stream under this
+    private static final long MAX_STREAM_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    // How old /snapshot may get while clients are asking for it
+    private static final long SNAPSHOT_MAX_AGE_MS = 1000;
+    // Telemetry streams only hold a socket each, not a worker thread
+    private static final int MAX_TELEMETRY_SUBSCRIBERS = 32;
+    // Each running command holds a worker thread, as does each stream viewer
+    private static final int MAX_COMMANDS = 1;
+    private static final long COMMAND_TIMEOUT_MS = 30 * 1000;
     private Camera mCamera;
     private CameraPreview mPreview;
     private CameraActivity cameraActivity;
+    private final MjpegStreamer mjpegStreamer = new MjpegStreamer(MAX_STREAM_FPS, MAX_STREAM_VIEWERS);
+    private final SnapshotHolder snapshotHolder = new SnapshotHolder(SNAPSHOT_MAX_AGE_MS);
+    private CameraFrameProducer frameProducer;
+    private TelemetryDataCollector telemetryCollector;
+    private TelemetryStreamer telemetryStreamer;
+    private CommandRunner commandRunner;
 //    private HTTPD httpServer;
 
     private static Handler handler = new Handler(Looper.getMainLooper()) {
@@ -110,15 +125,12 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 FrameLayout preview = findViewById(R.id.camera_preview);
                 preview.addView(mPreview);
 
-                // Schedule the timer to take a picture every second
-                Timer timer = new Timer();
-                timer.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        // Trigger the camera to take a picture
-                        mCamera.takePicture(null, null, mPicture);
-                    }
-                }, 0, 1000); // Delay of 0 milliseconds, repeat every 1000 milliseconds (1 second)
+                // Feed the live stream and the snapshot from the preview frames
+                AdaptiveJpegEncoder encoder = new AdaptiveJpegEncoder(MAX_STREAM_FPS);
+                encoder.setTargetBitrate(MAX_STREAM_BYTES_PER_SECOND);
+                frameProducer = new CameraFrameProducer(mjpegStreamer, snapshotHolder, encoder);
+                frameProducer.start();
+                mPreview.setFrameProducer(frameProducer);
             } else {
                 Log.e(TAG, "Failed to initialize camera.");
             }
@@ -127,10 +139,32 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
+    /** Commands served under /cgi-bin/, with their fixed arguments. */
+    private static Map<String, String[]> allowedCommands() {
+        Map<String, String[]> commands = new HashMap<>();
+        commands.put("uptime", new String[]{"uptime"});
+        commands.put("date", new String[]{"date"});
+        commands.put("df", new String[]{"df", "-h"});
+        commands.put("ps", new String[]{"ps", "-A"});
+        commands.put("top", new String[]{"top", "-b", "-n", "1"});
+        return commands;
+    }
+
     private void initializeServer() {
         if (s == null) {
             changeFilePermissions();
             s = new SocketServer(MAX_THREADS, handler, getApplicationContext(), mCamera);
+            s.mountStaticFiles();
+            // Uploads land in Downloads, the only folder that can be browsed
+            s.setListingDirectory(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
+            s.setMjpegStreamer(mjpegStreamer);
+            s.setSnapshotHolder(snapshotHolder);
+            telemetryCollector = new TelemetryDataCollector(getApplicationContext());
+            s.setTelemetryDataCollector(telemetryCollector);
+            telemetryStreamer = new TelemetryStreamer(telemetryCollector.getStore(), MAX_TELEMETRY_SUBSCRIBERS);
+            s.setTelemetryStreamer(telemetryStreamer);
+            commandRunner = new CommandRunner(allowedCommands(), MAX_COMMANDS, COMMAND_TIMEOUT_MS);
+            s.getRouter().get("/cgi-bin/{command}", commandRunner);
             s.start();
         } else {
             Log.d(TAG, "Server is already running.");
@@ -176,27 +210,6 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         return c; // returns null if camera is unavailable
     }
 
-    private Camera.PictureCallback mPicture = new Camera.PictureCallback() {
-        @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            Log.d(TAG, "Saving image...");
-            File pictureFile = new File(Environment.getExternalStorageDirectory().getAbsolutePath().toString() + "/camera.jpg");
-            if (pictureFile == null){
-                Log.d(TAG, "Error creating media file, check storage permissions");
-                return;
-            }
-            try {
-                FileOutputStream fos = new FileOutputStream(pictureFile);
-                fos.write(data);
-                fos.close();
-            } catch (FileNotFoundException e) {
-                Log.d(TAG, "File not found: " + e.getMessage());
-            } catch (IOException e) {
-                Log.d(TAG, "Error accessing file: " + e.getMessage());
-            }
-        }
-    };
-
     private void changeFilePermissions() {
         File file = new File(Environment.getExternalStorageDirectory(), "post.html");
         if (file.exists()) {
@@ -319,6 +332,19 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 e.printStackTrace();
             }
         }
+        if (frameProducer != null) {
+            frameProducer.stop();
+        }
+        mjpegStreamer.close();
+        if (telemetryStreamer != null) {
+            telemetryStreamer.close();
+        }
+        if (telemetryCollector != null) {
+            telemetryCollector.close();
+        }
+        if (commandRunner != null) {
+            commandRunner.close();
+        }
         if (mCamera != null) {
             mCamera.release();
             mCamera = null;
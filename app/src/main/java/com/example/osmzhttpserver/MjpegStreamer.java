@@ -0,0 +1,225 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fan-out of an MJPEG live stream. The camera side publishes each JPEG once into a latest-frame
+ * slot; every viewer runs its own writer loop that always sends the newest frame, so a slow
+ * client skips frames instead of holding up the camera or the other viewers.
+ */
+public class MjpegStreamer {
+    private static final String TAG = "MjpegStreamer";
+    private static final String BOUNDARY = "OSMZ_boundary";
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final String NO_CACHE = "Cache-Control: no-cache, no-store, must-revalidate\r\nPragma: no-cache\r\n";
+    // A viewer whose stream has had no new frame for this long is ended
+    private static final long STALL_TIMEOUT_MS = 10 * 1000;
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private volatile int maxFps;
+    private volatile int maxViewers;
+
+    // Guarded by this; viewers wait on it for the next frame
+    private Frame latest;
+    private long nextSequence = 1;
+    private boolean closed;
+    // Bumped to end the streams of the current viewers
+    private int generation;
+    private volatile long lastPublishNanos;
+
+    private final AtomicInteger viewerCount = new AtomicInteger();
+    private final AtomicLong publishedFrames = new AtomicLong();
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong rejectedViewers = new AtomicLong();
+
+    /** One encoded frame, shared read-only by all viewers. */
+    static final class Frame {
+        final long sequence;
+        final long timestampMs;
+        final byte[] jpeg;
+        final long encodeMicros;
+        final byte[] partHeader;
+
+        Frame(long sequence, long timestampMs, byte[] jpeg, long encodeMicros) {
+            this.sequence = sequence;
+            this.timestampMs = timestampMs;
+            this.jpeg = jpeg;
+            this.encodeMicros = encodeMicros;
+            this.partHeader = ("--" + BOUNDARY + "\r\n" +
+                    "Content-Type: image/jpeg\r\n" +
+                    "Content-Length: " + jpeg.length + "\r\n" +
+                    (encodeMicros >= 0 ? "X-Encode-Micros: " + encodeMicros + "\r\n" : "") +
+                    "X-Timestamp: " + timestampMs + "\r\n\r\n").getBytes();
+        }
+    }
+
+    /**
+     * @param maxFps     frames per second handed out at most; the producer skips encoding above it
+     * @param maxViewers concurrent viewers; each one occupies a worker thread while it watches
+     */
+    public MjpegStreamer(int maxFps, int maxViewers) {
+        this.maxFps = maxFps;
+        this.maxViewers = maxViewers;
+        // nanoTime has an arbitrary origin, start as if the last frame was long ago
+        this.lastPublishNanos = System.nanoTime() - 60 * 1000000000L;
+    }
+
+    public void setMaxFps(int maxFps) {
+        this.maxFps = maxFps;
+    }
+
+    public void setMaxViewers(int maxViewers) {
+        this.maxViewers = maxViewers;
+    }
+
+    /**
+     * Whether the producer should encode a frame now: somebody is watching and the FPS cap
+     * allows another frame. Cheap enough to call for every preview frame.
+     */
+    public boolean wantsFrame() {
+        if (viewerCount.get() == 0) {
+            return false;
+        }
+        int fps = maxFps;
+        return fps <= 0 || System.nanoTime() - lastPublishNanos >= 1000000000L / fps;
+    }
+
+    /** Makes a JPEG the latest frame and wakes the viewers. Never blocks on a viewer. */
+    public void publish(byte[] jpeg) {
+        publish(jpeg, -1);
+    }
+
+    /** Like {@link #publish(byte[])}, telling viewers in each part how long the frame took to encode. */
+    public void publish(byte[] jpeg, long encodeMicros) {
+        lastPublishNanos = System.nanoTime();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            latest = new Frame(nextSequence++, System.currentTimeMillis(), jpeg, encodeMicros);
+            notifyAll();
+        }
+        publishedFrames.incrementAndGet();
+    }
+
+    /** Most recent frame, or null before the first one. */
+    synchronized Frame getLatestFrame() {
+        return latest;
+    }
+
+    /** Ends the streams of everybody watching now; new viewers can still connect. */
+    public synchronized void disconnectViewers() {
+        generation++;
+        notifyAll();
+    }
+
+    /** Ends all streams for good and ignores further frames. */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Serves a multipart/x-mixed-replace stream on the calling thread until the client goes away,
+     * the camera stalls or the streamer is closed.
+     */
+    public void stream(HttpOutput output, HttpRequest request) throws IOException {
+        // The stream ends only with the connection
+        request.setKeepAlive(false);
+        // Taken before the viewer counts, so a disconnect from then on is never missed
+        int joinedGeneration;
+        synchronized (this) {
+            joinedGeneration = generation;
+        }
+        if (!addViewer()) {
+            Log.d(TAG, "Viewer limit reached");
+            rejectedViewers.incrementAndGet();
+            ResponseHeaderWriter.begin(503)
+                    .header("Retry-After", RETRY_AFTER_SECONDS)
+                    .contentLength(0)
+                    .connection(false)
+                    .writeTo(output);
+            return;
+        }
+        try {
+            ResponseHeaderWriter.begin(200)
+                    .contentType("multipart/x-mixed-replace; boundary=" + BOUNDARY)
+                    .lines(NO_CACHE)
+                    .connection(false)
+                    .writeTo(output);
+            output.flush();
+
+            long lastSequence = 0;
+            Frame frame;
+            while ((frame = awaitFrameAfter(lastSequence, joinedGeneration)) != null) {
+                if (lastSequence != 0 && frame.sequence > lastSequence + 1) {
+                    skippedFrames.addAndGet(frame.sequence - lastSequence - 1);
+                }
+                output.write(frame.partHeader, 0, frame.partHeader.length, frame.jpeg, 0, frame.jpeg.length);
+                output.write(CRLF);
+                output.flush();
+                sentFrames.incrementAndGet();
+                lastSequence = frame.sequence;
+            }
+        } finally {
+            viewerCount.decrementAndGet();
+        }
+    }
+
+    private boolean addViewer() {
+        while (true) {
+            int count = viewerCount.get();
+            if (count >= maxViewers) {
+                return false;
+            }
+            if (viewerCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Waits for a frame newer than the given sequence; null once disconnected or stalled. */
+    private synchronized Frame awaitFrameAfter(long sequence, int joinedGeneration) throws IOException {
+        long deadline = System.currentTimeMillis() + STALL_TIMEOUT_MS;
+        while (!closed && generation == joinedGeneration && (latest == null || latest.sequence <= sequence)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                Log.d(TAG, "No frames from the camera, ending stream");
+                return null;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        return closed || generation != joinedGeneration ? null : latest;
+    }
+
+    public int getViewerCount() {
+        return viewerCount.get();
+    }
+
+    public long getPublishedFrames() {
+        return publishedFrames.get();
+    }
+
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    /** Frames viewers skipped because they were still sending an older one. */
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    public long getRejectedViewers() {
+        return rejectedViewers.get();
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.osmzhttpserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming parser for multipart/form-data bodies. The body is scanned for the boundary in a
+ * single fixed-size buffer and every file part is written straight to a temporary file, which is
+ * renamed into place once the part is complete. Memory use does not depend on the upload size and
+ * the content is stored byte for byte.
+ */
+public class MultipartStreamParser {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PART_HEADER_SIZE = 8 * 1024;
+    // RFC 2046 limits boundaries to 70 characters
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final File directory;
+    private final long maxPartSize;
+    private final int maxParts;
+
+    // Unconsumed input is buffer[pos, limit)
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /** Thrown when an upload exceeds the configured part size or part count. */
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    public MultipartStreamParser(InputStream in, String boundary, File directory, long maxPartSize, int maxParts) throws ProtocolException {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new ProtocolException("Invalid multipart boundary");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes();
+        this.directory = directory;
+        this.maxPartSize = maxPartSize;
+        this.maxParts = maxParts;
+    }
+
+    /** Boundary parameter of a multipart Content-Type header, or null if there is none. */
+    public static String boundaryFrom(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith("multipart/")) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "boundary=", 0, 9)) {
+                return unquote(param.substring(9));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the whole body and stores every part that carries a filename.
+     *
+     * @return the stored files in upload order
+     */
+    public List<File> parse() throws IOException {
+        List<File> stored = new ArrayList<>();
+        // The first boundary is not preceded by CRLF; pretend it is so one delimiter fits all
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+        if (!copyToDelimiter(null, Long.MAX_VALUE)) {
+            throw new ProtocolException("Multipart boundary not found");
+        }
+
+        int parts = 0;
+        while (true) {
+            if (!fill(2)) {
+                throw new ProtocolException("Truncated multipart body");
+            }
+            if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+                return stored;
+            }
+            if (buffer[pos] != '\r' || buffer[pos + 1] != '\n') {
+                throw new ProtocolException("Malformed multipart boundary");
+            }
+            pos += 2;
+            if (++parts > maxParts) {
+                throw new LimitExceededException("More than " + maxParts + " parts");
+            }
+
+            String filename = sanitizeFilename(readPartHeaders());
+            if (filename == null) {
+                // Plain form field or empty file input
+                if (!copyToDelimiter(null, Long.MAX_VALUE)) {
+                    throw new ProtocolException("Truncated multipart body");
+                }
+                continue;
+            }
+            stored.add(storePart(filename));
+        }
+    }
+
+    private File storePart(String filename) throws IOException {
+        File temp = File.createTempFile(".upload-", ".tmp", directory);
+        boolean complete = false;
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            if (!copyToDelimiter(out, maxPartSize)) {
+                throw new ProtocolException("Truncated multipart body");
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                temp.delete();
+            }
+        }
+
+        File target = new File(directory, filename);
+        // rename(2) replaces the target atomically, readers never see a partial file
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not move upload to " + target.getAbsolutePath());
+        }
+        return target;
+    }
+
+    /**
+     * Copies bytes up to the next delimiter into out (or discards them when out is null) and
+     * consumes the delimiter.
+     *
+     * @return false if the input ended before a delimiter was found
+     */
+    private boolean copyToDelimiter(OutputStream out, long maxBytes) throws IOException {
+        long copied = 0;
+        while (true) {
+            int index = indexOfDelimiter();
+            if (index >= 0) {
+                copied = copy(out, index - pos, copied, maxBytes);
+                pos = index + delimiter.length;
+                return true;
+            }
+            // Everything but a tail that could be the start of a delimiter is part content
+            int safeEnd = Math.max(pos, limit - (delimiter.length - 1));
+            copied = copy(out, safeEnd - pos, copied, maxBytes);
+            if (eof) {
+                return false;
+            }
+            readMore();
+        }
+    }
+
+    private long copy(OutputStream out, int length, long copied, long maxBytes) throws IOException {
+        copied += length;
+        if (copied > maxBytes) {
+            throw new LimitExceededException("Part larger than " + maxBytes + " bytes");
+        }
+        if (out != null && length > 0) {
+            out.write(buffer, pos, length);
+        }
+        pos += length;
+        return copied;
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /** Reads the part's header block and returns its Content-Disposition value, if any. */
+    private String readPartHeaders() throws IOException {
+        String disposition = null;
+        int headerBytes = 0;
+        while (true) {
+            int end = indexOfCrlf();
+            while (end < 0) {
+                if (limit - pos >= MAX_PART_HEADER_SIZE || eof) {
+                    throw new ProtocolException("Malformed multipart part header");
+                }
+                readMore();
+                end = indexOfCrlf();
+            }
+            String line = new String(buffer, pos, end - pos, "ISO-8859-1");
+            headerBytes += end - pos + 2;
+            pos = end + 2;
+            if (headerBytes > MAX_PART_HEADER_SIZE) {
+                throw new ProtocolException("Multipart part header too large");
+            }
+            if (line.isEmpty()) {
+                return disposition;
+            }
+            if (line.regionMatches(true, 0, "Content-Disposition:", 0, 20)) {
+                disposition = line.substring(20).trim();
+            }
+        }
+    }
+
+    private int indexOfCrlf() {
+        for (int i = pos; i + 1 < limit; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Makes sure at least count bytes are buffered; false if the input ends first. */
+    private boolean fill(int count) throws IOException {
+        while (limit - pos < count) {
+            if (eof) {
+                return false;
+            }
+            readMore();
+        }
+        return true;
+    }
+
+    private void readMore() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /** Base name of the disposition's filename parameter, or null if it has no usable one. */
+    static String sanitizeFilename(String disposition) {
+        if (disposition == null) {
+            return null;
+        }
+        String filename = null;
+        for (String param : disposition.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "filename=", 0, 9)) {
+                filename = unquote(param.substring(9));
+            }
+        }
+        if (filename == null) {
+            return null;
+        }
+        // Browsers may send a full client path; never let it escape the upload directory
+        filename = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1).trim();
+        if (filename.isEmpty() || filename.equals(".") || filename.equals("..")) {
+            return null;
+        }
+        return filename;
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,621 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection owned by a {@link NioEventLoop}. The loop thread fills the inbound buffer
+ * and drains the outbound queue; the worker serving a request sees them as ordinary blocking
+ * streams. Reads park until the loop has data; writes are queued and only park while the loop is
+ * a high-water mark behind, so a slow reader holds a worker for that long at most. A detached
+ * connection stays with the loop, which writes whatever is pushed to it until the client goes away.
+ */
+class NioConnection {
+    private static final String TAG = "NioConnection";
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int WRITE_HIGH_WATERMARK = 64 * 1024;
+    private static final long STREAM_TIMEOUT_MS = 30 * 1000;
+
+    private static final int STATE_READING = 0;
+    private static final int STATE_PROCESSING = 1;
+    private static final int STATE_CLOSED = 2;
+    private static final int STATE_PUSHING = 3;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    // Bytes received but not yet consumed, in inbound[inPos, inLimit)
+    private final byte[] inbound = new byte[BUFFER_SIZE];
+    private int inPos;
+    private int inLimit;
+    private boolean inputEof;
+    private boolean readWanted;
+    // Fed on the loop thread while READING; its request belongs to the worker while PROCESSING
+    private final HttpRequestParser parser = new HttpRequestParser();
+
+    // ByteBuffers and FileRegions in the order they have to go out
+    private final ArrayDeque<Object> outbound = new ArrayDeque<>();
+    private long outboundBytes;
+    private boolean finished;
+    private boolean keepAlive;
+    private int requestCount;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private int state = STATE_READING;
+    private final RequestInputStream inputStream = new RequestInputStream();
+    private final ResponseOutputStream outputStream = new ResponseOutputStream();
+    private final NioPushConnection pushConnection = new NioPushConnection();
+    // Set once the connection has been detached, so the worker leaves it alone even after a close
+    private boolean detached;
+
+    NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /** Called on the loop thread when the channel has data. */
+    void onReadable() throws IOException {
+        boolean startRequest = false;
+        synchronized (this) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            if (!makeRoomForRead()) {
+                // Worker has not consumed what we have yet, stop reading until it asks again
+                setInterest(SelectionKey.OP_READ, false);
+                return;
+            }
+
+            int n = channel.read(ByteBuffer.wrap(inbound, inLimit, inbound.length - inLimit));
+            if (n < 0) {
+                inputEof = true;
+                if (state == STATE_READING || state == STATE_PUSHING) {
+                    close();
+                    return;
+                }
+                setInterest(SelectionKey.OP_READ, false);
+                notifyAll();
+                return;
+            }
+            inLimit += n;
+            lastActivity = System.currentTimeMillis();
+
+            if (state == STATE_PUSHING) {
+                // Push clients have nothing more to say, drop what they send
+                inPos = 0;
+                inLimit = 0;
+            } else if (state == STATE_PROCESSING) {
+                if (!readWanted) {
+                    setInterest(SelectionKey.OP_READ, false);
+                }
+                notifyAll();
+            } else {
+                startRequest = parseBuffered();
+            }
+        }
+        if (startRequest) {
+            startRequest();
+        }
+    }
+
+    /** Called on the loop thread when the channel can take more bytes. */
+    void onWritable() throws IOException {
+        synchronized (this) {
+            if (state == STATE_CLOSED) {
+                return;
+            }
+            boolean drained = writeOutbound();
+            // Workers park for room below the high-water mark, not only for an empty queue
+            notifyAll();
+            if (!drained) {
+                return;
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+            if (!finished || state == STATE_PUSHING) {
+                return;
+            }
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            // Response is on the wire, go back to reading; a pipelined request may already be buffered
+            finished = false;
+            state = STATE_READING;
+            parser.reset();
+            setInterest(SelectionKey.OP_READ, true);
+            if (!parseBuffered()) {
+                return;
+            }
+        }
+        startRequest();
+    }
+
+    /** Writes as much of the outbound queue as the socket takes; true once it is empty. */
+    private boolean writeOutbound() throws IOException {
+        while (!outbound.isEmpty()) {
+            Object head = outbound.peekFirst();
+            if (head instanceof FileRegion) {
+                FileRegion region = (FileRegion) head;
+                if (region.remaining > 0) {
+                    long n = region.file.transferTo(region.position, region.remaining, channel);
+                    if (n <= 0 && region.position >= region.file.size()) {
+                        throw new IOException("File shorter than expected");
+                    }
+                    region.position += n;
+                    region.remaining -= n;
+                    if (n > 0) {
+                        lastActivity = System.currentTimeMillis();
+                    }
+                }
+                if (region.remaining > 0) {
+                    return false;
+                }
+                outbound.pollFirst();
+                region.release();
+            } else {
+                // Gather the run of buffers up to the next file region into one write
+                ArrayDeque<ByteBuffer> run = new ArrayDeque<>();
+                for (Object segment : outbound) {
+                    if (!(segment instanceof ByteBuffer)) {
+                        break;
+                    }
+                    run.add((ByteBuffer) segment);
+                }
+                long written = channel.write(run.toArray(new ByteBuffer[run.size()]));
+                outboundBytes -= written;
+                if (written > 0) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                while (!outbound.isEmpty() && outbound.peekFirst() instanceof ByteBuffer
+                        && !((ByteBuffer) outbound.peekFirst()).hasRemaining()) {
+                    outbound.pollFirst();
+                }
+                if (!outbound.isEmpty() && outbound.peekFirst() instanceof ByteBuffer) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** True if the connection has been waiting for a new request since before the cutoff. */
+    synchronized boolean isIdleSince(long cutoff) {
+        return state == STATE_READING && lastActivity < cutoff;
+    }
+
+    synchronized void close() {
+        if (state == STATE_CLOSED) {
+            return;
+        }
+        state = STATE_CLOSED;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing channel: " + e.getMessage());
+        }
+        // Files handed over with their regions are closed here if they were never finished
+        for (Object segment : outbound) {
+            if (segment instanceof FileRegion) {
+                ((FileRegion) segment).release();
+            }
+        }
+        outbound.clear();
+        outboundBytes = 0;
+        notifyAll();
+    }
+
+    private void startRequest() {
+        final boolean allowKeepAlive;
+        final HttpRequest request = parser.getRequest();
+        synchronized (this) {
+            state = STATE_PROCESSING;
+            setInterest(SelectionKey.OP_READ, false);
+            requestCount++;
+            allowKeepAlive = requestCount < loop.getServer().getMaxRequestsPerConnection();
+        }
+        boolean queued = loop.getDispatcher().dispatch(new Runnable() {
+            @Override
+            public void run() {
+                boolean reuse = false;
+                try {
+                    reuse = loop.getServer().handleRequest(request, inputStream, outputStream, allowKeepAlive);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error handling request: " + e.getMessage());
+                } finally {
+                    outputStream.finish(reuse);
+                }
+            }
+        });
+        if (!queued) {
+            synchronized (this) {
+                respondAndClose(loop.getServer().buildRejectResponse());
+            }
+        }
+    }
+
+    /** Queues a canned response and closes once it has been written. Loop thread only. */
+    private void respondAndClose(byte[] response) {
+        outbound.add(ByteBuffer.wrap(response));
+        outboundBytes += response.length;
+        finished = true;
+        keepAlive = false;
+        state = STATE_PROCESSING;
+        setInterest(SelectionKey.OP_READ, false);
+        setInterest(SelectionKey.OP_WRITE, true);
+    }
+
+    /** Feeds buffered bytes to the parser; true once a request head is complete. Loop thread only. */
+    private boolean parseBuffered() {
+        try {
+            inPos += parser.feed(inbound, inPos, inLimit - inPos);
+        } catch (HttpRequestParser.HeaderTooLargeException e) {
+            Log.d(TAG, "Invalid request: " + e.getMessage());
+            respondAndClose(SocketServer.REQUEST_HEADER_TOO_LARGE);
+            return false;
+        } catch (ProtocolException e) {
+            Log.d(TAG, "Invalid request: " + e.getMessage());
+            respondAndClose(SocketServer.BAD_REQUEST);
+            return false;
+        }
+        return parser.isComplete();
+    }
+
+    /** Compacts the inbound buffer; false when it is full of bytes the worker has not read yet. */
+    private boolean makeRoomForRead() {
+        if (inPos > 0) {
+            System.arraycopy(inbound, inPos, inbound, 0, inLimit - inPos);
+            inLimit -= inPos;
+            inPos = 0;
+        }
+        return inLimit < inbound.length;
+    }
+
+    private void setInterest(int op, boolean enabled) {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(enabled ? ops | op : ops & ~op);
+    }
+
+    /** Asks the loop to change interest ops on its own thread. */
+    private void requestInterest(final int op) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NioConnection.this) {
+                    if (state != STATE_CLOSED) {
+                        setInterest(op, true);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Waits for the loop; times out only if the socket has made no progress for a while. */
+    private void awaitProgress(long waitStart) throws IOException {
+        long deadline = Math.max(waitStart, lastActivity) + STREAM_TIMEOUT_MS;
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timed out waiting for client");
+        }
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /** Request bytes as seen by the worker; parks until the loop has read more from the socket. */
+    private class RequestInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            synchronized (NioConnection.this) {
+                if (!awaitInput()) {
+                    return -1;
+                }
+                return inbound[inPos++] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (NioConnection.this) {
+                if (!awaitInput()) {
+                    return -1;
+                }
+                int n = Math.min(len, inLimit - inPos);
+                System.arraycopy(inbound, inPos, b, off, n);
+                inPos += n;
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (NioConnection.this) {
+                return inLimit - inPos;
+            }
+        }
+
+        /** Parks until buffered input is available; false at end of stream. */
+        private boolean awaitInput() throws IOException {
+            long waitStart = System.currentTimeMillis();
+            while (inPos == inLimit) {
+                if (inputEof || state == STATE_CLOSED) {
+                    return false;
+                }
+                if (!readWanted) {
+                    readWanted = true;
+                    requestInterest(SelectionKey.OP_READ);
+                }
+                awaitProgress(waitStart);
+            }
+            readWanted = false;
+            return true;
+        }
+    }
+
+    /**
+     * Response bytes queued for the loop. Writes park only while the loop is a high-water mark
+     * behind, or when the caller keeps ownership of what it passed in.
+     */
+    private class ResponseOutputStream extends HttpOutput {
+        private ByteBuffer staging = ByteBuffer.allocate(BUFFER_SIZE);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (NioConnection.this) {
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                while (len > 0) {
+                    int n = Math.min(len, staging.remaining());
+                    staging.put(b, off, n);
+                    off += n;
+                    len -= n;
+                    if (!staging.hasRemaining()) {
+                        pushStaging();
+                    }
+                }
+                awaitRoom();
+            }
+        }
+
+        @Override
+        public void write(byte[] head, int headOffset, int headLength, byte[] body, int bodyOffset, int bodyLength) throws IOException {
+            synchronized (NioConnection.this) {
+                if (bodyLength < WRITE_HIGH_WATERMARK) {
+                    // Copied, so the worker can move on while the loop sends it
+                    super.write(head, headOffset, headLength, body, bodyOffset, bodyLength);
+                    return;
+                }
+                write(head, headOffset, headLength);
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                // The body is queued without copying; the loop gathers it with the head into one write
+                pushStaging();
+                outbound.add(ByteBuffer.wrap(body, bodyOffset, bodyLength));
+                outboundBytes += bodyLength;
+                // The caller owns the array, so wait until the loop has sent it
+                awaitDrained();
+            }
+        }
+
+        /** Hands what is staged to the loop; returns without waiting for it to be written. */
+        @Override
+        public void flush() throws IOException {
+            synchronized (NioConnection.this) {
+                if (state == STATE_PUSHING) {
+                    return;
+                }
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                pushStaging();
+                if (!outbound.isEmpty()) {
+                    requestInterest(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            synchronized (NioConnection.this) {
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                pushStaging();
+                outbound.add(new FileRegion(file, position, count, false));
+                // The caller owns the channel, so wait until the loop has sent the region
+                awaitDrained();
+            }
+        }
+
+        /** Queues the region and returns; the loop closes the channel once it is sent or the connection fails. */
+        @Override
+        public void transferAndClose(FileChannel file, long position, long count) throws IOException {
+            synchronized (NioConnection.this) {
+                if (state == STATE_CLOSED) {
+                    file.close();
+                    throw new IOException("Connection closed");
+                }
+                pushStaging();
+                outbound.add(new FileRegion(file, position, count, true));
+                requestInterest(SelectionKey.OP_WRITE);
+            }
+        }
+
+        /** Parks while the loop is a high-water mark or more behind. */
+        private void awaitRoom() throws IOException {
+            if (outboundBytes < WRITE_HIGH_WATERMARK) {
+                return;
+            }
+            requestInterest(SelectionKey.OP_WRITE);
+            long waitStart = System.currentTimeMillis();
+            while (true) {
+                // Checked first, a close empties the queue
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                if (outboundBytes < WRITE_HIGH_WATERMARK) {
+                    return;
+                }
+                awaitProgress(waitStart);
+            }
+        }
+
+        /** Parks until everything queued has been written, for data the caller still owns. */
+        private void awaitDrained() throws IOException {
+            requestInterest(SelectionKey.OP_WRITE);
+            long waitStart = System.currentTimeMillis();
+            while (true) {
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                if (outbound.isEmpty()) {
+                    return;
+                }
+                awaitProgress(waitStart);
+            }
+        }
+
+        /** Hands the rest of the response to the loop without waiting for it to be written. */
+        void finish(boolean reuse) {
+            synchronized (NioConnection.this) {
+                if (state == STATE_CLOSED || state == STATE_PUSHING) {
+                    return;
+                }
+                pushStaging();
+                finished = true;
+                keepAlive = reuse;
+                requestInterest(SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public PushConnection detach() throws IOException {
+            synchronized (NioConnection.this) {
+                flush();
+                if (state == STATE_CLOSED) {
+                    throw new IOException("Connection closed");
+                }
+                state = STATE_PUSHING;
+                detached = true;
+                // Reading on tells the loop when the client hangs up
+                requestInterest(SelectionKey.OP_READ);
+                return pushConnection;
+            }
+        }
+
+        @Override
+        public boolean isDetached() {
+            synchronized (NioConnection.this) {
+                return state == STATE_PUSHING || (state == STATE_CLOSED && detached);
+            }
+        }
+
+        private void pushStaging() {
+            if (staging.position() == 0) {
+                return;
+            }
+            staging.flip();
+            outbound.add(staging);
+            outboundBytes += staging.remaining();
+            staging = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    /** Push side of the connection; the loop writes what is queued as the socket takes it. */
+    private class NioPushConnection implements PushConnection {
+        @Override
+        public boolean send(ByteBuffer data) {
+            synchronized (NioConnection.this) {
+                if (state != STATE_PUSHING) {
+                    return false;
+                }
+                boolean idle = outbound.isEmpty();
+                outbound.add(data);
+                outboundBytes += data.remaining();
+                if (idle) {
+                    requestInterest(SelectionKey.OP_WRITE);
+                }
+                return true;
+            }
+        }
+
+        @Override
+        public long getBacklog() {
+            synchronized (NioConnection.this) {
+                return outboundBytes;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            synchronized (NioConnection.this) {
+                return state == STATE_PUSHING;
+            }
+        }
+
+        @Override
+        public void close() {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    NioConnection.this.close();
+                }
+            });
+        }
+    }
+
+    /** Part of a file still to be written with transferTo. */
+    private static class FileRegion {
+        final FileChannel file;
+        // Whether the channel was handed over and is closed once the region is done with
+        final boolean owned;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel file, long position, long count, boolean owned) {
+            this.file = file;
+            this.owned = owned;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        void release() {
+            if (!owned) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing file: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector based front end for {@link SocketServer}. A single loop thread accepts connections,
+ * reads request headers and writes responses without blocking; only complete requests are handed
+ * to the worker pool, so idle or slow clients do not hold a worker thread.
+ */
+public class NioEventLoop implements Runnable {
+    private static final String TAG = "NioEventLoop";
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+    private final SocketServer server;
+    private final ConnectionDispatcher dispatcher;
+    private final int port;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+
+    public NioEventLoop(SocketServer server, ConnectionDispatcher dispatcher, int port) {
+        this.server = server;
+        this.dispatcher = dispatcher;
+        this.port = port;
+    }
+
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            server.setLocalPort(serverChannel.socket().getLocalPort());
+            Log.d(TAG, "Listening on port " + server.getLocalPort());
+
+            long lastIdleCheck = System.currentTimeMillis();
+            while (!closed) {
+                selector.select(IDLE_CHECK_INTERVAL_MS);
+                runPendingTasks();
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL_MS) {
+                    closeIdleConnections(now - server.getKeepAliveTimeoutMs());
+                    lastIdleCheck = now;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else {
+                        handleConnectionEvent(key);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            Log.d(TAG, "Selector closed");
+        } catch (IOException e) {
+            Log.e(TAG, "Event loop failed: " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /** Runs a task on the loop thread; the only safe place to touch selection keys. */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    SocketServer getServer() {
+        return server;
+    }
+
+    ConnectionDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new NioConnection(this, channel, key));
+        }
+    }
+
+    private void handleConnectionEvent(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Connection error: " + e.getMessage());
+            connection.close();
+        }
+    }
+
+    private void closeIdleConnections(long cutoff) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection && ((NioConnection) attachment).isIdleSince(cutoff)) {
+                Log.d(TAG, "Closing idle connection");
+                ((NioConnection) attachment).close();
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.e(TAG, "Error running loop task: " + e.getMessage());
+            }
+        }
+    }
+
+    private void shutdown() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof NioConnection) {
+                    ((NioConnection) attachment).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing selector: " + e.getMessage());
+            }
+        }
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing server channel: " + e.getMessage());
+            }
+        }
+        server.setLocalPort(-1);
+        Log.d(TAG, "Normal exit");
+    }
+}
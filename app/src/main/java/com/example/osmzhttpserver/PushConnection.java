@@ -0,0 +1,25 @@
+package com.example.osmzhttpserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Client connection taken over from its worker after a response head, for streams that push
+ * data for as long as the client listens. Sends queue the bytes and return at once, so a single
+ * thread can feed many connections without a slow client holding it up.
+ */
+public interface PushConnection {
+    /**
+     * Queues bytes behind everything sent before. The buffer must not be modified afterwards; one
+     * buffer's content may be shared by many connections through duplicates.
+     *
+     * @return false if the connection is closed
+     */
+    boolean send(ByteBuffer data);
+
+    /** Bytes queued but not yet taken by the socket; grows while the client falls behind. */
+    long getBacklog();
+
+    boolean isOpen();
+
+    void close();
+}
@@ -0,0 +1,216 @@
+package com.example.osmzhttpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds response heads from pre-encoded status lines and header names in a per-thread buffer,
+ * so a response costs no string concatenation, date formatting or charset encoding. The Date line
+ * is formatted at most once per second and shared by all threads. The finished head goes out in a
+ * single write, together with small bodies where the output supports it.
+ */
+public final class ResponseHeaderWriter {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final byte[] HTTP_1_1 = "HTTP/1.1 ".getBytes();
+    private static final byte[] CRLF = "\r\n".getBytes();
+    private static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes();
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes();
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes();
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes();
+    private static final byte[] COLON = ": ".getBytes();
+
+    // Status lines of the codes the server sends, indexed by status code
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    static {
+        int[] codes = {200, 206, 304, 400, 404, 405, 411, 413, 416, 431, 500, 501, 503};
+        for (int code : codes) {
+            STATUS_LINES[code] = ("HTTP/1.1 " + code + " " + reasonPhrase(code) + "\r\n").getBytes();
+        }
+    }
+
+    private static final ThreadLocal<ResponseHeaderWriter> WRITERS = new ThreadLocal<ResponseHeaderWriter>() {
+        @Override
+        protected ResponseHeaderWriter initialValue() {
+            return new ResponseHeaderWriter();
+        }
+    };
+
+    private static volatile DateLine dateLine;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    private ResponseHeaderWriter() {
+    }
+
+    /** Starts a response head with the status line and Date header, reusing this thread's buffer. */
+    public static ResponseHeaderWriter begin(int statusCode) {
+        ResponseHeaderWriter writer = WRITERS.get();
+        writer.length = 0;
+        byte[] statusLine = statusCode >= 0 && statusCode < STATUS_LINES.length ? STATUS_LINES[statusCode] : null;
+        if (statusLine != null) {
+            writer.append(statusLine);
+        } else {
+            writer.append(HTTP_1_1).appendNumber(statusCode).appendAscii(" ").appendAscii(reasonPhrase(statusCode)).append(CRLF);
+        }
+        return writer.append(currentDateLine(System.currentTimeMillis()));
+    }
+
+    public ResponseHeaderWriter contentType(String contentType) {
+        return append(CONTENT_TYPE).appendAscii(contentType).append(CRLF);
+    }
+
+    public ResponseHeaderWriter contentLength(long contentLength) {
+        return append(CONTENT_LENGTH).appendNumber(contentLength).append(CRLF);
+    }
+
+    public ResponseHeaderWriter header(String name, String value) {
+        return appendAscii(name).append(COLON).appendAscii(value).append(CRLF);
+    }
+
+    public ResponseHeaderWriter header(String name, long value) {
+        return appendAscii(name).append(COLON).appendNumber(value).append(CRLF);
+    }
+
+    /** Appends complete header lines, each already terminated by CRLF. */
+    public ResponseHeaderWriter lines(byte[] headerLines) {
+        return append(headerLines);
+    }
+
+    /** Appends complete header lines, each already terminated by CRLF. */
+    public ResponseHeaderWriter lines(String headerLines) {
+        return appendAscii(headerLines);
+    }
+
+    public ResponseHeaderWriter connection(boolean keepAlive) {
+        return append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    /** Ends the head and writes it with one call. */
+    public void writeTo(OutputStream out) throws IOException {
+        append(CRLF);
+        out.write(buffer, 0, length);
+    }
+
+    /** Ends the head and writes it followed by the body, as one gathering write where possible. */
+    public void writeTo(HttpOutput out, byte[] body) throws IOException {
+        append(CRLF);
+        out.write(buffer, 0, length, body, 0, body.length);
+    }
+
+    /** Like {@link #writeTo(HttpOutput, byte[])} for a part of a reused array. */
+    public void writeTo(HttpOutput out, byte[] body, int offset, int count) throws IOException {
+        append(CRLF);
+        out.write(buffer, 0, length, body, offset, count);
+    }
+
+    /** Ends the head and returns a copy, for canned responses. */
+    public byte[] toByteArray() {
+        append(CRLF);
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+
+    /** "Date: ...\r\n" for the given time, formatted once per second. */
+    static byte[] currentDateLine(long now) {
+        long second = now / 1000;
+        DateLine line = dateLine;
+        if (line == null || line.second != second) {
+            // Racing threads may both format; either result is correct
+            line = new DateLine(second, ("Date: " + HttpDates.format(second * 1000) + "\r\n").getBytes());
+            dateLine = line;
+        }
+        return line.bytes;
+    }
+
+    static String reasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 416:
+                return "Range Not Satisfiable";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 501:
+                return "Not Implemented";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Unknown";
+        }
+    }
+
+    private ResponseHeaderWriter append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    /** Header values are ASCII; anything else is replaced rather than encoded. */
+    private ResponseHeaderWriter appendAscii(String value) {
+        int n = value.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            buffer[length++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        return this;
+    }
+
+    private ResponseHeaderWriter appendNumber(long value) {
+        if (value < 0) {
+            ensureCapacity(1);
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private static class DateLine {
+        final long second;
+        final byte[] bytes;
+
+        DateLine(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.osmzhttpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps request method and path to handlers. Patterns are exact ("/telemetry"), parameterized
+ * ("/cgi-bin/{command}", the value is read with {@link HttpRequest#getPathParameter}) or prefixes
+ * ending in "/*" ("/files/*", "/*" for everything). Exact paths are one hash lookup; the rest walk
+ * a trie of path segments, one hash lookup per segment, so lookups do not slow down as routes are
+ * added. Literal segments win over parameters and the longest prefix wins. Routes may be added
+ * while the server runs.
+ */
+public class Router {
+    private static final int METHOD_COUNT = HttpMethod.values().length;
+
+    /** Serves a routed request; the response goes to out, the request body is read from body. */
+    public interface Handler {
+        void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException;
+    }
+
+    /** Handlers of one pattern, by method. */
+    private static final class Route {
+        final String pattern;
+        // Names of the {parameters} in pattern order, null without any
+        final String[] parameterNames;
+        // Indexed by method ordinal; copied on change so lookups read it without locking
+        private volatile Handler[] handlers = new Handler[METHOD_COUNT];
+
+        Route(String pattern, String[] parameterNames) {
+            this.pattern = pattern;
+            this.parameterNames = parameterNames;
+        }
+
+        Handler handlerFor(HttpMethod method) {
+            return handlers[method.ordinal()];
+        }
+
+        synchronized void set(HttpMethod method, Handler handler) {
+            Handler[] next = handlers.clone();
+            next[method.ordinal()] = handler;
+            handlers = next;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        volatile Node parameter;
+        // Pattern ending at this node
+        volatile Route route;
+        // Pattern ending at this node with "/*"
+        volatile Route prefix;
+    }
+
+    // Patterns without parameters or wildcards, by path
+    private final Map<String, Route> exact = new ConcurrentHashMap<>();
+    private final Node root = new Node();
+    // Most parameters of any pattern, the size of the array values are captured into
+    private volatile int maxParameters;
+    // Bit per method ordinal with a handler anywhere
+    private volatile int routedMethods;
+
+    public Router get(String pattern, Handler handler) {
+        return add(HttpMethod.GET, pattern, handler);
+    }
+
+    public Router post(String pattern, Handler handler) {
+        return add(HttpMethod.POST, pattern, handler);
+    }
+
+    /** Routes method and pattern to the handler, replacing any handler routed there before. */
+    public synchronized Router add(HttpMethod method, String pattern, Handler handler) {
+        if (method == HttpMethod.OTHER) {
+            throw new IllegalArgumentException("Unknown methods cannot be routed");
+        }
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must start with /: " + pattern);
+        }
+        routeFor(pattern).set(method, handler);
+        routedMethods |= 1 << method.ordinal();
+        return this;
+    }
+
+    /** Whether any pattern has a handler for the method. */
+    boolean routes(HttpMethod method) {
+        return (routedMethods & (1 << method.ordinal())) != 0;
+    }
+
+    /**
+     * Handler for method and path, with the route's parameters stored in request; null if no
+     * route has a handler for the method there.
+     */
+    Handler find(HttpMethod method, String path, HttpRequest request) {
+        if (!routes(method)) {
+            return null;
+        }
+        Route route = exact.get(path);
+        if (route != null && route.handlerFor(method) != null) {
+            return route.handlerFor(method);
+        }
+        String[] values = maxParameters > 0 ? new String[maxParameters] : null;
+        route = match(root, method, path, 0, values, 0);
+        if (route == null) {
+            return null;
+        }
+        if (route.parameterNames != null && request != null) {
+            request.setPathParameters(route.parameterNames, values);
+        }
+        return route.handlerFor(method);
+    }
+
+    /** Methods with a handler for the path, for the Allow header of a 405 answer; empty if none. */
+    String allowedMethods(String path) {
+        StringBuilder allow = new StringBuilder();
+        for (HttpMethod method : HttpMethod.values()) {
+            if (find(method, path, null) != null) {
+                if (allow.length() > 0) {
+                    allow.append(", ");
+                }
+                allow.append(method.name());
+            }
+        }
+        return allow.toString();
+    }
+
+    /**
+     * Walks the segment after path[slash]; literal children are tried before the parameter child,
+     * and a prefix route here is the fallback when nothing deeper handles the method.
+     */
+    private static Route match(Node node, HttpMethod method, String path, int slash, String[] values, int depth) {
+        if (slash >= path.length()) {
+            Route route = node.route;
+            return route != null && route.handlerFor(method) != null ? route : null;
+        }
+        int end = path.indexOf('/', slash + 1);
+        if (end < 0) {
+            end = path.length();
+        }
+        String segment = path.substring(slash + 1, end);
+        Route route = null;
+        Node child = node.children.get(segment);
+        if (child != null) {
+            route = match(child, method, path, end, values, depth);
+        }
+        Node parameter = node.parameter;
+        if (route == null && parameter != null && values != null && !segment.isEmpty() && depth < values.length) {
+            values[depth] = segment;
+            route = match(parameter, method, path, end, values, depth + 1);
+        }
+        if (route == null) {
+            route = node.prefix;
+            if (route != null && route.handlerFor(method) == null) {
+                route = null;
+            }
+        }
+        return route;
+    }
+
+    private Route routeFor(String pattern) {
+        if (pattern.indexOf('{') < 0 && !pattern.endsWith("/*")) {
+            Route route = exact.get(pattern);
+            if (route == null) {
+                route = new Route(pattern, null);
+                exact.put(pattern, route);
+            }
+            return route;
+        }
+
+        boolean isPrefix = pattern.endsWith("/*");
+        String body = isPrefix ? pattern.substring(0, pattern.length() - 2) : pattern;
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        int slash = 0;
+        while (slash < body.length()) {
+            int end = body.indexOf('/', slash + 1);
+            if (end < 0) {
+                end = body.length();
+            }
+            String segment = body.substring(slash + 1, end);
+            if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+                names.add(segment.substring(1, segment.length() - 1));
+                if (node.parameter == null) {
+                    node.parameter = new Node();
+                }
+                node = node.parameter;
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('*') >= 0) {
+                throw new IllegalArgumentException("Bad pattern segment: " + pattern);
+            } else {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            slash = end;
+        }
+        maxParameters = Math.max(maxParameters, names.size());
+
+        String[] parameterNames = names.isEmpty() ? null : names.toArray(new String[names.size()]);
+        if (isPrefix) {
+            if (node.prefix == null) {
+                node.prefix = new Route(pattern, parameterNames);
+            }
+            return node.prefix;
+        }
+        if (node.route == null) {
+            node.route = new Route(pattern, parameterNames);
+        }
+        return node.route;
+    }
+}
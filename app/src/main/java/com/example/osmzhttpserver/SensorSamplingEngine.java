@@ -0,0 +1,217 @@
+package com.example.osmzhttpserver;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single owner of the sensor registrations. Each sensor type is registered once, at the fastest
+ * rate and shortest report latency any consumer asked for, with hardware batching where the sensor
+ * has a FIFO. Events are handled on a dedicated thread and handed to every consumer at its own
+ * decimated rate, without allocating.
+ */
+public class SensorSamplingEngine {
+    private static final String TAG = "SensorSamplingEngine";
+
+    /** Receives samples on the engine's thread; must return quickly. */
+    public interface Consumer {
+        /** @param timeMs wall-clock time the sample was taken, which may be before delivery when batched */
+        void onSample(int sensorType, float x, float y, float z, long timeMs);
+    }
+
+    private static SensorSamplingEngine instance;
+
+    private final SensorManager sensorManager;
+    private final Handler handler;
+    private final Fanout fanout = new Fanout();
+    // Guarded by this; {period, latency} in microseconds each sensor type is registered with
+    private final Map<Integer, int[]> registrations = new HashMap<>();
+
+    private final SensorEventListener listener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            // Batched events arrive late, so date each one by its own timestamp
+            long timeMs = System.currentTimeMillis() - (SystemClock.elapsedRealtimeNanos() - event.timestamp) / 1000000;
+            float[] values = event.values;
+            fanout.dispatch(event.sensor.getType(),
+                    values.length > 0 ? values[0] : 0,
+                    values.length > 1 ? values[1] : 0,
+                    values.length > 2 ? values[2] : 0,
+                    event.timestamp, timeMs);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
+
+    /** The engine shared by everything in the process. */
+    public static synchronized SensorSamplingEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new SensorSamplingEngine((SensorManager) context.getApplicationContext().getSystemService(Context.SENSOR_SERVICE));
+        }
+        return instance;
+    }
+
+    SensorSamplingEngine(SensorManager sensorManager) {
+        this.sensorManager = sensorManager;
+        HandlerThread thread = new HandlerThread("SensorSampling");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Delivers samples of a sensor type to the consumer at most once per period.
+     *
+     * @param maxLatencyUs how long samples may be held in the sensor FIFO before delivery
+     * @return false if the device has no such sensor
+     */
+    public boolean subscribe(int sensorType, int periodUs, int maxLatencyUs, Consumer consumer) {
+        if (sensorManager == null || sensorManager.getDefaultSensor(sensorType) == null) {
+            Log.d(TAG, "No sensor of type " + sensorType);
+            return false;
+        }
+        fanout.add(sensorType, periodUs, maxLatencyUs, consumer);
+        updateRegistration(sensorType);
+        return true;
+    }
+
+    /** Stops all deliveries to the consumer; sensors nobody wants any more are unregistered. */
+    public void unsubscribe(Consumer consumer) {
+        for (int sensorType : fanout.remove(consumer)) {
+            updateRegistration(sensorType);
+        }
+    }
+
+    /** Registers the sensor at what its consumers need now, or unregisters it without consumers. */
+    private synchronized void updateRegistration(int sensorType) {
+        Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+        if (sensor == null) {
+            return;
+        }
+        int periodUs = fanout.fastestPeriodUs(sensorType);
+        int[] current = registrations.get(sensorType);
+        if (periodUs < 0) {
+            if (current != null) {
+                sensorManager.unregisterListener(listener, sensor);
+                registrations.remove(sensorType);
+            }
+            return;
+        }
+        // Without a FIFO the sensor reports every sample as it happens
+        int latencyUs = sensor.getFifoMaxEventCount() > 0 ? fanout.shortestLatencyUs(sensorType) : 0;
+        if (current != null && current[0] == periodUs && current[1] == latencyUs) {
+            return;
+        }
+        if (current != null) {
+            sensorManager.unregisterListener(listener, sensor);
+        }
+        if (sensorManager.registerListener(listener, sensor, periodUs, latencyUs, handler)) {
+            registrations.put(sensorType, new int[]{periodUs, latencyUs});
+        } else {
+            Log.e(TAG, "Failed to register sensor " + sensor.getName());
+            registrations.remove(sensorType);
+        }
+    }
+
+    /** Consumers and their decimation; dispatch runs on the engine thread only. */
+    static final class Fanout {
+        private static final class Subscriber {
+            final int sensorType;
+            final int periodUs;
+            final int maxLatencyUs;
+            final Consumer consumer;
+            // Accepted a little early, so sensor jitter does not halve the rate
+            final long minGapNs;
+            long lastNs;
+            boolean delivered;
+
+            Subscriber(int sensorType, int periodUs, int maxLatencyUs, Consumer consumer) {
+                this.sensorType = sensorType;
+                this.periodUs = periodUs;
+                this.maxLatencyUs = maxLatencyUs;
+                this.consumer = consumer;
+                long periodNs = periodUs * 1000L;
+                this.minGapNs = periodNs - periodNs / 8;
+            }
+        }
+
+        // Copied on change, so dispatch reads it without locking
+        private volatile Subscriber[] subscribers = new Subscriber[0];
+
+        synchronized void add(int sensorType, int periodUs, int maxLatencyUs, Consumer consumer) {
+            Subscriber[] next = new Subscriber[subscribers.length + 1];
+            System.arraycopy(subscribers, 0, next, 0, subscribers.length);
+            next[subscribers.length] = new Subscriber(sensorType, periodUs, maxLatencyUs, consumer);
+            subscribers = next;
+        }
+
+        /** @return the sensor types the consumer was subscribed to */
+        synchronized List<Integer> remove(Consumer consumer) {
+            List<Subscriber> kept = new ArrayList<>();
+            List<Integer> types = new ArrayList<>();
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.consumer == consumer) {
+                    if (!types.contains(subscriber.sensorType)) {
+                        types.add(subscriber.sensorType);
+                    }
+                } else {
+                    kept.add(subscriber);
+                }
+            }
+            subscribers = kept.toArray(new Subscriber[kept.size()]);
+            return types;
+        }
+
+        /** Shortest period asked for a sensor type, or -1 if nobody wants it. */
+        synchronized int fastestPeriodUs(int sensorType) {
+            int fastest = -1;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.sensorType == sensorType && (fastest < 0 || subscriber.periodUs < fastest)) {
+                    fastest = subscriber.periodUs;
+                }
+            }
+            return fastest;
+        }
+
+        synchronized int shortestLatencyUs(int sensorType) {
+            int shortest = -1;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.sensorType == sensorType && (shortest < 0 || subscriber.maxLatencyUs < shortest)) {
+                    shortest = subscriber.maxLatencyUs;
+                }
+            }
+            return Math.max(0, shortest);
+        }
+
+        void dispatch(int sensorType, float x, float y, float z, long timestampNs, long timeMs) {
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.sensorType != sensorType) {
+                    continue;
+                }
+                if (subscriber.delivered && timestampNs - subscriber.lastNs < subscriber.minGapNs) {
+                    continue;
+                }
+                subscriber.delivered = true;
+                subscriber.lastNs = timestampNs;
+                try {
+                    subscriber.consumer.onSample(sensorType, x, y, z, timeMs);
+                } catch (RuntimeException e) {
+                    // One broken consumer must not starve the others
+                    Log.e(TAG, "Error in sensor consumer: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Rolling directory of snapshots on storage. At most one image per interval is written, and the
+ * oldest images are deleted once the directory holds more than its byte budget.
+ */
+public class SnapshotArchive {
+    private static final String TAG = "SnapshotArchive";
+    private static final String PREFIX = "IMG_";
+    private static final String SUFFIX = ".jpg";
+
+    private final File directory;
+    private final long maxBytes;
+    private final long minIntervalMs;
+
+    // Guarded by this; oldest first
+    private final ArrayDeque<File> files = new ArrayDeque<>();
+    private long totalBytes;
+    private long lastStoredMs;
+
+    public SnapshotArchive(File directory, long maxBytes, long minIntervalMs) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.minIntervalMs = minIntervalMs;
+        loadExisting();
+    }
+
+    private void loadExisting() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Failed to create directory: " + directory.getAbsolutePath());
+            return;
+        }
+        File[] existing = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (existing == null) {
+            return;
+        }
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (this) {
+            for (File file : existing) {
+                files.addLast(file);
+                totalBytes += file.length();
+            }
+            trim();
+        }
+    }
+
+    /** Writes a snapshot unless one was written less than the interval ago. */
+    public void store(SnapshotHolder.Snapshot snapshot) {
+        synchronized (this) {
+            if (snapshot.timestampMs - lastStoredMs < minIntervalMs) {
+                return;
+            }
+            lastStoredMs = snapshot.timestampMs;
+        }
+        File file = new File(directory, PREFIX + snapshot.timestampMs + SUFFIX);
+        // Written aside and renamed, so readers never see half an image
+        File temp = new File(directory, "." + file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(snapshot.jpeg);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing snapshot: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Error storing snapshot " + file);
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            files.addLast(file);
+            totalBytes += snapshot.jpeg.length;
+            trim();
+        }
+    }
+
+    /** Deletes the oldest images until the budget is met; the newest one always stays. */
+    private void trim() {
+        while (totalBytes > maxBytes && files.size() > 1) {
+            File oldest = files.removeFirst();
+            long length = oldest.length();
+            if (!oldest.delete() && oldest.exists()) {
+                Log.e(TAG, "Failed to delete " + oldest);
+            }
+            // Forgotten either way, so one stuck file cannot stop the rotation
+            totalBytes -= length;
+        }
+    }
+
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
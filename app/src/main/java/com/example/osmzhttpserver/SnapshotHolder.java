@@ -0,0 +1,105 @@
+package com.example.osmzhttpserver;
+
+/**
+ * Latest still image of the camera, kept in memory and served at /snapshot. The camera side
+ * replaces it with a single volatile write, so requests never see a half updated image and never
+ * touch flash storage.
+ */
+public class SnapshotHolder {
+    // A request keeps the camera producing snapshots for this long
+    private static final long DEMAND_WINDOW_MS = 10 * 1000;
+
+    private final long maxAgeMs;
+    private volatile Snapshot latest;
+    private volatile long lastDemandMs;
+    private volatile SnapshotArchive archive;
+    // Guarded by this
+    private long nextSequence = 1;
+
+    /** One JPEG with its validators; never modified once published. */
+    public static final class Snapshot {
+        public final long sequence;
+        public final long timestampMs;
+        public final byte[] jpeg;
+        public final String etag;
+        // Pre-encoded ETag, Last-Modified and Cache-Control lines
+        final byte[] header;
+
+        Snapshot(long sequence, long timestampMs, byte[] jpeg) {
+            this.sequence = sequence;
+            this.timestampMs = timestampMs;
+            this.jpeg = jpeg;
+            this.etag = "\"" + Long.toHexString(timestampMs) + "-" + Long.toHexString(sequence) + "\"";
+            this.header = ("ETag: " + etag + "\r\n" +
+                    "Last-Modified: " + HttpDates.format(timestampMs) + "\r\n" +
+                    "Cache-Control: no-cache\r\n").getBytes();
+        }
+    }
+
+    /** @param maxAgeMs how old the image may get while somebody is asking for it */
+    public SnapshotHolder(long maxAgeMs) {
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /** Also keeps snapshots on storage; null turns that off. */
+    public void setArchive(SnapshotArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Whether the producer should encode a frame for us: the image is stale and it has been asked
+     * for recently, or an archive wants it.
+     */
+    public boolean wantsFrame() {
+        long now = System.currentTimeMillis();
+        Snapshot snapshot = latest;
+        if (snapshot != null && now - snapshot.timestampMs < maxAgeMs) {
+            return false;
+        }
+        return archive != null || now - lastDemandMs < DEMAND_WINDOW_MS;
+    }
+
+    /** Replaces the latest snapshot; the array must not be modified afterwards. */
+    public void update(byte[] jpeg) {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = new Snapshot(nextSequence++, System.currentTimeMillis(), jpeg);
+            latest = snapshot;
+            notifyAll();
+        }
+        SnapshotArchive target = archive;
+        if (target != null) {
+            target.store(snapshot);
+        }
+    }
+
+    /** Latest snapshot, or null before the first one. */
+    public Snapshot getLatest() {
+        return latest;
+    }
+
+    /**
+     * Latest snapshot for a request. A stale one makes the camera produce a new image, which is
+     * waited for up to the timeout; after that the stale one is better than nothing.
+     *
+     * @return null if the camera has not produced any image
+     */
+    public Snapshot awaitFresh(long timeoutMs) throws InterruptedException {
+        lastDemandMs = System.currentTimeMillis();
+        Snapshot snapshot = latest;
+        if (snapshot != null && lastDemandMs - snapshot.timestampMs < maxAgeMs) {
+            return snapshot;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            while (latest == snapshot) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                wait(remaining);
+            }
+            return latest;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.osmzhttpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/** {@link HttpOutput} over a blocking socket; file regions go out with sendfile when the socket has a channel. */
+class SocketHttpOutput extends HttpOutput {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private volatile SocketPushConnection pushConnection;
+
+    SocketHttpOutput(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        // Sockets accepted from a ServerSocketChannel expose their channel, which lets
+        // FileChannel.transferTo use sendfile; otherwise the JDK copies through a pooled direct buffer
+        this.channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void write(byte[] head, int headOffset, int headLength, byte[] body, int bodyOffset, int bodyLength) throws IOException {
+        // Small responses are coalesced in the buffer and leave with the next flush
+        if (headLength + bodyLength <= BUFFER_SIZE || !(channel instanceof GatheringByteChannel)) {
+            super.write(head, headOffset, headLength, body, bodyOffset, bodyLength);
+            return;
+        }
+        out.flush();
+        ByteBuffer[] buffers = {ByteBuffer.wrap(head, headOffset, headLength), ByteBuffer.wrap(body, bodyOffset, bodyLength)};
+        while (buffers[1].hasRemaining()) {
+            ((GatheringByteChannel) channel).write(buffers);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        out.flush();
+        long end = position + count;
+        while (position < end) {
+            long n = file.transferTo(position, end - position, channel);
+            if (n <= 0 && position >= file.size()) {
+                throw new EOFException("File shorter than expected");
+            }
+            position += n;
+        }
+    }
+
+    /** Switches the socket to non-blocking mode; only possible for sockets with a channel. */
+    @Override
+    public PushConnection detach() throws IOException {
+        SocketChannel socketChannel = socket.getChannel();
+        if (socketChannel == null) {
+            return super.detach();
+        }
+        out.flush();
+        socketChannel.configureBlocking(false);
+        pushConnection = new SocketPushConnection(socketChannel);
+        return pushConnection;
+    }
+
+    @Override
+    public boolean isDetached() {
+        return pushConnection != null;
+    }
+
+    /**
+     * Push side of a blocking-mode connection. Without a selector, whatever the socket does not
+     * take right away stays queued and is retried on the next send.
+     */
+    private static class SocketPushConnection implements PushConnection {
+        private final SocketChannel channel;
+        // Guarded by this
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        private long backlog;
+        private boolean closed;
+
+        SocketPushConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public synchronized boolean send(ByteBuffer data) {
+            if (closed) {
+                return false;
+            }
+            pending.add(data);
+            backlog += data.remaining();
+            try {
+                drain();
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        private void drain() throws IOException {
+            while (!pending.isEmpty()) {
+                ByteBuffer head = pending.peekFirst();
+                int n = channel.write(head);
+                backlog -= n;
+                if (head.hasRemaining()) {
+                    return;
+                }
+                pending.pollFirst();
+            }
+        }
+
+        @Override
+        public synchronized long getBacklog() {
+            if (!closed && !pending.isEmpty()) {
+                try {
+                    drain();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+            return backlog;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+}
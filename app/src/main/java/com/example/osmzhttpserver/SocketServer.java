@@ -10,84 +10,345 @@ import android.webkit.MimeTypeMap;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.Timer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
 
 public class  SocketServer extends Thread {
+    /** How connections are accepted and read: a thread per active connection, or a selector loop. */
+    public enum Mode {
+        BLOCKING,
+        NIO
+    }
+
     private static final String TAG = "HttpServer";
     private final Context context;
     ServerSocket serverSocket;
-    public final int port = 12345;
+    private static final int DEFAULT_PORT = 12345;
+    private int port = DEFAULT_PORT;
+    private volatile int localPort = -1;
     boolean bRunning;
     private static final String SERVER_ROOT = "/";
     private static final String DEFAULT_PAGE = "post.html";
+    private static final String STREAM_PATH = "/stream";
+    private static final String SNAPSHOT_PATH = "/snapshot";
+    private static final String TELEMETRY_PATH = "/telemetry";
+    private static final String TELEMETRY_HISTORY_PATH = "/telemetry/history";
+    private static final String TELEMETRY_STREAM_PATH = "/telemetry/stream";
+    private static final long DEFAULT_HISTORY_RANGE_MS = 60 * 1000;
+    private static final int DEFAULT_HISTORY_BUCKETS = 100;
+    // How long a snapshot request waits for the camera to replace a stale image
+    private static final long SNAPSHOT_WAIT_MS = 1000;
+    private static final int DEFAULT_ACCEPT_QUEUE_SIZE = 32;
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 15 * 1000;
+    private static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+    // A blocking worker waiting for the next request serves nobody else, so it gives up early
+    private static final int BLOCKING_IDLE_TIMEOUT_MS = 2 * 1000;
+    // How often an idle blocking worker checks for connections waiting in the accept queue
+    private static final int IDLE_POLL_MS = 100;
+    // Files larger than this are sent with transferTo instead of being read into memory
+    private static final long STREAMING_THRESHOLD = 64 * 1024;
+    private static final String ACCEPT_RANGES = "Accept-Ranges: bytes\r\n";
+    // Add CORS header to allow cross-origin requests
+    private static final byte[] CORS_ANY_ORIGIN = "Access-Control-Allow-Origin: *\r\n".getBytes();
+    private static final byte[] VARY_ACCEPT = "Vary: Accept\r\n".getBytes();
+    private static final byte[] VARY_ACCEPT_AND_ENCODING = "Vary: Accept, Accept-Encoding\r\n".getBytes();
+    // Telemetry records are encoded into a buffer per worker thread
+    private static final ThreadLocal<BinaryTelemetryEncoder> TELEMETRY_ENCODERS = new ThreadLocal<BinaryTelemetryEncoder>() {
+        @Override
+        protected BinaryTelemetryEncoder initialValue() {
+            return new BinaryTelemetryEncoder();
+        }
+    };
+    private static final byte[] UPLOAD_SUCCESS = "File uploaded successfully".getBytes();
+    private static final long DEFAULT_FILE_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final long FILE_CACHE_REVALIDATE_MS = 1000;
+    private static final long DEFAULT_MAX_UPLOAD_PART_SIZE = 512L * 1024 * 1024;
+    private static final int DEFAULT_MAX_UPLOAD_PARTS = 16;
     private Handler handler;
-    private Semaphore threadSemaphore;
-    private TelemetryDataCollector telemetryDataCollector;
-    private Timer mjpegTimer;
-    private ExecutorService executorService;
+    private volatile TelemetryDataCollector telemetryDataCollector;
+    private final ConnectionDispatcher dispatcher;
     private Camera mCamera;
+    private final Mode mode;
+    private volatile NioEventLoop eventLoop;
+    private int keepAliveTimeoutMs = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+    private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+    private StaticFileCache fileCache = new StaticFileCache(DEFAULT_FILE_CACHE_BYTES, STREAMING_THRESHOLD, FILE_CACHE_REVALIDATE_MS);
+    private final HttpCachePolicy cachePolicy = new HttpCachePolicy();
+    private final CompressionPolicy compressionPolicy = new CompressionPolicy();
+    private volatile MjpegStreamer mjpegStreamer;
+    private volatile TelemetryStreamer telemetryStreamer;
+    private volatile SnapshotHolder snapshotHolder;
+    private long maxUploadPartSize = DEFAULT_MAX_UPLOAD_PART_SIZE;
+    private int maxUploadParts = DEFAULT_MAX_UPLOAD_PARTS;
+    private File documentRoot;
+    // Canonical form of the document root, resolved on first use
+    private volatile File canonicalRoot;
+    // Canonical, so a resolved directory is compared without touching the filesystem again
+    private File listingDirectory;
+    private final Router router = new Router();
+
+    private final Router.Handler streamHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            serveMJPEGStream(out, request);
+        }
+    };
+    private final Router.Handler snapshotHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            serveSnapshot(out, request);
+        }
+    };
+    private final Router.Handler telemetryHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            handleTelemetryRequest(out, request);
+        }
+    };
+    private final Router.Handler telemetryHistoryHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            handleTelemetryHistoryRequest(out, request);
+        }
+    };
+    private final Router.Handler telemetryStreamHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            serveTelemetryStream(out, request);
+        }
+    };
+    private final Router.Handler fileHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            String path = request.getDecodedPath();
+            if (path == null) {
+                sendErrorResponse(out, request, 400);
+                return;
+            }
+            serveFile(out, request, path);
+        }
+    };
+    private final Router.Handler uploadHandler = new Router.Handler() {
+        @Override
+        public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+            handlePostRequest(request, body, out);
+        }
+    };
+
+    static final byte[] BAD_REQUEST =
+            "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
+    static final byte[] REQUEST_HEADER_TOO_LARGE =
+            "HTTP/1.1 431 Request Header Fields Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes();
 
     public SocketServer(int maxThread, Handler handler, Context context,  Camera camera) {
-        threadSemaphore = new Semaphore(maxThread);
+        this(maxThread, DEFAULT_ACCEPT_QUEUE_SIZE, Mode.BLOCKING, handler, context, camera);
+    }
+
+    public SocketServer(int maxThread, int acceptQueueSize, Handler handler, Context context, Camera camera) {
+        this(maxThread, acceptQueueSize, Mode.BLOCKING, handler, context, camera);
+    }
+
+    public SocketServer(int maxThread, int acceptQueueSize, Mode mode, Handler handler, Context context, Camera camera) {
         this.handler = handler;
         this.context = context;
         this.mCamera = camera;
-        this.executorService = Executors.newFixedThreadPool(maxThread);
+        this.mode = mode;
+        this.dispatcher = new ConnectionDispatcher(maxThread, acceptQueueSize);
     }
 
-    public void close() {
+    public ConnectionDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /** Port to listen on, 0 for any free one; call before start(). */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /** Port the server listens on, or -1 while it is not listening. */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    void setLocalPort(int localPort) {
+        this.localPort = localPort;
+    }
+
+    /** Idle timeout and request limit for persistent connections, blocking mode caps the idle wait at 2 s; call before start(). */
+    public void setKeepAlive(int idleTimeoutMs, int maxRequests) {
+        this.keepAliveTimeoutMs = idleTimeoutMs;
+        this.maxRequestsPerConnection = maxRequests;
+    }
+
+    /** Replaces the static file cache, e.g. to change its byte budget; call before start(). */
+    public void setFileCache(StaticFileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    /** Limits for multipart uploads; larger parts or more parts are answered with 413. */
+    public void setUploadLimits(long maxPartSize, int maxParts) {
+        this.maxUploadPartSize = maxPartSize;
+        this.maxUploadParts = maxParts;
+    }
+
+    /** Directory static files are served from, instead of the root of external storage; call before start(). */
+    public void setDocumentRoot(File root) {
+        this.documentRoot = root;
+        this.canonicalRoot = null;
+    }
+
+    /**
+     * Directory whose contents, and those of its subdirectories, are listed when requested; it
+     * must lie under the document root. Null, the default, lists no directory. Call before start().
+     */
+    public void setListingDirectory(File directory) {
+        if (directory == null) {
+            this.listingDirectory = null;
+            return;
+        }
         try {
-            serverSocket.close();
+            this.listingDirectory = directory.getCanonicalFile();
         } catch (IOException e) {
-            Log.d("SERVER", "Error, probably interrupted in accept(), see log");
-            e.printStackTrace();
+            Log.e(TAG, "Error resolving listing directory: " + e.getMessage());
+            this.listingDirectory = directory.getAbsoluteFile();
+        }
+    }
+
+    public StaticFileCache getFileCache() {
+        return fileCache;
+    }
+
+    /** Per-extension Cache-Control rules; configure before start(), cached headers are not rebuilt. */
+    public HttpCachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+
+    /** Media types and minimum size for gzip/deflate; configure before start(). */
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /** Routes of this server; handlers added here are served alongside the built-in ones. */
+    public Router getRouter() {
+        return router;
+    }
+
+    /** Mounts files from the document root for GET of any path no other route takes, and uploads at POST /. */
+    public void mountStaticFiles() {
+        router.get("/*", fileHandler);
+        router.post("/", uploadHandler);
+    }
+
+    /** Mounts the live camera stream at /stream; without a streamer the route answers 404. */
+    public void setMjpegStreamer(MjpegStreamer streamer) {
+        this.mjpegStreamer = streamer;
+        router.get(STREAM_PATH, streamHandler);
+    }
+
+    /** Mounts sensor data at /telemetry and /telemetry/history; without a collector those routes answer 404. */
+    public void setTelemetryDataCollector(TelemetryDataCollector collector) {
+        this.telemetryDataCollector = collector;
+        router.get(TELEMETRY_PATH, telemetryHandler);
+        router.get(TELEMETRY_HISTORY_PATH, telemetryHistoryHandler);
+    }
+
+    /** Mounts live telemetry pushed at /telemetry/stream; without a streamer the route answers 404. */
+    public void setTelemetryStreamer(TelemetryStreamer streamer) {
+        this.telemetryStreamer = streamer;
+        router.get(TELEMETRY_STREAM_PATH, telemetryStreamHandler);
+    }
+
+    /** Mounts the latest camera image at /snapshot; without a holder the route answers 404. */
+    public void setSnapshotHolder(SnapshotHolder holder) {
+        this.snapshotHolder = holder;
+        router.get(SNAPSHOT_PATH, snapshotHandler);
+    }
+
+    public int getKeepAliveTimeoutMs() {
+        return keepAliveTimeoutMs;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public void close() {
+        if (mjpegStreamer != null) {
+            // Live streams hold worker threads until they end
+            mjpegStreamer.disconnectViewers();
+        }
+        if (telemetryStreamer != null) {
+            // Detached streams are not closed with the server socket in blocking mode
+            telemetryStreamer.disconnectSubscribers();
+        }
+        if (eventLoop != null) {
+            eventLoop.close();
+        } else if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.d("SERVER", "Error, probably interrupted in accept(), see log");
+                e.printStackTrace();
+            }
         }
         bRunning = false;
+        dispatcher.shutdown();
     }
 
     @Override
     public void run() {
+        if (mode == Mode.NIO) {
+            eventLoop = new NioEventLoop(this, dispatcher, port);
+            bRunning = true;
+            eventLoop.run();
+            bRunning = false;
+            return;
+        }
         try {
             Log.d("SERVER", "Creating Socket");
-            serverSocket = new ServerSocket(port);
+            // Opened through a channel so accepted sockets can use FileChannel.transferTo
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
+            localPort = serverSocket.getLocalPort();
             bRunning = true;
 
             while (bRunning) {
                 Log.d("SERVER", "Socket Waiting for connection");
-                Socket s = serverSocket.accept();
+                final Socket s = serverSocket.accept();
                 Log.d("SERVER", "Socket Accepted");
 
-                new Thread(new Runnable() {
+                boolean queued = dispatcher.dispatch(new Runnable() {
                     @Override
                     public void run() {
                         try {
-                            handleRequest(s);
+                            handleConnection(s);
                         } catch (Exception e) {
                             Log.e(TAG, "Error handling request: " + e.getMessage());
                         }
                     }
-                }).start();
-
-                Log.d("SERVER", "Socket Closed");
+                });
+                if (!queued) {
+                    rejectConnection(s);
+                }
             }
         } catch (IOException e) {
             if (serverSocket != null && serverSocket.isClosed())
@@ -98,306 +359,796 @@ public class  SocketServer extends Thread {
             }
         } finally {
             serverSocket = null;
+            localPort = -1;
             bRunning = false;
         }
     }
 
-    private void handleRequest(Socket s) {
+    byte[] buildRejectResponse() {
+        return ResponseHeaderWriter.begin(503)
+                .header("Retry-After", dispatcher.getRetryAfterSeconds())
+                .contentLength(0)
+                .connection(false)
+                .toByteArray();
+    }
+
+    private void rejectConnection(Socket s) {
         try {
-            if (!threadSemaphore.tryAcquire()) {
-                sendErrorResponse(s.getOutputStream(), 503, "Server too busy");
+            s.getOutputStream().write(buildRejectResponse());
+        } catch (IOException e) {
+            Log.e(TAG, "Error rejecting connection: " + e.getMessage());
+        } finally {
+            try {
                 s.close();
-                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing socket: " + e.getMessage());
             }
+        }
+    }
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-            OutputStream out = s.getOutputStream();
-            String request = in.readLine();
-
-            if (request != null && request.trim().length() > 0) {
-                Log.d(TAG, "Request: " + request);
-
-                String[] tokens = request.split(" ");
-                if (tokens.length < 2) {
-                    Log.e(TAG, "Invalid request: " + request);
-                    return;
+    private void handleConnection(Socket s) {
+        HttpOutput out = null;
+        try {
+            s.setSoTimeout(keepAliveTimeoutMs);
+            s.setTcpNoDelay(true);
+            PushbackInputStream in = new PushbackInputStream(s.getInputStream(), HttpRequestParser.READ_BUFFER_SIZE);
+            out = new SocketHttpOutput(s);
+            HttpRequestParser parser = new HttpRequestParser();
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive && bRunning) {
+                if (!awaitRequest(s, in, served > 0)) {
+                    break;
                 }
-
-                String method = tokens[0];
-                String uri = tokens[1];
-
-                if (method.equalsIgnoreCase("GET")) {
-                    serveFile(out, uri);
-                } else if (method.equalsIgnoreCase("POST")) {
-                    if (uri.equals("/")) {
-                        handlePostRequest(in, out);
-                        return;
-                    }
-                } else {
-                    Log.e(TAG, "Unsupported method: " + method);
-                    sendErrorResponse(out, 501, "Not Implemented");
-                    return;
+                HttpRequest request;
+                try {
+                    request = parser.readFrom(in);
+                } catch (HttpRequestParser.HeaderTooLargeException e) {
+                    Log.e(TAG, "Invalid request: " + e.getMessage());
+                    out.write(REQUEST_HEADER_TOO_LARGE);
+                    out.flush();
+                    break;
+                } catch (ProtocolException e) {
+                    Log.e(TAG, "Invalid request: " + e.getMessage());
+                    out.write(BAD_REQUEST);
+                    out.flush();
+                    break;
+                }
+                if (request == null) {
+                    break;
                 }
+                served++;
+                keepAlive = handleRequest(request, in, out, served < maxRequestsPerConnection);
+                out.flush();
             }
-
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "Closing idle connection");
         } catch (IOException e) {
             Log.e(TAG, "Error handling request: " + e.getMessage());
         } finally {
-            try {
-                s.close();
-                threadSemaphore.release();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing socket: " + e.getMessage());
+            // A detached connection now belongs to whoever pushes to it
+            if (out == null || !out.isDetached()) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing socket: " + e.getMessage());
+                }
             }
         }
     }
 
-    private void handlePostRequest(BufferedReader in, OutputStream out) throws IOException {
-        String line;
-        String boundary = null;
-        while ((line = in.readLine()) != null) {
-            if (line.startsWith("Content-Type: multipart/form-data; boundary=")) {
-                boundary = line.substring("Content-Type: multipart/form-data; boundary=".length());
-                break;
+    /**
+     * Waits for the first byte of the next request, for at most the blocking idle timeout. A
+     * persistent connection is given up sooner once other connections are queued for a worker.
+     *
+     * @param yieldToQueue whether queued connections end the wait, false until a request was served
+     * @return false if the connection should be closed instead
+     */
+    private boolean awaitRequest(Socket s, PushbackInputStream in, boolean yieldToQueue) throws IOException {
+        long deadline = System.currentTimeMillis() + Math.min(keepAliveTimeoutMs, BLOCKING_IDLE_TIMEOUT_MS);
+        s.setSoTimeout(IDLE_POLL_MS);
+        try {
+            while (true) {
+                try {
+                    int b = in.read();
+                    if (b < 0) {
+                        return false;
+                    }
+                    in.unread(b);
+                    return true;
+                } catch (SocketTimeoutException e) {
+                    if ((yieldToQueue && dispatcher.getQueueDepth() > 0) || System.currentTimeMillis() >= deadline || !bRunning) {
+                        Log.d(TAG, "Closing idle connection");
+                        return false;
+                    }
+                }
             }
+        } finally {
+            s.setSoTimeout(keepAliveTimeoutMs);
         }
+    }
 
-        if (boundary == null) {
-            sendErrorResponse(out, 400, "Bad Request");
-            return;
-        }
+    /**
+     * Serves one parsed request, reading its body from input; shared by the blocking and the NIO
+     * front end.
+     *
+     * @param allowKeepAlive false when the connection has to close after this response
+     * @return true if the connection may carry another request
+     */
+    boolean handleRequest(HttpRequest request, InputStream input, HttpOutput out, boolean allowKeepAlive) throws IOException {
+        Log.d(TAG, "Request: " + request.getRequestLine());
 
-        while ((line = in.readLine()) != null) {
-            if (line.equals("--" + boundary + "--")) {
-                break;
-            }
-            if (line.startsWith("--" + boundary)) {
-                String filename = null;
-                while ((line = in.readLine()) != null) {
-                    if (line.startsWith("Content-Disposition: form-data; name=\"file\"; filename=\"")) {
-                        filename = line.substring("Content-Disposition: form-data; name=\"file\"; filename=\"".length());
-                        filename = filename.substring(0, filename.length() - 1);
-                        break;
-                    }
-                }
+        long contentLength = request.getContentLength();
+        request.setKeepAlive(allowKeepAlive && contentLength >= 0 && request.wantsKeepAlive());
+        ContentLengthInputStream body = new ContentLengthInputStream(input, Math.max(contentLength, 0));
 
-                if (filename == null) {
-                    sendErrorResponse(out, 400, "Bad Request");
-                    return;
+        HttpMethod method = request.getMethodType();
+        if (!router.routes(method)) {
+            Log.e(TAG, "Unsupported method: " + request.getMethod());
+            sendErrorResponse(out, request, 501);
+        } else if (method == HttpMethod.POST && (contentLength < 0 || request.getHeader("Content-Length") == null)) {
+            // Uploads must say how long they are, chunked bodies are not read
+            sendErrorResponse(out, request, 411);
+        } else {
+            Router.Handler target = router.find(method, request.getPath(), request);
+            if (target != null) {
+                target.handle(request, body, out);
+            } else {
+                String allow = router.allowedMethods(request.getPath());
+                if (allow.isEmpty()) {
+                    sendErrorResponse(out, request, 404);
+                } else {
+                    ResponseHeaderWriter.begin(405)
+                            .header("Allow", allow)
+                            .contentLength(0)
+                            .connection(request.isKeepAlive())
+                            .writeTo(out);
                 }
+            }
+        }
+        // The caller sends what is left: the blocking loop flushes, the NIO loop writes it after the worker returns
+        return request.isKeepAlive() && body.skipRemaining();
+    }
 
-                while ((line = in.readLine()) != null) {
-                    if (line.trim().length() == 0) {
-                        break;
-                    }
-                }
+    private void handlePostRequest(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+        String boundary = MultipartStreamParser.boundaryFrom(request.getHeader("Content-Type"));
+        if (boundary == null) {
+            sendErrorResponse(out, request, 400);
+            return;
+        }
 
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                while ((line = in.readLine()) != null) {
-                    if (line.startsWith("--" + boundary)) {
-                        break;
-                    }
-                    buffer.write(line.getBytes());
-                }
+        File directory = getUploadDirectory();
+        if (directory == null) {
+            sendErrorResponse(out, request, 500);
+            return;
+        }
 
-                saveUploadedFile(filename, buffer.toByteArray());
+        try {
+            MultipartStreamParser parser = new MultipartStreamParser(body, boundary, directory, maxUploadPartSize, maxUploadParts);
+            for (File file : parser.parse()) {
+                Log.d(TAG, "File uploaded: " + file.getAbsolutePath());
             }
+        } catch (MultipartStreamParser.LimitExceededException e) {
+            Log.e(TAG, "Upload rejected: " + e.getMessage());
+            // The rest of the body is not worth reading
+            request.setKeepAlive(false);
+            sendErrorResponse(out, request, 413);
+            return;
+        } catch (ProtocolException e) {
+            Log.e(TAG, "Malformed upload: " + e.getMessage());
+            request.setKeepAlive(false);
+            sendErrorResponse(out, request, 400);
+            return;
         }
 
-        sendSuccessResponse(out);
+        sendSuccessResponse(out, request);
     }
 
-    private void saveUploadedFile(String filename, byte[] data) throws IOException {
+    private File getUploadDirectory() {
         // Specify the directory path within the public external storage (/Download)
         File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
 
         // Create the directory if it doesn't exist
-        if (!directory.exists()) {
-            if (!directory.mkdirs()) {
-                Log.e(TAG, "Failed to create directory: " + directory.getAbsolutePath());
-                return;
-            }
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Failed to create directory: " + directory.getAbsolutePath());
+            return null;
         }
+        return directory;
+    }
 
-        // Create a new file with the specified filename in the directory
-        File file = new File(directory, filename);
+    private void sendSuccessResponse(HttpOutput out, HttpRequest request) throws IOException {
+        ResponseHeaderWriter.begin(200)
+                .contentType("text/plain")
+                .contentLength(UPLOAD_SUCCESS.length)
+                .connection(request.isKeepAlive())
+                .writeTo(out, UPLOAD_SUCCESS);
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(data);
-            Log.d(TAG, "File uploaded: " + file.getAbsolutePath());
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving uploaded file: " + e.getMessage());
-            e.printStackTrace();
+    private void serveMJPEGStream(HttpOutput output, HttpRequest request) throws IOException {
+        MjpegStreamer streamer = mjpegStreamer;
+        if (streamer == null) {
+            sendErrorResponse(output, request, 404);
+            return;
         }
+        streamer.stream(output, request);
     }
 
-    private void sendSuccessResponse(OutputStream out) throws IOException {
-        out.write("HTTP/1.1 200 OK\r\n".getBytes());
-        out.write("Content-Type: text/plain\r\n".getBytes());
-        out.write("\r\n".getBytes());
-        out.write("File uploaded successfully".getBytes());
+    private void serveSnapshot(HttpOutput output, HttpRequest request) throws IOException {
+        SnapshotHolder holder = snapshotHolder;
+        if (holder == null) {
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        SnapshotHolder.Snapshot snapshot;
+        try {
+            snapshot = holder.awaitFresh(SNAPSHOT_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        if (snapshot == null) {
+            // No image from the camera yet
+            ResponseHeaderWriter.begin(503)
+                    .header("Retry-After", 1)
+                    .contentLength(0)
+                    .connection(request.isKeepAlive())
+                    .writeTo(output);
+        } else if (HttpCachePolicy.isNotModified(request, snapshot.etag, snapshot.timestampMs)) {
+            sendNotModified(output, request, snapshot.header);
+        } else {
+            ResponseHeaderWriter.begin(200)
+                    .contentType("image/jpeg")
+                    .contentLength(snapshot.jpeg.length)
+                    .lines(snapshot.header)
+                    .connection(request.isKeepAlive())
+                    .writeTo(output, snapshot.jpeg);
+        }
     }
 
-    private void serveMJPEGStream(OutputStream output) throws IOException {
-        output.write(("HTTP/1.1 200 OK\r\n").getBytes());
-        output.write(("Content-Type: multipart/x-mixed-replace; boundary=OSMZ_boundary\r\n").getBytes());
-        output.write(("\r\n").getBytes());
+    /** Latest values as JSON, or as a binary record for clients that ask for it in Accept. */
+    private void handleTelemetryRequest(HttpOutput output, HttpRequest request) throws IOException {
+        TelemetryDataCollector collector = telemetryDataCollector;
+        if (collector == null) {
+            sendErrorResponse(output, request, 404);
+        } else if (BinaryTelemetryEncoder.prefersBinary(request.getHeader("Accept"))) {
+            ByteBuffer record = TELEMETRY_ENCODERS.get().encode(collector.getSnapshot(), System.currentTimeMillis());
+            ResponseHeaderWriter.begin(200)
+                    .contentType(BinaryTelemetryEncoder.MEDIA_TYPE)
+                    .lines(CORS_ANY_ORIGIN)
+                    .lines(VARY_ACCEPT)
+                    .contentLength(record.remaining())
+                    .connection(request.isKeepAlive())
+                    .writeTo(output, record.array(), record.arrayOffset() + record.position(), record.remaining());
+        } else {
+            // Caches must not hand this to a client asking for the binary record
+            sendJSONResponse(output, request, 200, collector.getSnapshot().toJson(), true);
+        }
+    }
 
-        // Start a thread to continuously capture frames and send them as MJPEG stream
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    // Loop for continuously capturing and sending frames
-                    while (true) {
-                        // Capture a preview frame
-                        mCamera.setPreviewCallback(new Camera.PreviewCallback() {
-                            @Override
-                            public void onPreviewFrame(byte[] data, Camera camera) {
-                                try {
-                                    // Send boundary delimiter
-                                    output.write(("--OSMZ_boundary\r\n").getBytes());
-                                    // Send content type
-                                    output.write(("Content-Type: image/jpeg\r\n").getBytes());
-                                    output.write(("\r\n").getBytes());
-                                    // Send image data
-                                    output.write(data);
-                                    output.write(("\r\n").getBytes());
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Error sending JPEG image: " + e.getMessage());
-                                }
-                            }
-                        });
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error serving MJPEG stream: " + e.getMessage());
-                }
-            }
-        }).start();
+    private void serveTelemetryStream(HttpOutput output, HttpRequest request) throws IOException {
+        TelemetryStreamer streamer = telemetryStreamer;
+        if (streamer == null) {
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        streamer.stream(output, request);
     }
 
-    private void handleTelemetryRequest(OutputStream output) throws IOException {
-        JSONObject telemetryData = telemetryDataCollector.getTelemetryData();
-        if (telemetryData != null) {
-            sendJSONResponse(output, 200, telemetryData);
-        } else {
-            sendErrorResponse(output, 500, "Error collecting telemetry data");
+    /**
+     * Downsampled history of one channel: ?channel=accelerometer&from=&to=&buckets=, times in epoch
+     * milliseconds. Defaults to the last minute in 100 buckets.
+     */
+    private void handleTelemetryHistoryRequest(HttpOutput output, HttpRequest request) throws IOException {
+        TelemetryDataCollector collector = telemetryDataCollector;
+        if (collector == null) {
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        TelemetryHistory.Channel channel = collector.getHistory().getChannel(String.valueOf(request.getQueryParameter("channel")));
+        if (channel == null) {
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        long to;
+        long from;
+        int buckets;
+        try {
+            String value = request.getQueryParameter("to");
+            to = value == null ? System.currentTimeMillis() : Long.parseLong(value);
+            value = request.getQueryParameter("from");
+            from = value == null ? to - DEFAULT_HISTORY_RANGE_MS : Long.parseLong(value);
+            value = request.getQueryParameter("buckets");
+            buckets = value == null ? DEFAULT_HISTORY_BUCKETS : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            sendErrorResponse(output, request, 400);
+            return;
+        }
+        if (from >= to || buckets < 1 || buckets > TelemetryHistory.MAX_BUCKETS) {
+            sendErrorResponse(output, request, 400);
+            return;
         }
+        sendJSONResponse(output, request, 200, TelemetryHistory.toJson(channel, from, to, buckets), false);
     }
 
-    private void sendJSONResponse(OutputStream output, int statusCode, JSONObject json) throws IOException {
-        output.write(("HTTP/1.1 " + statusCode + " OK\r\n").getBytes());
-        output.write(("Content-Type: application/json\r\n").getBytes());
-        output.write(("Access-Control-Allow-Origin: *\r\n").getBytes()); // Add CORS header to allow cross-origin requests
-        output.write(("\r\n").getBytes());
-        output.write((json.toString()).getBytes());
+    /** @param varyOnAccept whether the route also serves other media types chosen by Accept */
+    private void sendJSONResponse(HttpOutput output, HttpRequest request, int statusCode, JSONObject json, boolean varyOnAccept) throws IOException {
+        byte[] body = json.toString().getBytes();
+        ResponseHeaderWriter header = ResponseHeaderWriter.begin(statusCode)
+                .contentType("application/json")
+                .lines(CORS_ANY_ORIGIN);
+        String encoding = CompressionPolicy.negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding != null && compressionPolicy.shouldCompress("application/json", body.length)) {
+            // Telemetry changes on every request, so favour speed over ratio
+            body = CompressionPolicy.compress(body, 0, body.length, encoding, Deflater.BEST_SPEED);
+            header.header("Content-Encoding", encoding);
+            if (varyOnAccept) {
+                header.lines(VARY_ACCEPT_AND_ENCODING);
+            } else {
+                header.lines(CompressionPolicy.VARY);
+            }
+        } else if (varyOnAccept) {
+            header.lines(VARY_ACCEPT);
+        }
+        header.contentLength(body.length)
+                .connection(request.isKeepAlive())
+                .writeTo(output, body);
     }
 
-    private void serveStaticFile(OutputStream output, String fileName) throws IOException {
-        File file = new File(Environment.getExternalStorageDirectory() + SERVER_ROOT + fileName);
-        if (!file.exists()) {
-            sendErrorResponse(output, 404, "File Not Found");
+    private void serveFile(HttpOutput output, HttpRequest request, String path) throws IOException {
+        // "..", "." and empty segments are refused outright, so the path cannot climb out of the root
+        if (!isPlainPath(path)) {
+            Log.d(TAG, "Refused path: " + path);
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        // Ranges are always cut from the file itself, cached entries only serve whole bodies
+        String rangeHeader = request.getHeader("Range");
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        File root = getCanonicalRoot();
+        File file = new File(root, path.equals("/") ? DEFAULT_PAGE : path);
+        // Only files that passed the check below are ever cached, so a hit needs no syscall
+        StaticFileCache.Entry cached = rangeHeader == null ? fileCache.get(file) : null;
+        if (cached != null) {
+            serveCachedFile(output, request, file, cached, CompressionPolicy.negotiate(acceptEncoding));
             return;
         }
 
-        FileInputStream fis = null;
+        // Links must not lead out of the served tree either
+        File canonical;
         try {
-            fis = new FileInputStream(file);
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                output.write(buffer, 0, bytesRead);
+            canonical = file.getCanonicalFile();
+        } catch (IOException e) {
+            Log.e(TAG, "Error resolving " + path + ": " + e.getMessage());
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        if (!isWithin(canonical, root)) {
+            Log.d(TAG, "Outside the document root: " + path);
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+
+        if (file.isDirectory()) {
+            File listed = listingDirectory;
+            if (listed != null && isWithin(canonical, listed)) {
+                serveDirectoryListing(output, request, path, file);
+            } else {
+                sendErrorResponse(output, request, 404);
             }
-        } finally {
-            if (fis != null) {
-                fis.close();
+            return;
+        }
+        if (!file.exists() || !file.isFile()) {
+            Log.d(TAG, "File not found: " + file.getAbsolutePath());
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+
+        // Taken before reading so a change during the read is caught on revalidation
+        long lastModified = file.lastModified();
+        long length = file.length();
+        String contentType = getContentType(file);
+        boolean compressible = compressionPolicy.isCompressible(contentType);
+
+        // Large files are not compressed on the fly, but a precompressed sibling is used if present
+        if (length > STREAMING_THRESHOLD && rangeHeader == null && compressible && CompressionPolicy.acceptsGzip(acceptEncoding)) {
+            File precompressed = new File(file.getPath() + ".gz");
+            if (precompressed.isFile() && precompressed.lastModified() >= lastModified) {
+                sendPrecompressedFile(output, request, file, precompressed, contentType);
+                return;
             }
         }
-    }
 
-    private byte[] readFileData(File file) throws IOException {
-        byte[] buffer = new byte[1024];
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+        String etag = HttpCachePolicy.etag(length, lastModified);
+        String vary = compressible ? CompressionPolicy.VARY : "";
+        if (HttpCachePolicy.isNotModified(request, etag, lastModified)) {
+            ResponseHeaderWriter.begin(304)
+                    .lines(cachePolicy.validatorHeaders(file.getName(), etag, lastModified) + vary)
+                    .connection(request.isKeepAlive())
+                    .writeTo(output);
+            return;
+        }
+
+        if (rangeHeader != null && !HttpCachePolicy.isRangeApplicable(request, etag, lastModified)) {
+            rangeHeader = null;
+        }
+
+        String validators = cachePolicy.validatorHeaders(file.getName(), etag, lastModified) + ACCEPT_RANGES + vary;
+        if (length > STREAMING_THRESHOLD || rangeHeader != null) {
+            sendFileResponse(output, request, file, contentType, validators, rangeHeader);
+            return;
+        }
+
+        try {
+            byte[] fileContent = readFileContent(file);
+            if (contentType != null && fileContent != null) {
+                // The cache compares against the bytes actually read, so use their length
+                etag = HttpCachePolicy.etag(fileContent.length, lastModified);
+                byte[] header = (cachePolicy.validatorHeaders(file.getName(), etag, lastModified) + ACCEPT_RANGES + vary).getBytes();
+                StaticFileCache.Entry entry = fileCache.put(file, lastModified, contentType, etag, header, fileContent);
+                serveCachedFile(output, request, file, entry, CompressionPolicy.negotiate(acceptEncoding));
+            } else {
+                Log.e(TAG, "Failed to read file: " + file.getAbsolutePath());
+                sendErrorResponse(output, request, 500);
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error serving file: " + e.getMessage());
+            sendErrorResponse(output, request, 500);
         }
-        return outputStream.toByteArray();
     }
 
-    private String getMimeType(String filePath) {
-        String extension = MimeTypeMap.getFileExtensionFromUrl(filePath);
-        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    /** Serves a cached file, compressed when the client accepts it and compression pays off. */
+    private void serveCachedFile(HttpOutput output, HttpRequest request, File file, StaticFileCache.Entry entry, String encoding) throws IOException {
+        StaticFileCache.Variant variant = null;
+        if (encoding != null && compressionPolicy.shouldCompress(entry.contentType, entry.length)) {
+            variant = getEncodedVariant(file, entry, encoding);
+        }
+        if (variant == null) {
+            if (HttpCachePolicy.isNotModified(request, entry.etag, entry.lastModified)) {
+                sendNotModified(output, request, entry.header);
+            } else {
+                sendCachedFile(output, request, entry);
+            }
+        } else if (HttpCachePolicy.isNotModified(request, variant.etag, entry.lastModified)) {
+            sendNotModified(output, request, variant.header);
+        } else {
+            ResponseHeaderWriter.begin(200)
+                    .contentType(entry.contentType)
+                    .contentLength(variant.body.length)
+                    .lines(variant.header)
+                    .connection(request.isKeepAlive())
+                    .writeTo(output, variant.body);
+        }
     }
 
-    private String getUserAgent(BufferedReader in) throws IOException {
-        String line;
-        while ((line = in.readLine()) != null) {
-            if (line.startsWith("User-Agent:")) {
-                return line.substring("User-Agent:".length()).trim();
+    /**
+     * Compressed form of a cached file, built once and kept with the entry. A gzip sibling that is
+     * not older than the file is used as is.
+     *
+     * @return null if compression does not make the body smaller
+     */
+    private StaticFileCache.Variant getEncodedVariant(File file, StaticFileCache.Entry entry, String encoding) throws IOException {
+        StaticFileCache.Variant variant = entry.getVariant(encoding);
+        if (variant == null) {
+            byte[] body = null;
+            String etag = HttpCachePolicy.variantEtag(entry.etag, encoding);
+            File precompressed = new File(file.getPath() + ".gz");
+            if (CompressionPolicy.GZIP.equals(encoding) && precompressed.isFile()
+                    && precompressed.lastModified() >= entry.lastModified
+                    && precompressed.length() <= fileCache.getMaxEntryBytes()) {
+                long precompressedModified = precompressed.lastModified();
+                body = readFileContent(precompressed);
+                etag = HttpCachePolicy.variantEtag(HttpCachePolicy.etag(body.length, precompressedModified), encoding);
+            }
+            if (body == null) {
+                body = CompressionPolicy.compress(entry.body, 0, entry.body.length, encoding, Deflater.BEST_COMPRESSION);
             }
+            byte[] header = (cachePolicy.validatorHeaders(file.getName(), etag, entry.lastModified) +
+                    "Content-Encoding: " + encoding + "\r\n" +
+                    CompressionPolicy.VARY).getBytes();
+            variant = new StaticFileCache.Variant(etag, header, body.length < entry.body.length ? body : null);
+            fileCache.putVariant(file, entry, encoding, variant);
         }
-        return "Unknown";
+        return variant.body != null ? variant : null;
     }
 
-    private void serveFile(OutputStream output, String path) throws IOException {
-        try {
-            File file;
-            if (path.equals("/")) {
-                file = new File(Environment.getExternalStorageDirectory() + SERVER_ROOT + DEFAULT_PAGE);
+    /** HTML index of a directory, streamed as it is generated so a large one is never held whole. */
+    private void serveDirectoryListing(HttpOutput output, HttpRequest request, String path, File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            sendErrorResponse(output, request, 404);
+            return;
+        }
+        Arrays.sort(files);
+        // Titled with the decoded path, linked relative to the path as it was sent
+        String title = path.endsWith("/") ? path : path + "/";
+        String base = request.getPath().endsWith("/") ? request.getPath() : request.getPath() + "/";
+        HttpResponse response = new HttpResponse(output, request, 200, "text/html; charset=utf-8");
+        response.header("Cache-Control", "no-cache");
+        response.write(("<!DOCTYPE html>\n<html><head><title>Index of " + escapeHtml(title) + "</title></head><body>\n"
+                + "<h1>Index of " + escapeHtml(title) + "</h1>\n<ul>\n").getBytes(StandardCharsets.UTF_8));
+        for (File file : files) {
+            String name = file.isDirectory() ? file.getName() + "/" : file.getName();
+            String href = base + encodePathSegment(file.getName()) + (file.isDirectory() ? "/" : "");
+            response.write(("<li><a href=\"" + escapeHtml(href) + "\">" + escapeHtml(name) + "</a></li>\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        response.write("</ul>\n</body></html>\n".getBytes(StandardCharsets.UTF_8));
+        // Small listings leave with a Content-Length, larger ones in chunks as they fill up
+        response.close();
+    }
+
+    /** Percent-encodes a file name as UTF-8, leaving only unreserved characters as they are. */
+    private static String encodePathSegment(String name) {
+        StringBuilder encoded = new StringBuilder(name.length());
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                encoded.append((char) c);
             } else {
-                file = new File(Environment.getExternalStorageDirectory() + SERVER_ROOT + path);
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
             }
+        }
+        return encoded.toString();
+    }
 
-            if (file.exists() && file.isFile()) {
-                String contentType = getContentType(file);
-                byte[] fileContent = readFileContent(file);
-                if (contentType != null && fileContent != null) {
-                    String mimeType = null;
-                    sendResponse(output, 200, contentType, mimeType, fileContent);
-                } else {
-                    Log.e(TAG, "Failed to read file: " + file.getAbsolutePath());
-                    sendErrorResponse(output, 500, "Internal Server Error");
-                }
+    private static String escapeHtml(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /** Streams a file's precompressed .gz sibling with Content-Encoding: gzip. */
+    private void sendPrecompressedFile(HttpOutput output, HttpRequest request, File file, File precompressed, String contentType) throws IOException {
+        long lastModified = precompressed.lastModified();
+        String etag = HttpCachePolicy.variantEtag(HttpCachePolicy.etag(precompressed.length(), lastModified), CompressionPolicy.GZIP);
+        String validators = cachePolicy.validatorHeaders(file.getName(), etag, lastModified) + CompressionPolicy.VARY;
+        if (HttpCachePolicy.isNotModified(request, etag, lastModified)) {
+            ResponseHeaderWriter.begin(304)
+                    .lines(validators)
+                    .connection(request.isKeepAlive())
+                    .writeTo(output);
+            return;
+        }
+        sendFileResponse(output, request, precompressed, contentType, validators + "Content-Encoding: gzip\r\n", null);
+    }
+
+    /**
+     * Streams the file, or the requested ranges of it, with transferTo so heap use and time to
+     * first byte do not depend on the file size. The file is handed to the output with its region,
+     * so an NIO worker does not wait for the client to take it.
+     *
+     * @param rangeHeader Range header to honour, or null to send the whole file
+     */
+    private void sendFileResponse(HttpOutput output, HttpRequest request, File file, String contentType, String extraHeaders, String rangeHeader) throws IOException {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Failed to open file: " + file.getAbsolutePath());
+            sendErrorResponse(output, request, 500);
+            return;
+        }
+        boolean handedOver = false;
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            List<ByteRange> ranges = ByteRange.parse(rangeHeader, length);
+            if (ranges == null) {
+                writeResponseHeader(output, request, 200, contentType, length, extraHeaders);
+                handedOver = true;
+                output.transferAndClose(channel, 0, length);
+            } else if (ranges.isEmpty()) {
+                sendRangeNotSatisfiable(output, request, length);
+            } else if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                writeResponseHeader(output, request, 206, contentType, range.length(),
+                        extraHeaders + "Content-Range: " + range.contentRange(length) + "\r\n");
+                handedOver = true;
+                output.transferAndClose(channel, range.start, range.length());
             } else {
-                Log.d(TAG, "File not found: " + file.getAbsolutePath());
-                sendErrorResponse(output, 404, "Not Found");
+                sendMultipartRanges(output, request, file, contentType, length, ranges, extraHeaders);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error serving file: " + e.getMessage());
-            sendErrorResponse(output, 500, "Internal Server Error");
+        } catch (IOException e) {
+            // Part of the body may already be on the wire, the connection cannot be reused
+            request.setKeepAlive(false);
+            throw e;
+        } finally {
+            if (!handedOver) {
+                in.close();
+            }
+        }
+    }
+
+    /** Each part gets a channel of its own, so every region can be handed over with its file. */
+    private void sendMultipartRanges(HttpOutput output, HttpRequest request, File file, String contentType,
+                                     long length, List<ByteRange> ranges, String extraHeaders) throws IOException {
+        String boundary = "OSMZ_" + Long.toHexString(System.nanoTime());
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            partHeaders[i] = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: " + range.contentRange(length) + "\r\n\r\n").getBytes();
+            contentLength += partHeaders[i].length + range.length();
         }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes();
+        contentLength += closing.length;
+
+        writeResponseHeader(output, request, 206, "multipart/byteranges; boundary=" + boundary, contentLength, extraHeaders);
+        for (int i = 0; i < ranges.size(); i++) {
+            output.write(partHeaders[i]);
+            output.transferAndClose(new FileInputStream(file).getChannel(), ranges.get(i).start, ranges.get(i).length());
+        }
+        output.write(closing);
     }
 
-    private void sendResponse(OutputStream output, int statusCode, String contentType, String mimeType, byte[] content) throws IOException {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-        String date = dateFormat.format(new Date());
+    private void sendRangeNotSatisfiable(HttpOutput output, HttpRequest request, long length) throws IOException {
+        ResponseHeaderWriter.begin(416)
+                .header("Content-Range", "bytes */" + length)
+                .contentLength(0)
+                .connection(request.isKeepAlive())
+                .writeTo(output);
+    }
+
+    /** 304 for a cached file or snapshot; its pre-encoded lines carry the validators and Cache-Control. */
+    private void sendNotModified(HttpOutput output, HttpRequest request, byte[] validators) throws IOException {
+        ResponseHeaderWriter.begin(304)
+                .lines(validators)
+                .connection(request.isKeepAlive())
+                .writeTo(output);
+    }
+
+    private void sendCachedFile(HttpOutput output, HttpRequest request, StaticFileCache.Entry entry) throws IOException {
+        ResponseHeaderWriter.begin(200)
+                .contentType(entry.contentType)
+                .contentLength(entry.length)
+                .lines(entry.header)
+                .connection(request.isKeepAlive())
+                .writeTo(output, entry.body);
+    }
+
+    private void writeResponseHeader(HttpOutput output, HttpRequest request, int statusCode, String contentType, long contentLength, String extraHeaders) throws IOException {
+        ResponseHeaderWriter.begin(statusCode)
+                .contentType(contentType)
+                .contentLength(contentLength)
+                .lines(extraHeaders)
+                .connection(request.isKeepAlive())
+                .writeTo(output);
+    }
 
-        String response = "HTTP/1.0 " + statusCode + " " + getResponseStatus(statusCode) + "\r\n" +
-                "Date: " + date + "\r\n" +
-                "Content-Type: " + contentType + "\r\n" +
-                "Content-Length: " + content.length + "\r\n\r\n";
-        output.write(response.getBytes());
-        output.write(content);
+    private void sendErrorResponse(HttpOutput output, HttpRequest request, int statusCode) throws IOException {
+        ResponseHeaderWriter.begin(statusCode)
+                .contentLength(0)
+                .connection(request != null && request.isKeepAlive())
+                .writeTo(output);
     }
 
-    private void sendErrorResponse(OutputStream output, int statusCode, String statusMessage) throws IOException {
-        String response = "HTTP/1.0 " + statusCode + " " + statusMessage + "\r\n\r\n";
-        output.write(response.getBytes());
+    private File getDocumentRoot() {
+        return documentRoot != null ? documentRoot : new File(Environment.getExternalStorageDirectory() + SERVER_ROOT);
+    }
+
+    private File getCanonicalRoot() {
+        File root = canonicalRoot;
+        if (root == null) {
+            try {
+                root = getDocumentRoot().getCanonicalFile();
+            } catch (IOException e) {
+                Log.e(TAG, "Error resolving document root: " + e.getMessage());
+                root = getDocumentRoot().getAbsoluteFile();
+            }
+            canonicalRoot = root;
+        }
+        return root;
+    }
+
+    /** Whether a decoded path is absolute and free of ".", ".." and empty segments; a trailing '/' is allowed. */
+    private static boolean isPlainPath(String path) {
+        if (!path.startsWith("/")) {
+            return false;
+        }
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            int length = end - start;
+            if (length == 0 || (path.charAt(start) == '.' && (length == 1 || (length == 2 && path.charAt(start + 1) == '.')))) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /** Whether a canonical file is the canonical directory or lies somewhere below it. */
+    private static boolean isWithin(File file, File directory) {
+        String prefix = directory.getPath().endsWith(File.separator) ? directory.getPath() : directory.getPath() + File.separator;
+        return file.equals(directory) || file.getPath().startsWith(prefix);
     }
 
     private String getContentType(File file) {
-        String extension = file.getName().substring(file.getName().lastIndexOf(".") + 1);
-        String contentType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase());
+        String extension = file.getName().substring(file.getName().lastIndexOf(".") + 1).toLowerCase();
+        MimeTypeMap mimeTypes = MimeTypeMap.getSingleton();
+        String contentType = mimeTypes != null ? mimeTypes.getMimeTypeFromExtension(extension) : null;
+        if (contentType == null) {
+            contentType = commonContentType(extension);
+        }
         if (contentType == null) {
             contentType = "text/html";
         }
         return contentType;
     }
 
+    /** Types of the files this server usually hosts, for when the platform table is missing or lacks them. */
+    private static String commonContentType(String extension) {
+        switch (extension) {
+            case "html":
+            case "htm":
+                return "text/html";
+            case "css":
+                return "text/css";
+            case "js":
+                return "application/javascript";
+            case "json":
+                return "application/json";
+            case "txt":
+                return "text/plain";
+            case "xml":
+                return "text/xml";
+            case "svg":
+                return "image/svg+xml";
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "gif":
+                return "image/gif";
+            case "webp":
+                return "image/webp";
+            case "ico":
+                return "image/x-icon";
+            case "mp4":
+                return "video/mp4";
+            case "webm":
+                return "video/webm";
+            case "mp3":
+                return "audio/mpeg";
+            case "pdf":
+                return "application/pdf";
+            case "zip":
+                return "application/zip";
+            case "gz":
+                return "application/gzip";
+            case "bin":
+                return "application/octet-stream";
+            default:
+                return null;
+        }
+    }
+
     private byte[] readFileContent(File file) throws IOException {
         FileInputStream fis = new FileInputStream(file);
         BufferedInputStream bis = new BufferedInputStream(fis);
@@ -411,17 +1162,4 @@ public class  SocketServer extends Thread {
         fis.close();
         return bos.toByteArray();
     }
-
-    private String getResponseStatus(int statusCode) {
-        switch (statusCode) {
-            case 200:
-                return "OK";
-            case 404:
-                return "Not Found";
-            case 500:
-                return "Internal Server Error";
-            default:
-                return "Unknown";
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package com.example.osmzhttpserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. Offer and poll
+ * are a few volatile reads and ordered writes on a fixed array, so handing objects between the
+ * camera thread and the encoder allocates nothing and never blocks either side.
+ */
+final class SpscQueue<E> {
+    private final Object[] slots;
+    private final int mask;
+    private final int capacity;
+    // Next slot to poll, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to fill, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Object[size];
+        this.mask = size - 1;
+        this.capacity = capacity;
+    }
+
+    /** Producer side; false if the queue is full. */
+    boolean offer(E element) {
+        long t = tail.get();
+        if (t - head.get() >= capacity) {
+            return false;
+        }
+        slots[(int) (t & mask)] = element;
+        // Publishes the slot write to the consumer
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /** Consumer side; null if the queue is empty. */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) (h & mask);
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    int size() {
+        // Head first: the tail read after it can only be further ahead
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.osmzhttpserver;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-budgeted LRU cache of small static files, keyed by resolved path. Entries hold the body
+ * together with the pre-encoded header lines that never change for it, and are re-checked against
+ * the file's size and modification time at most once per revalidation interval, so hot files are
+ * served without touching the filesystem.
+ */
+public class StaticFileCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long revalidateIntervalMs;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public StaticFileCache(long maxBytes, long maxEntryBytes, long revalidateIntervalMs) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.revalidateIntervalMs = revalidateIntervalMs;
+    }
+
+    /** Cached content for the file, or null if it is not cached or has changed on disk. */
+    public Entry get(File file) {
+        String key = file.getPath();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - entry.lastValidated >= revalidateIntervalMs) {
+            // lastModified() is 0 when the file is gone
+            if (file.lastModified() != entry.lastModified || file.length() != entry.length) {
+                remove(key, entry);
+                missCount.incrementAndGet();
+                return null;
+            }
+            entry.lastValidated = now;
+        }
+        hitCount.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Caches the file content read by the caller.
+     *
+     * @param header pre-encoded header lines sent with every response for this file
+     * @return the new entry, also returned when it is too large to keep
+     */
+    public Entry put(File file, long lastModified, String contentType, String etag, byte[] header, byte[] body) {
+        Entry entry = new Entry(lastModified, body.length, contentType, etag, header, body);
+        if (entry.size() > maxEntryBytes || entry.size() > maxBytes) {
+            return entry;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(file.getPath(), entry);
+            if (previous != null) {
+                currentBytes -= previous.size();
+            }
+            currentBytes += entry.size();
+            evictToBudget();
+        }
+        return entry;
+    }
+
+    /**
+     * Attaches a content-coded variant to a cached entry and charges it to the byte budget, so the
+     * file is compressed only once. Variants of an entry evicted meanwhile are dropped with it.
+     */
+    public void putVariant(File file, Entry entry, String encoding, Variant variant) {
+        synchronized (this) {
+            if (entry.getVariant(encoding) != null) {
+                return;
+            }
+            entry.setVariant(encoding, variant);
+            if (entries.get(file.getPath()) == entry) {
+                currentBytes += variant.size();
+                evictToBudget();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+            currentBytes -= entry.size();
+        }
+    }
+
+    private void evictToBudget() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().getValue().size();
+            it.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /** Cached file; only the validation timestamp and the encoded variants change. */
+    public static class Entry {
+        final long lastModified;
+        final long length;
+        final String contentType;
+        final String etag;
+        final byte[] header;
+        final byte[] body;
+        volatile long lastValidated;
+        // Guarded by the cache for writes, read without locking
+        private volatile Variant gzip;
+        private volatile Variant deflate;
+
+        Entry(long lastModified, long length, String contentType, String etag, byte[] header, byte[] body) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.header = header;
+            this.body = body;
+            this.lastValidated = System.currentTimeMillis();
+        }
+
+        /** Variant for a content coding, or null if none has been built yet. */
+        Variant getVariant(String encoding) {
+            return CompressionPolicy.GZIP.equals(encoding) ? gzip : deflate;
+        }
+
+        private void setVariant(String encoding, Variant variant) {
+            if (CompressionPolicy.GZIP.equals(encoding)) {
+                gzip = variant;
+            } else {
+                deflate = variant;
+            }
+        }
+
+        long size() {
+            long size = header.length + body.length;
+            Variant variant = gzip;
+            if (variant != null) {
+                size += variant.size();
+            }
+            variant = deflate;
+            if (variant != null) {
+                size += variant.size();
+            }
+            return size;
+        }
+    }
+
+    /** Compressed form of an entry; a null body records that compression did not pay off. */
+    public static class Variant {
+        final String etag;
+        final byte[] header;
+        final byte[] body;
+
+        Variant(String etag, byte[] header, byte[] body) {
+            this.etag = etag;
+            this.header = header;
+            this.body = body;
+        }
+
+        long size() {
+            return header.length + (body != null ? body.length : 0);
+        }
+    }
+}
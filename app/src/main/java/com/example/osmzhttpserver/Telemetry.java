@@ -2,9 +2,6 @@ package com.example.osmzhttpserver;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
@@ -13,21 +10,24 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import androidx.core.app.ActivityCompat;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.File;
 import java.util.Random;
 
-public class Telemetry implements LocationListener, SensorEventListener {
-    private SensorManager sensorManager;
+public class Telemetry implements LocationListener, SensorSamplingEngine.Consumer {
+    // The log only shows a reading every few seconds
+    private static final int SAMPLING_PERIOD_US = 200 * 1000;
+    private static final int MAX_REPORT_LATENCY_US = 1000 * 1000;
+    private final SensorSamplingEngine samplingEngine;
+    // Guarded by this; paces the uplink, null while there is none
+    private SensorSamplingEngine.Consumer uplinkSampler;
     private Context context;
-    private Map<String, Object> data;
+    private final TelemetryStore store = new TelemetryStore();
+    private static final long MAX_SPOOL_BYTES = 4 * 1024 * 1024;
+    // Guarded by this; created by the first send
+    private TelemetryUplink uplink;
     private Handler handler;
     private Runnable updateTelemetryRunnable;
     private static final String TAG = "Telemetry";
@@ -35,9 +35,8 @@ public class Telemetry implements LocationListener, SensorEventListener {
     public Telemetry(Context context, Handler handler) {
         this.context = context;
         this.handler = handler;
-        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        samplingEngine = SensorSamplingEngine.getInstance(context);
         registerSensorListeners();
-        data = new HashMap<>();
         startLocationUpdates();
         updateTelemetryRunnable = new Runnable() {
             @Override
@@ -50,17 +49,14 @@ public class Telemetry implements LocationListener, SensorEventListener {
     }
 
     private void updateTelemetry() {
-        data.put("time", System.currentTimeMillis());
-        JSONObject json = new JSONObject(data);
+        JSONObject json = store.snapshot().toJson();
         Message message = handler.obtainMessage(1, json.toString());
         message.sendToTarget();
     }
 
     private void registerSensorListeners() {
-        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        Sensor gyro = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-        sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
-        sensorManager.registerListener(this, gyro, SensorManager.SENSOR_DELAY_NORMAL);
+        samplingEngine.subscribe(Sensor.TYPE_ACCELEROMETER, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, this);
+        samplingEngine.subscribe(Sensor.TYPE_GYROSCOPE, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, this);
     }
 
     public static JSONObject generateRandomTelemetryData() {
@@ -71,14 +67,22 @@ public class Telemetry implements LocationListener, SensorEventListener {
             telemetryData.put("pressure", generateRandomPressure());
             telemetryData.put("latitude", generateRandomLatitude());
             telemetryData.put("longitude", generateRandomLongitude());
-            telemetryData.put("acceleration", generateRandomAcceleration());
-            telemetryData.put("gyroscope", generateRandomGyroscope());
+            telemetryData.put("acceleration", toJsonArray(generateRandomAcceleration()));
+            telemetryData.put("gyroscope", toJsonArray(generateRandomGyroscope()));
         } catch (JSONException e) {
             Log.e(TAG, "Error creating telemetry data: " + e.getMessage());
         }
         return telemetryData;
     }
 
+    private static JSONArray toJsonArray(float[] values) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (float value : values) {
+            array.put((double) value);
+        }
+        return array;
+    }
+
     public static double generateRandomTemperature() {
         Random random = new Random();
         return Math.min(35.0, Math.max(20.0, 20.0 + random.nextFloat() * 15));
@@ -104,22 +108,22 @@ public class Telemetry implements LocationListener, SensorEventListener {
         return Math.min(14.0, Math.max(10.0, 10.0 + random.nextDouble() * 4));
     }
 
-    public static String generateRandomAcceleration() {
+    public static float[] generateRandomAcceleration() {
         Random random = new Random();
         float[] acceleration = new float[3];
         for (int i = 0; i < 3; i++) {
             acceleration[i] = Math.min(1.0f, Math.max(0.0f, random.nextFloat()));
         }
-        return Arrays.toString(acceleration);
+        return acceleration;
     }
 
-    public static String generateRandomGyroscope() {
+    public static float[] generateRandomGyroscope() {
         Random random = new Random();
         float[] gyroscope = new float[3];
         for (int i = 0; i < 3; i++) {
             gyroscope[i] = Math.min(1.0f, Math.max(-1.0f, random.nextFloat() * 2 - 1));
         }
-        return Arrays.toString(gyroscope);
+        return gyroscope;
     }
 
     private void startLocationUpdates() {
@@ -131,25 +135,21 @@ public class Telemetry implements LocationListener, SensorEventListener {
 
     @Override
     public void onLocationChanged(Location location) {
-        collectData("latitude", location.getLatitude());
-        collectData("longitude", location.getLongitude());
+        store.updateLocation(location.getLatitude(), location.getLongitude(), location.getAccuracy(), location.getTime());
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        switch (event.sensor.getType()) {
+    public void onSample(int sensorType, float x, float y, float z, long timeMs) {
+        switch (sensorType) {
             case Sensor.TYPE_ACCELEROMETER:
-                collectData("acceleration", event.values);
+                store.updateAccelerometer(x, y, z, timeMs);
                 break;
             case Sensor.TYPE_GYROSCOPE:
-                collectData("gyroscope", event.values);
+                store.updateGyroscope(x, y, z, timeMs);
                 break;
         }
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-
     @Override
     public void onStatusChanged(String provider, int status, Bundle extras) {}
 
@@ -164,24 +164,66 @@ public class Telemetry implements LocationListener, SensorEventListener {
         if (locationManager != null) {
             locationManager.removeUpdates(this);
         }
+        samplingEngine.unsubscribe(this);
+        TelemetryUplink closing;
+        synchronized (this) {
+            if (uplinkSampler != null) {
+                samplingEngine.unsubscribe(uplinkSampler);
+                uplinkSampler = null;
+            }
+            closing = uplink;
+            uplink = null;
+        }
+        if (closing != null) {
+            // Whatever is still batched goes out or to the spool
+            closing.close();
+        }
     }
 
-    public void sendTelemetryData(String host, int port) {
-        JSONObject json = new JSONObject(data);
-        String serializedData = json.toString();
-        try (Socket socket = new Socket(host, port);
-             OutputStream outputStream = socket.getOutputStream()) {
-            outputStream.write(serializedData.getBytes());
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Sends a sample to the collector at host:port once per period, paced by the accelerometer
+     * through the sampling engine, until {@link #stopTelemetryDataCollector()}.
+     */
+    public void startUplink(final String host, final int port, int periodUs) {
+        SensorSamplingEngine.Consumer sampler = new SensorSamplingEngine.Consumer() {
+            @Override
+            public void onSample(int sensorType, float x, float y, float z, long timeMs) {
+                sendTelemetryData(host, port);
+            }
+        };
+        synchronized (this) {
+            if (uplinkSampler != null) {
+                samplingEngine.unsubscribe(uplinkSampler);
+            }
+            uplinkSampler = sampler;
         }
+        samplingEngine.subscribe(Sensor.TYPE_ACCELEROMETER, periodUs, MAX_REPORT_LATENCY_US, sampler);
     }
 
-    private void collectData(String key, Object value) {
-        data.put(key, value);
+    /**
+     * Queues the current values for the collector at host:port. Samples are batched onto one
+     * connection by a {@link TelemetryUplink} and spooled while the collector is unreachable.
+     */
+    public void sendTelemetryData(String host, int port) {
+        TelemetryUplink target;
+        TelemetryUplink closing = null;
+        synchronized (this) {
+            if (uplink == null || !uplink.getHost().equals(host) || uplink.getPort() != port) {
+                closing = uplink;
+                uplink = new TelemetryUplink(host, port, new File(context.getFilesDir(), "telemetry-spool"), MAX_SPOOL_BYTES);
+            }
+            target = uplink;
+        }
+        if (closing != null) {
+            // Outside the lock, as in stopTelemetryDataCollector; joining its sender can take a while
+            closing.close();
+        }
+        if (!target.offer(store.snapshot())) {
+            Log.d(TAG, "Telemetry uplink is behind, sample dropped");
+        }
     }
 
-    public Map<String, Object> getTelemetryDataMap() {
-        return data;
+    public TelemetryStore getStore() {
+        return store;
     }
 }
\ No newline at end of file
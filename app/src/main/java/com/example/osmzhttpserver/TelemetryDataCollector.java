@@ -1,150 +1,94 @@
 package com.example.osmzhttpserver;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorListener;
-import android.hardware.SensorManager;
-import android.location.Location;
-import android.os.Looper;
 import android.util.Log;
 
-import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
-
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationCallback;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationResult;
-import com.google.android.gms.location.LocationServices;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.OutputStream;
 
-public class TelemetryDataCollector implements SensorEventListener {
-    private SensorManager sensorManager;
-    private JSONObject telemetryData;
-    private FusedLocationProviderClient fusedLocationClient;
-    private static final long LOCATION_UPDATE_INTERVAL = 10000; // 10 seconds
-    private static final long FASTEST_LOCATION_UPDATE_INTERVAL = 5000; // 5 seconds
-    private double latitude;
-    private double longitude;
+public class TelemetryDataCollector implements SensorSamplingEngine.Consumer {
+    // Feeds /telemetry, its stream and the history
+    private static final int SAMPLING_PERIOD_US = 50 * 1000;
+    // Samples may wait in the sensor FIFO this long, which lets the CPU sleep in between
+    private static final int MAX_REPORT_LATENCY_US = 200 * 1000;
+    private final SensorSamplingEngine samplingEngine;
+    private final TelemetryHistory history = new TelemetryHistory();
+    private final TelemetryStore store = new TelemetryStore(history);
+    private final LocationCache locationCache;
     private Context context;
     private static final String TAG = "TelemetryDataCollector";
 
     public TelemetryDataCollector(Context context) {
         this.context = context;
-        fusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
-        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        telemetryData = new JSONObject();
+        locationCache = new LocationCache(context, store);
+        locationCache.start();
+        samplingEngine = SensorSamplingEngine.getInstance(context);
         registerSensorListeners();
     }
 
     private void registerSensorListeners() {
-        // Register listeners for required sensors
-        // Example:
-        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        sensorManager.registerListener((SensorEventListener) this, accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
-        // Register for other required sensors
+        samplingEngine.subscribe(Sensor.TYPE_ACCELEROMETER, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, this);
+        samplingEngine.subscribe(Sensor.TYPE_GYROSCOPE, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US, this);
     }
 
-
-    private void unregisterSensorListeners() {
-        sensorManager.unregisterListener((SensorListener) this);
+    /** Stops sampling and location updates for this collector; it keeps serving the last values it recorded. */
+    public void close() {
+        // The engine is process-wide and would otherwise keep the sensors on and this collector alive
+        samplingEngine.unsubscribe(this);
+        locationCache.stop();
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        // Update telemetryData with sensor data
-        // Example:
-        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            try {
-                telemetryData.put("accelerometer_x", event.values[0]);
-                telemetryData.put("accelerometer_y", event.values[1]);
-                telemetryData.put("accelerometer_z", event.values[2]);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+    public void onSample(int sensorType, float x, float y, float z, long timeMs) {
+        if (sensorType == Sensor.TYPE_ACCELEROMETER) {
+            store.updateAccelerometer(x, y, z, timeMs);
+        } else if (sensorType == Sensor.TYPE_GYROSCOPE) {
+            store.updateGyroscope(x, y, z, timeMs);
         }
-        // Handle other sensor data
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // Handle accuracy changes if needed
+    /** JSON of a consistent snapshot; a new object each time, so callers may keep it. */
+    public JSONObject getTelemetryData() {
+        return getSnapshot().toJson();
     }
 
-    public JSONObject getTelemetryData() {
-        return telemetryData;
+    public TelemetrySnapshot getSnapshot() {
+        // Location in the snapshot is read too, which keeps its updates coming at the read rate
+        locationCache.noteRead();
+        return store.snapshot();
     }
 
-    public void collectTelemetryData(final TelemetryDataCallback callback) {
-        LocationRequest locationRequest = LocationRequest.create()
-                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
-                .setInterval(LOCATION_UPDATE_INTERVAL)
-                .setFastestInterval(FASTEST_LOCATION_UPDATE_INTERVAL);
-
-        if (ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
-                && ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            // Permission is not granted, handle it here
-            // For example, request permission from the user
-            // ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, PERMISSION_REQUEST_CODE);
-            return;
-        }
+    public LocationCache getLocationCache() {
+        return locationCache;
+    }
+
+    public TelemetryStore getStore() {
+        return store;
+    }
 
-        fusedLocationClient.getLastLocation().addOnSuccessListener(location -> {
-            if (location != null) {
-                try {
-                    JSONObject telemetryJson = new JSONObject();
-                    telemetryJson.put("latitude", location.getLatitude());
-                    telemetryJson.put("longitude", location.getLongitude());
-                    callback.onTelemetryDataReceived(telemetryJson); // Call the callback with the telemetry data
-                } catch (JSONException | IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                requestLocationUpdates(locationRequest, callback);
-            }
-        }).addOnFailureListener(e -> {
-            e.printStackTrace();
-        });
+    /** Every recorded sensor event of the recent past. */
+    public TelemetryHistory getHistory() {
+        return history;
     }
 
-    private void requestLocationUpdates(LocationRequest locationRequest, TelemetryDataCallback callback) {
-        if (ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
-                && ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            // Permission is not granted, handle it here
-            // For example, request permission from the user
-            // ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, PERMISSION_REQUEST_CODE);
+    /**
+     * Hands the cached location to the callback right away if there is one. Location comes from
+     * the cache's single subscription; nothing is registered per call.
+     */
+    public void collectTelemetryData(final TelemetryDataCallback callback) {
+        JSONObject telemetryJson = collectTelemetryData();
+        if (telemetryJson == null) {
             return;
         }
-
-        fusedLocationClient.requestLocationUpdates(locationRequest, new LocationCallback() {
-            @Override
-            public void onLocationResult(LocationResult locationResult) {
-                super.onLocationResult(locationResult);
-                if (locationResult != null) {
-                    Location location = locationResult.getLastLocation();
-                    if (location != null) {
-                        try {
-                            JSONObject telemetryJson = new JSONObject();
-                            telemetryJson.put("latitude", location.getLatitude());
-                            telemetryJson.put("longitude", location.getLongitude());
-                            callback.onTelemetryDataReceived(telemetryJson);
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                }
-            }
-        }, Looper.getMainLooper());
+        try {
+            callback.onTelemetryDataReceived(telemetryJson);
+        } catch (IOException e) {
+            Log.e(TAG, "Error delivering telemetry data: " + e.getMessage());
+        }
     }
 
     private void sendJSONResponse(OutputStream output, int statusCode, JSONObject json) throws IOException {
@@ -159,19 +103,21 @@ public class TelemetryDataCollector implements SensorEventListener {
         void onTelemetryDataReceived(JSONObject telemetryData) throws IOException;
     }
 
+    /** Cached location as JSON without waiting for the location client, or null before the first fix. */
     public JSONObject collectTelemetryData() {
+        LocationCache.Fix fix = locationCache.getLatest();
+        if (fix == null) {
+            Log.d(TAG, "No location yet");
+            return null;
+        }
         try {
-            Location lastLocation = fusedLocationClient.getLastLocation().getResult();
-            if (lastLocation != null) {
-                JSONObject telemetryJson = new JSONObject();
-                telemetryJson.put("latitude", lastLocation.getLatitude());
-                telemetryJson.put("longitude", lastLocation.getLongitude());
-                // Add other telemetry data to the JSON object as needed
-                return telemetryJson;
-            } else {
-                Log.e(TAG, "Last location is null");
-            }
-        } catch (SecurityException | JSONException e) {
+            JSONObject telemetryJson = new JSONObject();
+            telemetryJson.put("latitude", fix.latitude);
+            telemetryJson.put("longitude", fix.longitude);
+            telemetryJson.put("accuracy", fix.accuracy);
+            telemetryJson.put("location_age", fix.getAgeMs());
+            return telemetryJson;
+        } catch (JSONException e) {
             Log.e(TAG, "Error collecting telemetry data: " + e.getMessage());
         }
         return null;
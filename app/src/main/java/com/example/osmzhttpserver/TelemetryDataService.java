@@ -35,6 +35,8 @@ public class TelemetryDataService extends Service {
     }
 
     private void startDataCollection() {
+        // onStartCommand runs again for every start request, replace what the last one began
+        stopDataCollection();
         telemetryDataCollector = new TelemetryDataCollector(getApplicationContext());
         timer = new Timer();
         timer.scheduleAtFixedRate(new TimerTask() {
@@ -57,7 +59,7 @@ public class TelemetryDataService extends Service {
             timer.cancel();
         }
         if (telemetryDataCollector != null) {
-            // Cleanup resources if needed
+            telemetryDataCollector.close();
         }
     }
 }
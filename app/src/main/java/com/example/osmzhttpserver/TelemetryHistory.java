@@ -0,0 +1,182 @@
+package com.example.osmzhttpserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent history of every telemetry channel in fixed-size rings of primitive arrays, so recording
+ * a sensor event allocates nothing and memory stays bounded. Queries reduce a time range to a
+ * number of buckets with min/max/avg per component, which is all a chart needs.
+ */
+public class TelemetryHistory {
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int MAX_BUCKETS = 1000;
+
+    public static final String ACCELEROMETER = "accelerometer";
+    public static final String GYROSCOPE = "gyroscope";
+    public static final String LOCATION = "location";
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /** Ring of timestamped samples with a fixed number of components. */
+    public static final class Channel {
+        final String name;
+        final String[] components;
+        private final int capacity;
+        // Guarded by this; sample i lives at i % capacity
+        private final long[] times;
+        private final double[] values;
+        private long count;
+
+        Channel(String name, String[] components, int capacity) {
+            this.name = name;
+            this.components = components;
+            this.capacity = capacity;
+            this.times = new long[capacity];
+            this.values = new double[capacity * components.length];
+        }
+
+        public synchronized void record(long timeMs, double a, double b, double c) {
+            int slot = (int) (count % capacity);
+            times[slot] = timeMs;
+            int base = slot * components.length;
+            values[base] = a;
+            if (components.length > 1) {
+                values[base + 1] = b;
+            }
+            if (components.length > 2) {
+                values[base + 2] = c;
+            }
+            count++;
+        }
+
+        public synchronized int size() {
+            return (int) Math.min(count, capacity);
+        }
+
+        /** Time of the oldest retained sample, or -1 if there is none. */
+        public synchronized long getOldestTime() {
+            return count == 0 ? -1 : times[(int) (Math.max(0, count - capacity) % capacity)];
+        }
+
+        /**
+         * Reduces the samples in [from, to) to equal-width buckets. Empty buckets are left out.
+         *
+         * @return per bucket: start time, sample count, then min, max and avg of each component
+         */
+        public synchronized List<double[]> downsample(long from, long to, int buckets) {
+            List<double[]> result = new ArrayList<>();
+            if (to <= from || buckets <= 0) {
+                return result;
+            }
+            int dims = components.length;
+            double width = (to - from) / (double) buckets;
+            double[][] rows = new double[buckets][];
+            for (long i = Math.max(0, count - capacity); i < count; i++) {
+                int slot = (int) (i % capacity);
+                long time = times[slot];
+                if (time < from || time >= to) {
+                    continue;
+                }
+                int bucket = Math.min(buckets - 1, (int) ((time - from) / width));
+                double[] row = rows[bucket];
+                if (row == null) {
+                    row = new double[2 + dims * 3];
+                    row[0] = from + (long) (bucket * width);
+                    for (int d = 0; d < dims; d++) {
+                        row[2 + d * 3] = Double.POSITIVE_INFINITY;
+                        row[3 + d * 3] = Double.NEGATIVE_INFINITY;
+                    }
+                    rows[bucket] = row;
+                }
+                row[1]++;
+                int base = slot * dims;
+                for (int d = 0; d < dims; d++) {
+                    double v = values[base + d];
+                    int o = 2 + d * 3;
+                    row[o] = Math.min(row[o], v);
+                    row[o + 1] = Math.max(row[o + 1], v);
+                    // Sum until all samples are in
+                    row[o + 2] += v;
+                }
+            }
+            for (double[] row : rows) {
+                if (row != null) {
+                    for (int d = 0; d < dims; d++) {
+                        row[4 + d * 3] /= row[1];
+                    }
+                    result.add(row);
+                }
+            }
+            return result;
+        }
+    }
+
+    public TelemetryHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity samples kept per channel */
+    public TelemetryHistory(int capacity) {
+        addChannel(ACCELEROMETER, new String[]{"x", "y", "z"}, capacity);
+        addChannel(GYROSCOPE, new String[]{"x", "y", "z"}, capacity);
+        addChannel(LOCATION, new String[]{"latitude", "longitude", "accuracy"}, capacity);
+    }
+
+    public Channel addChannel(String name, String[] components, int capacity) {
+        if (components.length < 1 || components.length > 3) {
+            throw new IllegalArgumentException("Channels have 1 to 3 components: " + name);
+        }
+        Channel channel = new Channel(name, components, capacity);
+        channels.put(name, channel);
+        return channel;
+    }
+
+    /** The channel, or null if there is none of that name. */
+    public Channel getChannel(String name) {
+        return channels.get(name);
+    }
+
+    /**
+     * JSON answer to a history query for one channel:
+     * {"channel", "from", "to", "components": [..], "buckets": [{"t", "n", "<component>": {"min", "max", "avg"}}]}
+     */
+    public static JSONObject toJson(Channel channel, long from, long to, int buckets) {
+        List<double[]> rows = channel.downsample(from, to, buckets);
+        JSONObject json = new JSONObject();
+        try {
+            json.put("channel", channel.name);
+            json.put("from", from);
+            json.put("to", to);
+            JSONArray components = new JSONArray();
+            for (String component : channel.components) {
+                components.put(component);
+            }
+            json.put("components", components);
+            JSONArray array = new JSONArray();
+            for (double[] row : rows) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("t", (long) row[0]);
+                bucket.put("n", (long) row[1]);
+                for (int d = 0; d < channel.components.length; d++) {
+                    JSONObject stats = new JSONObject();
+                    stats.put("min", row[2 + d * 3]);
+                    stats.put("max", row[3 + d * 3]);
+                    stats.put("avg", row[4 + d * 3]);
+                    bucket.put(channel.components[d], stats);
+                }
+                array.put(bucket);
+            }
+            json.put("buckets", array);
+        } catch (JSONException e) {
+            throw new IllegalStateException("Invalid telemetry value: " + e.getMessage());
+        }
+        return json;
+    }
+}
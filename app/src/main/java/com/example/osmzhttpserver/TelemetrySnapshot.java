@@ -0,0 +1,88 @@
+package com.example.osmzhttpserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Consistent, immutable view of all telemetry values at one point. A reading that has not
+ * arrived yet has a timestamp of 0.
+ */
+public final class TelemetrySnapshot {
+    /** Incremented by every update of the store; equal sequences mean equal values. */
+    public final long sequence;
+
+    public final float accelerometerX;
+    public final float accelerometerY;
+    public final float accelerometerZ;
+    public final long accelerometerTimeMs;
+
+    public final float gyroscopeX;
+    public final float gyroscopeY;
+    public final float gyroscopeZ;
+    public final long gyroscopeTimeMs;
+
+    public final double latitude;
+    public final double longitude;
+    public final float accuracy;
+    public final long locationTimeMs;
+
+    TelemetrySnapshot(long sequence, float accelerometerX, float accelerometerY, float accelerometerZ, long accelerometerTimeMs,
+                      float gyroscopeX, float gyroscopeY, float gyroscopeZ, long gyroscopeTimeMs,
+                      double latitude, double longitude, float accuracy, long locationTimeMs) {
+        this.sequence = sequence;
+        this.accelerometerX = accelerometerX;
+        this.accelerometerY = accelerometerY;
+        this.accelerometerZ = accelerometerZ;
+        this.accelerometerTimeMs = accelerometerTimeMs;
+        this.gyroscopeX = gyroscopeX;
+        this.gyroscopeY = gyroscopeY;
+        this.gyroscopeZ = gyroscopeZ;
+        this.gyroscopeTimeMs = gyroscopeTimeMs;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.locationTimeMs = locationTimeMs;
+    }
+
+    public boolean hasAccelerometer() {
+        return accelerometerTimeMs != 0;
+    }
+
+    public boolean hasGyroscope() {
+        return gyroscopeTimeMs != 0;
+    }
+
+    public boolean hasLocation() {
+        return locationTimeMs != 0;
+    }
+
+    /** Flat JSON object of the readings that have arrived, plus the current time. */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("time", System.currentTimeMillis());
+            if (hasAccelerometer()) {
+                json.put("accelerometer_x", accelerometerX);
+                json.put("accelerometer_y", accelerometerY);
+                json.put("accelerometer_z", accelerometerZ);
+                json.put("accelerometer_time", accelerometerTimeMs);
+            }
+            if (hasGyroscope()) {
+                json.put("gyroscope_x", gyroscopeX);
+                json.put("gyroscope_y", gyroscopeY);
+                json.put("gyroscope_z", gyroscopeZ);
+                json.put("gyroscope_time", gyroscopeTimeMs);
+            }
+            if (hasLocation()) {
+                json.put("latitude", latitude);
+                json.put("longitude", longitude);
+                json.put("accuracy", accuracy);
+                json.put("location_time", locationTimeMs);
+            }
+        } catch (JSONException e) {
+            // Only thrown for NaN and infinite values
+            throw new IllegalStateException("Invalid telemetry value: " + e.getMessage());
+        }
+        return json;
+    }
+}
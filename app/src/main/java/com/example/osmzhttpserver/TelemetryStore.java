@@ -0,0 +1,138 @@
+package com.example.osmzhttpserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest telemetry values, written by sensor and location callbacks and read by HTTP threads.
+ * Updates store primitives in place under a sequence lock, so a callback allocates nothing;
+ * readers copy the values into a {@link TelemetrySnapshot} and retry if an update overlapped.
+ * With a {@link TelemetryHistory} attached, every update is also recorded there.
+ */
+public class TelemetryStore {
+    private static final int ACCELEROMETER_X = 0;
+    private static final int ACCELEROMETER_Y = 1;
+    private static final int ACCELEROMETER_Z = 2;
+    private static final int ACCELEROMETER_TIME = 3;
+    private static final int GYROSCOPE_X = 4;
+    private static final int GYROSCOPE_Y = 5;
+    private static final int GYROSCOPE_Z = 6;
+    private static final int GYROSCOPE_TIME = 7;
+    private static final int LATITUDE = 8;
+    private static final int LONGITUDE = 9;
+    private static final int ACCURACY = 10;
+    private static final int LOCATION_TIME = 11;
+    private static final int SLOTS = 12;
+
+    // Odd while an update is in progress; every update adds 2
+    private final AtomicLong sequence = new AtomicLong();
+    // Floats and doubles are kept as their raw bits
+    private final AtomicLongArray values = new AtomicLongArray(SLOTS);
+    // Last complete snapshot, handed out again while nothing has changed
+    private volatile TelemetrySnapshot cached;
+    private final TelemetryHistory history;
+    // Channels of the history, or null
+    private final TelemetryHistory.Channel accelerometerHistory;
+    private final TelemetryHistory.Channel gyroscopeHistory;
+    private final TelemetryHistory.Channel locationHistory;
+
+    public TelemetryStore() {
+        this(null);
+    }
+
+    public TelemetryStore(TelemetryHistory history) {
+        this.history = history;
+        this.accelerometerHistory = history == null ? null : history.getChannel(TelemetryHistory.ACCELEROMETER);
+        this.gyroscopeHistory = history == null ? null : history.getChannel(TelemetryHistory.GYROSCOPE);
+        this.locationHistory = history == null ? null : history.getChannel(TelemetryHistory.LOCATION);
+    }
+
+    /** History the updates are recorded into, or null. */
+    public TelemetryHistory getHistory() {
+        return history;
+    }
+
+    public void updateAccelerometer(float x, float y, float z, long timeMs) {
+        long s = beginWrite();
+        values.set(ACCELEROMETER_X, Float.floatToRawIntBits(x));
+        values.set(ACCELEROMETER_Y, Float.floatToRawIntBits(y));
+        values.set(ACCELEROMETER_Z, Float.floatToRawIntBits(z));
+        values.set(ACCELEROMETER_TIME, timeMs);
+        sequence.set(s + 1);
+        if (accelerometerHistory != null) {
+            accelerometerHistory.record(timeMs, x, y, z);
+        }
+    }
+
+    public void updateGyroscope(float x, float y, float z, long timeMs) {
+        long s = beginWrite();
+        values.set(GYROSCOPE_X, Float.floatToRawIntBits(x));
+        values.set(GYROSCOPE_Y, Float.floatToRawIntBits(y));
+        values.set(GYROSCOPE_Z, Float.floatToRawIntBits(z));
+        values.set(GYROSCOPE_TIME, timeMs);
+        sequence.set(s + 1);
+        if (gyroscopeHistory != null) {
+            gyroscopeHistory.record(timeMs, x, y, z);
+        }
+    }
+
+    public void updateLocation(double latitude, double longitude, float accuracy, long timeMs) {
+        long s = beginWrite();
+        values.set(LATITUDE, Double.doubleToRawLongBits(latitude));
+        values.set(LONGITUDE, Double.doubleToRawLongBits(longitude));
+        values.set(ACCURACY, Float.floatToRawIntBits(accuracy));
+        values.set(LOCATION_TIME, timeMs);
+        sequence.set(s + 1);
+        if (locationHistory != null) {
+            locationHistory.record(timeMs, latitude, longitude, accuracy);
+        }
+    }
+
+    /** Claims the store for one writer; other writers spin for the few stores it takes. */
+    private long beginWrite() {
+        while (true) {
+            long s = sequence.get();
+            if ((s & 1) == 0 && sequence.compareAndSet(s, s + 1)) {
+                return s + 1;
+            }
+            Thread.yield();
+        }
+    }
+
+    /** Count of updates so far; cheap way to see whether anything changed. */
+    public long getSequence() {
+        return sequence.get() >> 1;
+    }
+
+    /** Values of one moment, never a mix of two updates. */
+    public TelemetrySnapshot snapshot() {
+        while (true) {
+            long before = sequence.get();
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            TelemetrySnapshot last = cached;
+            if (last != null && last.sequence == before >> 1) {
+                return last;
+            }
+            TelemetrySnapshot snapshot = new TelemetrySnapshot(before >> 1,
+                    Float.intBitsToFloat((int) values.get(ACCELEROMETER_X)),
+                    Float.intBitsToFloat((int) values.get(ACCELEROMETER_Y)),
+                    Float.intBitsToFloat((int) values.get(ACCELEROMETER_Z)),
+                    values.get(ACCELEROMETER_TIME),
+                    Float.intBitsToFloat((int) values.get(GYROSCOPE_X)),
+                    Float.intBitsToFloat((int) values.get(GYROSCOPE_Y)),
+                    Float.intBitsToFloat((int) values.get(GYROSCOPE_Z)),
+                    values.get(GYROSCOPE_TIME),
+                    Double.longBitsToDouble(values.get(LATITUDE)),
+                    Double.longBitsToDouble(values.get(LONGITUDE)),
+                    Float.intBitsToFloat((int) values.get(ACCURACY)),
+                    values.get(LOCATION_TIME));
+            if (sequence.get() == before) {
+                cached = snapshot;
+                return snapshot;
+            }
+        }
+    }
+}
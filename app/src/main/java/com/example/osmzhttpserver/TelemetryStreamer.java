@@ -0,0 +1,374 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes telemetry as Server-Sent Events. Connections are detached from their workers and fed by
+ * one scheduler thread: each tick takes a single snapshot of the store, so sensor events between
+ * ticks coalesce, and each subscriber due for an update gets only the groups that changed since
+ * its last event. Subscribers wanting the same groups share one serialized payload.
+ */
+public class TelemetryStreamer {
+    private static final String TAG = "TelemetryStreamer";
+    private static final long TICK_MS = 100;
+    public static final long MIN_INTERVAL_MS = TICK_MS;
+    public static final long MAX_INTERVAL_MS = 60 * 1000;
+    private static final long DEFAULT_INTERVAL_MS = 1000;
+    // Unsent bytes at which a subscriber is dropped instead of skipped
+    private static final long MAX_BACKLOG_BYTES = 64 * 1024;
+    // Comment sent when nothing changed for this long, so proxies keep the connection
+    private static final long KEEP_ALIVE_MS = 15 * 1000;
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes();
+
+    static final int ACCELEROMETER = 1;
+    static final int GYROSCOPE = 2;
+    static final int LOCATION = 4;
+    static final int ALL = ACCELEROMETER | GYROSCOPE | LOCATION;
+
+    private final TelemetryStore store;
+    private volatile int maxSubscribers;
+    private volatile boolean closed;
+    private final ScheduledExecutorService scheduler;
+
+    // Only touched on the scheduler thread
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private ScheduledFuture<?> ticker;
+
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicLong sentEvents = new AtomicLong();
+    private final AtomicLong skippedEvents = new AtomicLong();
+    private final AtomicLong droppedSubscribers = new AtomicLong();
+    private final AtomicLong rejectedSubscribers = new AtomicLong();
+
+    private static final class Subscriber {
+        final PushConnection connection;
+        final long intervalMs;
+        long nextDueMs;
+        long lastSendMs;
+        // Values of the last event, null before the first
+        TelemetrySnapshot last;
+
+        Subscriber(PushConnection connection, long intervalMs, long now) {
+            this.connection = connection;
+            this.intervalMs = intervalMs;
+            this.nextDueMs = now;
+            this.lastSendMs = now;
+        }
+    }
+
+    /** @param maxSubscribers concurrent streams; they hold no worker thread, only a socket */
+    public TelemetryStreamer(TelemetryStore store, int maxSubscribers) {
+        this.store = store;
+        this.maxSubscribers = maxSubscribers;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TelemetryStream");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void setMaxSubscribers(int maxSubscribers) {
+        this.maxSubscribers = maxSubscribers;
+    }
+
+    /**
+     * Answers with an event stream and hands the connection to the scheduler; returns right away.
+     * ?interval= sets the milliseconds between events, default one second.
+     */
+    public void stream(HttpOutput output, HttpRequest request) throws IOException {
+        // The stream ends only with the connection
+        request.setKeepAlive(false);
+        long intervalMs = DEFAULT_INTERVAL_MS;
+        String value = request.getQueryParameter("interval");
+        if (value != null) {
+            try {
+                intervalMs = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                ResponseHeaderWriter.begin(400)
+                        .contentLength(0)
+                        .connection(false)
+                        .writeTo(output);
+                return;
+            }
+        }
+        if (closed || !addSubscriber()) {
+            Log.d(TAG, "Subscriber limit reached");
+            rejectedSubscribers.incrementAndGet();
+            ResponseHeaderWriter.begin(503)
+                    .header("Retry-After", RETRY_AFTER_SECONDS)
+                    .contentLength(0)
+                    .connection(false)
+                    .writeTo(output);
+            return;
+        }
+        final PushConnection connection;
+        try {
+            ResponseHeaderWriter.begin(200)
+                    .contentType("text/event-stream")
+                    .header("Cache-Control", "no-cache")
+                    .header("Access-Control-Allow-Origin", "*")
+                    .connection(false)
+                    .writeTo(output);
+            // Reconnect delay for EventSource clients
+            output.write(("retry: " + RETRY_AFTER_SECONDS * 1000 + "\n\n").getBytes());
+            output.flush();
+            connection = output.detach();
+        } catch (IOException e) {
+            subscriberCount.decrementAndGet();
+            throw e;
+        }
+
+        final Subscriber subscriber = new Subscriber(connection, intervalMs, System.currentTimeMillis());
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    subscribers.add(subscriber);
+                    if (ticker == null) {
+                        ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+                            @Override
+                            public void run() {
+                                tick();
+                            }
+                        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed in the meantime
+            subscriberCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    private boolean addSubscriber() {
+        while (true) {
+            int count = subscriberCount.get();
+            if (count >= maxSubscribers) {
+                return false;
+            }
+            if (subscriberCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** One round over the subscribers. Scheduler thread only. */
+    void tick() {
+        try {
+            if (subscribers.isEmpty()) {
+                // Nobody listening, stop waking up until somebody subscribes
+                if (ticker != null) {
+                    ticker.cancel(false);
+                    ticker = null;
+                }
+                return;
+            }
+            long now = System.currentTimeMillis();
+            TelemetrySnapshot current = store.snapshot();
+            // Serialized events of this tick by changed groups, built when first needed
+            ByteBuffer[] payloads = new ByteBuffer[ALL + 1];
+            Iterator<Subscriber> it = subscribers.iterator();
+            while (it.hasNext()) {
+                Subscriber subscriber = it.next();
+                PushConnection connection = subscriber.connection;
+                if (!connection.isOpen()) {
+                    remove(it);
+                    continue;
+                }
+                if (now < subscriber.nextDueMs) {
+                    continue;
+                }
+                subscriber.nextDueMs = Math.max(subscriber.nextDueMs + subscriber.intervalMs, now);
+
+                long backlog = connection.getBacklog();
+                if (backlog > MAX_BACKLOG_BYTES) {
+                    Log.d(TAG, "Dropping subscriber " + backlog + " bytes behind");
+                    droppedSubscribers.incrementAndGet();
+                    connection.close();
+                    remove(it);
+                    continue;
+                }
+                if (backlog > 0) {
+                    // Still sending the previous event; the next one carries the newest values
+                    skippedEvents.incrementAndGet();
+                    continue;
+                }
+
+                ByteBuffer data;
+                int groups = subscriber.last == null ? ALL : changedGroups(subscriber.last, current);
+                if (groups != 0) {
+                    if (payloads[groups] == null) {
+                        payloads[groups] = ByteBuffer.wrap(encodeEvent(current, groups, now));
+                    }
+                    data = payloads[groups].duplicate();
+                    subscriber.last = current;
+                } else if (now - subscriber.lastSendMs >= KEEP_ALIVE_MS) {
+                    data = ByteBuffer.wrap(KEEP_ALIVE);
+                } else {
+                    continue;
+                }
+                if (!connection.send(data)) {
+                    remove(it);
+                    continue;
+                }
+                subscriber.lastSendMs = now;
+                if (groups != 0) {
+                    sentEvents.incrementAndGet();
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule for everybody
+            Log.e(TAG, "Error pushing telemetry: " + e.getMessage());
+        }
+    }
+
+    private void remove(Iterator<Subscriber> it) {
+        it.remove();
+        subscriberCount.decrementAndGet();
+    }
+
+    /** Bit mask of the groups whose values differ between two snapshots. */
+    static int changedGroups(TelemetrySnapshot previous, TelemetrySnapshot current) {
+        if (previous.sequence == current.sequence) {
+            return 0;
+        }
+        int groups = 0;
+        if (previous.accelerometerTimeMs != current.accelerometerTimeMs
+                || previous.accelerometerX != current.accelerometerX
+                || previous.accelerometerY != current.accelerometerY
+                || previous.accelerometerZ != current.accelerometerZ) {
+            groups |= ACCELEROMETER;
+        }
+        if (previous.gyroscopeTimeMs != current.gyroscopeTimeMs
+                || previous.gyroscopeX != current.gyroscopeX
+                || previous.gyroscopeY != current.gyroscopeY
+                || previous.gyroscopeZ != current.gyroscopeZ) {
+            groups |= GYROSCOPE;
+        }
+        if (previous.locationTimeMs != current.locationTimeMs
+                || previous.latitude != current.latitude
+                || previous.longitude != current.longitude
+                || previous.accuracy != current.accuracy) {
+            groups |= LOCATION;
+        }
+        return groups;
+    }
+
+    /**
+     * One event with the given groups of the snapshot, in the keys of {@link TelemetrySnapshot#toJson()};
+     * groups without a reading yet are left out. The id is the store sequence.
+     */
+    static byte[] encodeEvent(TelemetrySnapshot snapshot, int groups, long timeMs) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("id: ").append(snapshot.sequence).append("\ndata: {\"time\":").append(timeMs);
+        if ((groups & ACCELEROMETER) != 0 && snapshot.hasAccelerometer()) {
+            appendField(sb, "accelerometer_x", snapshot.accelerometerX);
+            appendField(sb, "accelerometer_y", snapshot.accelerometerY);
+            appendField(sb, "accelerometer_z", snapshot.accelerometerZ);
+            sb.append(",\"accelerometer_time\":").append(snapshot.accelerometerTimeMs);
+        }
+        if ((groups & GYROSCOPE) != 0 && snapshot.hasGyroscope()) {
+            appendField(sb, "gyroscope_x", snapshot.gyroscopeX);
+            appendField(sb, "gyroscope_y", snapshot.gyroscopeY);
+            appendField(sb, "gyroscope_z", snapshot.gyroscopeZ);
+            sb.append(",\"gyroscope_time\":").append(snapshot.gyroscopeTimeMs);
+        }
+        if ((groups & LOCATION) != 0 && snapshot.hasLocation()) {
+            appendField(sb, "latitude", snapshot.latitude);
+            appendField(sb, "longitude", snapshot.longitude);
+            appendField(sb, "accuracy", snapshot.accuracy);
+            sb.append(",\"location_time\":").append(snapshot.locationTimeMs);
+        }
+        sb.append("}\n\n");
+        return sb.toString().getBytes();
+    }
+
+    private static void appendField(StringBuilder sb, String name, double value) {
+        sb.append(",\"").append(name).append("\":");
+        // JSON has no NaN or infinity
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private static void appendField(StringBuilder sb, String name, float value) {
+        sb.append(",\"").append(name).append("\":");
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            sb.append("null");
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /** Ends the streams of everybody subscribed now; new subscribers can still connect. */
+    public void disconnectSubscribers() {
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeAll();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Already closed
+        }
+    }
+
+    /** Ends all streams for good and stops the scheduler thread. */
+    public void close() {
+        closed = true;
+        disconnectSubscribers();
+        scheduler.shutdown();
+    }
+
+    private void closeAll() {
+        Iterator<Subscriber> it = subscribers.iterator();
+        while (it.hasNext()) {
+            it.next().connection.close();
+            remove(it);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    public long getSentEvents() {
+        return sentEvents.get();
+    }
+
+    /** Events left out because the subscriber had not taken the previous one yet. */
+    public long getSkippedEvents() {
+        return skippedEvents.get();
+    }
+
+    /** Subscribers disconnected for falling too far behind. */
+    public long getDroppedSubscribers() {
+        return droppedSubscribers.get();
+    }
+
+    public long getRejectedSubscribers() {
+        return rejectedSubscribers.get();
+    }
+}
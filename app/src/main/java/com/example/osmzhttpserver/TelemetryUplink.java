@@ -0,0 +1,466 @@
+package com.example.osmzhttpserver;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ships telemetry samples to a collector over one persistent TCP connection. Samples are encoded
+ * as {@link BinaryTelemetryEncoder} records into a batch that goes out once it is full or old
+ * enough, as one frame: a little-endian u32 length followed by the records. While the collector
+ * cannot be reached, frames go to a bounded spool directory and are replayed in order, ahead of
+ * anything new, once it can.
+ */
+public class TelemetryUplink {
+    private static final String TAG = "TelemetryUplink";
+    public static final int DEFAULT_MAX_BATCH_SAMPLES = 50;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MS = 5000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long MIN_RETRY_MS = 1000;
+    private static final long MAX_RETRY_MS = 60 * 1000;
+    private static final int FRAME_HEADER_SIZE = 4;
+    private static final String SPOOL_PREFIX = "batch-";
+    private static final String SPOOL_SUFFIX = ".bin";
+
+    private final String host;
+    private final int port;
+    private final File spoolDirectory;
+    private final long maxSpoolBytes;
+    private final int maxBatchSamples;
+    private final long maxBatchDelayMs;
+    private final Thread sender;
+
+    // Guarded by this; samples are added to filling while the sender writes out the other buffer
+    private ByteBuffer filling;
+    private ByteBuffer spare;
+    private int samples;
+    private long batchStartMs;
+    private boolean closed;
+    private long nextConnectMs;
+
+    // Written by the sender thread only
+    private volatile Socket socket;
+    private OutputStream out;
+    private long retryMs = MIN_RETRY_MS;
+    // Guarded by spool; oldest first
+    private final ArrayDeque<File> spool = new ArrayDeque<>();
+    private long spoolBytes;
+    private long nextSpoolIndex;
+
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong sentSamples = new AtomicLong();
+    private final AtomicLong spooledBatches = new AtomicLong();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private final AtomicLong rejectedSamples = new AtomicLong();
+
+    public TelemetryUplink(String host, int port, File spoolDirectory, long maxSpoolBytes) {
+        this(host, port, spoolDirectory, maxSpoolBytes, DEFAULT_MAX_BATCH_SAMPLES, DEFAULT_MAX_BATCH_DELAY_MS);
+    }
+
+    /**
+     * @param maxBatchSamples samples per frame at most
+     * @param maxBatchDelayMs how long the first sample of a batch may wait for more
+     */
+    public TelemetryUplink(String host, int port, File spoolDirectory, long maxSpoolBytes,
+                           int maxBatchSamples, long maxBatchDelayMs) {
+        this.host = host;
+        this.port = port;
+        this.spoolDirectory = spoolDirectory;
+        this.maxSpoolBytes = maxSpoolBytes;
+        this.maxBatchSamples = maxBatchSamples;
+        this.maxBatchDelayMs = maxBatchDelayMs;
+        int capacity = FRAME_HEADER_SIZE + maxBatchSamples * BinaryTelemetryEncoder.RECORD_SIZE;
+        this.filling = newBatch(capacity);
+        this.spare = newBatch(capacity);
+        loadSpool();
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "TelemetryUplink");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private static ByteBuffer newBatch(int capacity) {
+        ByteBuffer batch = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        batch.position(FRAME_HEADER_SIZE);
+        return batch;
+    }
+
+    /**
+     * Adds a sample to the current batch. Never blocks on the network.
+     *
+     * @return false if the uplink is closed or the sender has not yet taken a full batch
+     */
+    public boolean offer(TelemetrySnapshot snapshot) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed || samples >= maxBatchSamples) {
+                rejectedSamples.incrementAndGet();
+                return false;
+            }
+            BinaryTelemetryEncoder.encode(snapshot, now, filling);
+            if (samples++ == 0) {
+                batchStartMs = now;
+            }
+            if (samples == 1 || samples >= maxBatchSamples) {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /** Sends or spools what is batched and stops the sender, waiting for it a bounded time. */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            sender.join(CONNECT_TIMEOUT_MS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSender() {
+        while (true) {
+            ByteBuffer batch;
+            int count;
+            boolean last;
+            synchronized (this) {
+                try {
+                    while (!closed) {
+                        long wait = nextWakeMs() - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                count = samples;
+                batch = count > 0 ? filling : null;
+                if (batch != null) {
+                    filling = spare;
+                    spare = null;
+                    samples = 0;
+                }
+                last = closed;
+            }
+            deliver(batch, count, !last || batch != null);
+            if (batch != null) {
+                batch.clear();
+                batch.position(FRAME_HEADER_SIZE);
+                synchronized (this) {
+                    spare = batch;
+                    // A full batch may have been waiting for the buffer
+                    notifyAll();
+                }
+            }
+            if (last) {
+                break;
+            }
+        }
+        disconnect();
+    }
+
+    /** When the sender has something to do next. Guarded by this. */
+    private long nextWakeMs() {
+        long wake = Long.MAX_VALUE;
+        if (samples >= maxBatchSamples && spare != null) {
+            return 0;
+        }
+        if (samples > 0) {
+            wake = batchStartMs + maxBatchDelayMs;
+        }
+        if (hasSpool() && socket == null) {
+            // Retry the collector even when nothing new arrives
+            wake = Math.min(wake, nextConnectMs);
+        }
+        return wake;
+    }
+
+    /** Replays the spool and sends the batch, spooling it instead if the collector is unreachable. */
+    private void deliver(ByteBuffer batch, int count, boolean connect) {
+        if (connect && connect()) {
+            replaySpool();
+        }
+        if (batch == null) {
+            return;
+        }
+        batch.putInt(0, batch.position() - FRAME_HEADER_SIZE);
+        if (socket != null && !hasSpool()) {
+            try {
+                out.write(batch.array(), 0, batch.position());
+                out.flush();
+                sentBatches.incrementAndGet();
+                sentSamples.addAndGet(count);
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending telemetry: " + e.getMessage());
+                disconnect();
+            }
+        }
+        writeSpool(batch.array(), batch.position());
+    }
+
+    /** Makes sure there is a connection, at most one attempt per backoff period. */
+    private boolean connect() {
+        if (socket != null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now < nextConnectMs) {
+                return false;
+            }
+        }
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+            out = s.getOutputStream();
+            socket = s;
+            retryMs = MIN_RETRY_MS;
+            Log.d(TAG, "Connected to " + host + ":" + port);
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Collector unreachable: " + e.getMessage());
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Nothing to release
+            }
+            synchronized (this) {
+                nextConnectMs = now + retryMs;
+            }
+            retryMs = Math.min(MAX_RETRY_MS, retryMs * 2);
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing socket: " + e.getMessage());
+        }
+        socket = null;
+        out = null;
+        synchronized (this) {
+            nextConnectMs = System.currentTimeMillis() + retryMs;
+        }
+    }
+
+    /** Sends spooled frames oldest first, deleting each once written. */
+    private void replaySpool() {
+        byte[] buffer = new byte[0];
+        while (socket != null) {
+            File file;
+            synchronized (spool) {
+                file = spool.peekFirst();
+            }
+            if (file == null) {
+                return;
+            }
+            int length = (int) file.length();
+            if (buffer.length < length) {
+                buffer = new byte[length];
+            }
+            try (FileInputStream in = new FileInputStream(file)) {
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(buffer, read, length - read);
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+                length = read;
+            } catch (IOException e) {
+                Log.e(TAG, "Dropping unreadable spool file " + file + ": " + e.getMessage());
+                removeSpooled(file);
+                continue;
+            }
+            try {
+                out.write(buffer, 0, length);
+                out.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Error replaying telemetry: " + e.getMessage());
+                disconnect();
+                return;
+            }
+            sentBatches.incrementAndGet();
+            sentSamples.addAndGet((length - FRAME_HEADER_SIZE) / BinaryTelemetryEncoder.RECORD_SIZE);
+            removeSpooled(file);
+        }
+    }
+
+    private void removeSpooled(File file) {
+        synchronized (spool) {
+            if (spool.peekFirst() == file) {
+                spool.removeFirst();
+                spoolBytes -= file.length();
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            Log.e(TAG, "Failed to delete " + file);
+        }
+    }
+
+    private boolean hasSpool() {
+        synchronized (spool) {
+            return !spool.isEmpty();
+        }
+    }
+
+    private void writeSpool(byte[] frame, int length) {
+        File file;
+        synchronized (spool) {
+            // A replaced uplink may still be spooling its last batch into the same directory
+            do {
+                file = new File(spoolDirectory, String.format("%s%019d%s", SPOOL_PREFIX, nextSpoolIndex++, SPOOL_SUFFIX));
+            } while (file.exists());
+        }
+        // Written aside and renamed, so a crash never leaves half a frame to replay
+        File temp = new File(spoolDirectory, "." + file.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            fileOut.write(frame, 0, length);
+        } catch (IOException e) {
+            Log.e(TAG, "Error spooling telemetry: " + e.getMessage());
+            temp.delete();
+            droppedBatches.incrementAndGet();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Error spooling telemetry to " + file);
+            temp.delete();
+            droppedBatches.incrementAndGet();
+            return;
+        }
+        spooledBatches.incrementAndGet();
+        synchronized (spool) {
+            spool.addLast(file);
+            spoolBytes += length;
+            trimSpool();
+        }
+    }
+
+    /** Deletes the oldest frames until the budget is met; the newest one always stays. Guarded by spool. */
+    private void trimSpool() {
+        while (spoolBytes > maxSpoolBytes && spool.size() > 1) {
+            File oldest = spool.removeFirst();
+            long length = oldest.length();
+            if (!oldest.delete() && oldest.exists()) {
+                Log.e(TAG, "Failed to delete " + oldest);
+            }
+            spoolBytes -= length;
+            droppedBatches.incrementAndGet();
+        }
+    }
+
+    private void loadSpool() {
+        if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create directory: " + spoolDirectory.getAbsolutePath());
+            return;
+        }
+        File[] existing = spoolDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SPOOL_PREFIX) && file.getName().endsWith(SPOOL_SUFFIX);
+            }
+        });
+        if (existing == null) {
+            return;
+        }
+        // Zero-padded indexes sort by name in the order they were written
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        synchronized (spool) {
+            for (File file : existing) {
+                spool.addLast(file);
+                spoolBytes += file.length();
+            }
+            if (existing.length > 0) {
+                String name = existing[existing.length - 1].getName();
+                try {
+                    nextSpoolIndex = Long.parseLong(name.substring(SPOOL_PREFIX.length(), name.length() - SPOOL_SUFFIX.length())) + 1;
+                } catch (NumberFormatException e) {
+                    nextSpoolIndex = existing.length;
+                }
+            }
+            trimSpool();
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    public long getSentSamples() {
+        return sentSamples.get();
+    }
+
+    /** Frames written to the spool because the collector was unreachable. */
+    public long getSpooledBatches() {
+        return spooledBatches.get();
+    }
+
+    /** Frames lost to a full spool or a storage error. */
+    public long getDroppedBatches() {
+        return droppedBatches.get();
+    }
+
+    /** Samples refused because the uplink was closed or behind. */
+    public long getRejectedSamples() {
+        return rejectedSamples.get();
+    }
+
+    public int getSpoolFileCount() {
+        synchronized (spool) {
+            return spool.size();
+        }
+    }
+
+    public long getSpoolBytes() {
+        synchronized (spool) {
+            return spoolBytes;
+        }
+    }
+}
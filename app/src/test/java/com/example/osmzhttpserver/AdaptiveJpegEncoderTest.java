@@ -0,0 +1,70 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveJpegEncoderTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void slowEncodingLowersQualityThenResolution() {
+        AdaptiveJpegEncoder encoder = new AdaptiveJpegEncoder(10);
+        encoder.setQualityRange(40, 80);
+        assertEquals(80, encoder.getQuality());
+        // 100 ms budget per frame, every frame takes 150 ms
+        for (int i = 0; i < 5 * 4; i++) {
+            encoder.adapt(150 * MS, 20000, 0);
+        }
+        assertEquals(40, encoder.getQuality());
+        assertEquals(0, encoder.getScaleShift());
+        for (int i = 0; i < 5; i++) {
+            encoder.adapt(150 * MS, 20000, 0);
+        }
+        assertEquals(1, encoder.getScaleShift());
+        assertEquals(60, encoder.getQuality());
+        assertEquals(150000, encoder.getLastEncodeMicros());
+    }
+
+    @Test
+    public void recoversWithHeadroomAndReactsToBacklogAtOnce() {
+        AdaptiveJpegEncoder encoder = new AdaptiveJpegEncoder(10);
+        encoder.setQualityRange(40, 80);
+        encoder.adapt(10 * MS, 5000, 3);
+        assertEquals(70, encoder.getQuality());
+        for (int i = 0; i < 5; i++) {
+            encoder.adapt(10 * MS, 5000, 0);
+        }
+        assertEquals(80, encoder.getQuality());
+    }
+
+    @Test
+    public void staysUnderTargetBitrate() {
+        AdaptiveJpegEncoder encoder = new AdaptiveJpegEncoder(10);
+        encoder.setQualityRange(40, 80);
+        encoder.setTargetBitrate(100000);
+        // 10 fps x 20 kB = 200 kB/s
+        for (int i = 0; i < 5; i++) {
+            encoder.adapt(MS, 20000, 0);
+        }
+        assertEquals(70, encoder.getQuality());
+    }
+
+    @Test
+    public void downscalesNv21() {
+        int width = 8;
+        int height = 4;
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int i = 0; i < width * height; i++) {
+            nv21[i] = (byte) i;
+        }
+        for (int i = width * height; i < nv21.length; i++) {
+            nv21[i] = (byte) (100 + i - width * height);
+        }
+        assertEquals(4, AdaptiveJpegEncoder.scaledSize(width, 1));
+        assertEquals(2, AdaptiveJpegEncoder.scaledSize(height, 1));
+        byte[] out = new byte[4 * 2 * 3 / 2];
+        AdaptiveJpegEncoder.downscale(nv21, width, height, 1, out);
+        assertArrayEquals(new byte[]{0, 2, 4, 6, 16, 18, 20, 22, 100, 101, 104, 105}, out);
+    }
+}
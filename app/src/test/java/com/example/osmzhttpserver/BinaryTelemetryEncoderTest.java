@@ -0,0 +1,81 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class BinaryTelemetryEncoderTest {
+    @Test
+    public void encodesFixedLittleEndianLayout() {
+        TelemetryStore store = new TelemetryStore();
+        store.updateAccelerometer(1.5f, -2, 9.81f, 1000);
+        store.updateLocation(50.0755, 14.4378, 12, 2000);
+        TelemetrySnapshot snapshot = store.snapshot();
+
+        BinaryTelemetryEncoder encoder = new BinaryTelemetryEncoder();
+        ByteBuffer record = encoder.encode(snapshot, 3000);
+        assertEquals(BinaryTelemetryEncoder.RECORD_SIZE, record.remaining());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, record.order());
+        assertEquals(1, record.get(0));
+        assertEquals(BinaryTelemetryEncoder.ACCELEROMETER | BinaryTelemetryEncoder.LOCATION, record.get(1));
+        assertEquals(88, record.getShort(2));
+        assertEquals(2, record.getLong(4));
+        assertEquals(3000, record.getLong(12));
+        assertEquals(1.5f, record.getFloat(20), 0);
+        assertEquals(1000, record.getLong(32));
+        assertEquals(0, record.getLong(52));
+        assertEquals(50.0755, record.getDouble(60), 0);
+        assertEquals(12f, record.getFloat(76), 0);
+        assertEquals(2000, record.getLong(80));
+
+        // The buffer is reused rather than reallocated
+        assertSame(record, encoder.encode(snapshot, 4000));
+    }
+
+    @Test
+    public void decodesWhatItEncodes() {
+        TelemetryStore store = new TelemetryStore();
+        store.updateGyroscope(0.25f, 0.5f, -0.75f, 500);
+        store.updateLocation(-33.5, 151.25, 3.5f, 600);
+        TelemetrySnapshot snapshot = store.snapshot();
+
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryTelemetryEncoder.RECORD_SIZE * 2).order(ByteOrder.LITTLE_ENDIAN);
+        BinaryTelemetryEncoder.encode(snapshot, 700, buffer);
+        BinaryTelemetryEncoder.encode(snapshot, 800, buffer);
+        buffer.flip();
+
+        TelemetrySnapshot decoded = BinaryTelemetryEncoder.decode(buffer);
+        assertEquals(BinaryTelemetryEncoder.RECORD_SIZE, buffer.position());
+        assertEquals(snapshot.sequence, decoded.sequence);
+        assertFalse(decoded.hasAccelerometer());
+        assertEquals(-0.75f, decoded.gyroscopeZ, 0);
+        assertEquals(500, decoded.gyroscopeTimeMs);
+        assertEquals(151.25, decoded.longitude, 0);
+        assertEquals(3.5f, decoded.accuracy, 0);
+        BinaryTelemetryEncoder.decode(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        buffer.clear();
+        buffer.limit(BinaryTelemetryEncoder.RECORD_SIZE - 1);
+        try {
+            BinaryTelemetryEncoder.decode(buffer);
+            fail("Truncated record decoded");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void negotiatesThroughAccept() {
+        assertFalse(BinaryTelemetryEncoder.prefersBinary(null));
+        assertFalse(BinaryTelemetryEncoder.prefersBinary("*/*"));
+        assertFalse(BinaryTelemetryEncoder.prefersBinary("application/json"));
+        assertTrue(BinaryTelemetryEncoder.prefersBinary("application/vnd.osmz.telemetry"));
+        assertTrue(BinaryTelemetryEncoder.prefersBinary("application/json;q=0.5, application/vnd.osmz.telemetry"));
+        assertFalse(BinaryTelemetryEncoder.prefersBinary("application/json, application/vnd.osmz.telemetry;q=0.9"));
+        assertFalse(BinaryTelemetryEncoder.prefersBinary("application/vnd.osmz.telemetry;q=0"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+    @Test
+    public void parsesClosedOpenAndSuffixRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 500-, -100", 1000);
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0).start);
+        assertEquals(99, ranges.get(0).end);
+        assertEquals(500, ranges.get(1).start);
+        assertEquals(999, ranges.get(1).end);
+        assertEquals(900, ranges.get(2).start);
+        assertEquals(100, ranges.get(2).length());
+        assertEquals("bytes 900-999/1000", ranges.get(2).contentRange(1000));
+    }
+
+    @Test
+    public void clampsEndToRepresentationLength() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=990-2000", 1000);
+        assertEquals(1, ranges.size());
+        assertEquals(999, ranges.get(0).end);
+    }
+
+    @Test
+    public void returnsEmptyListWhenNothingIsSatisfiable() {
+        assertTrue(ByteRange.parse("bytes=1000-1001", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=5000-", 1000).isEmpty());
+    }
+
+    @Test
+    public void ignoresMalformedHeaders() {
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=5-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,16-17,18-19,20-21,22-23,24-25,26-27,28-29,30-31,32-33", 1000));
+    }
+}
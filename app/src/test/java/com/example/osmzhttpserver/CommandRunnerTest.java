@@ -0,0 +1,155 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandRunnerTest {
+    private static class RecordingOutput extends HttpOutput {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountDownLatch firstChunk = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (text().contains("\r\n\r\n")) {
+                firstChunk.countDown();
+            }
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        synchronized String text() {
+            return bytes.toString();
+        }
+    }
+
+    /** Joins the chunks of a chunked body, failing if it does not end with the last chunk. */
+    private static String dechunk(String body) {
+        StringBuilder data = new StringBuilder();
+        int pos = 0;
+        while (true) {
+            int lineEnd = body.indexOf("\r\n", pos);
+            int size = Integer.parseInt(body.substring(pos, lineEnd), 16);
+            if (size == 0) {
+                assertEquals(lineEnd + 4, body.length());
+                return data.toString();
+            }
+            data.append(body, lineEnd + 2, lineEnd + 2 + size);
+            pos = lineEnd + 2 + size + 2;
+        }
+    }
+
+    private static HttpRequest request(String command, String version) throws IOException {
+        Router router = new Router();
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] head = ("GET /cgi-bin/" + command + " " + version + "\r\n\r\n").getBytes();
+        parser.feed(head, 0, head.length);
+        HttpRequest request = parser.getRequest();
+        request.setKeepAlive(request.wantsKeepAlive());
+        router.get("/cgi-bin/{command}", new CommandRunner(new HashMap<String, String[]>(), 1, 1000));
+        router.find(HttpMethod.GET, request.getPath(), request);
+        return request;
+    }
+
+    private static CommandRunner runner(int maxProcesses, long timeoutMs) {
+        Map<String, String[]> commands = new HashMap<>();
+        commands.put("hello", new String[]{"sh", "-c", "printf hello; printf ' world'"});
+        commands.put("sleep", new String[]{"sh", "-c", "printf started; exec sleep 10"});
+        return new CommandRunner(commands, maxProcesses, timeoutMs);
+    }
+
+    @Test
+    public void streamsChunkedOutputAndEndsTheBody() throws Exception {
+        CommandRunner runner = runner(1, 5000);
+        RecordingOutput out = new RecordingOutput();
+        HttpRequest request = request("hello", "HTTP/1.1");
+        runner.handle(request, null, out);
+
+        String response = out.text();
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response.contains("Transfer-Encoding: chunked\r\n"));
+        String body = response.substring(response.indexOf("\r\n\r\n") + 4);
+        assertEquals("hello world", dechunk(body));
+        assertTrue(request.isKeepAlive());
+        assertEquals(1, runner.getCompletedCommands());
+
+        // HTTP/1.0 gets the raw output, ended by closing the connection
+        RecordingOutput plain = new RecordingOutput();
+        HttpRequest old = request("hello", "HTTP/1.0");
+        runner.handle(old, null, plain);
+        assertTrue(plain.text().endsWith("\r\n\r\nhello world"));
+        assertFalse(old.isKeepAlive());
+        runner.close();
+    }
+
+    @Test
+    public void rejectsUnknownCommandsAndLimitsConcurrency() throws Exception {
+        final CommandRunner runner = runner(1, 5000);
+        RecordingOutput unknown = new RecordingOutput();
+        runner.handle(request("rm", "HTTP/1.1"), null, unknown);
+        assertTrue(unknown.text().startsWith("HTTP/1.1 404 "));
+
+        final RecordingOutput first = new RecordingOutput();
+        final HttpRequest firstRequest = request("sleep", "HTTP/1.1");
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runner.handle(firstRequest, null, first);
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+        });
+        worker.start();
+        assertTrue(first.firstChunk.await(5, TimeUnit.SECONDS));
+
+        RecordingOutput second = new RecordingOutput();
+        runner.handle(request("hello", "HTTP/1.1"), null, second);
+        assertTrue(second.text().startsWith("HTTP/1.1 503 "));
+        assertEquals(1, runner.getRejectedCommands());
+
+        runner.close();
+        worker.join(5000);
+        assertFalse(worker.isAlive());
+        assertEquals(0, runner.getRunningCommands());
+    }
+
+    @Test
+    public void killsCommandsThatRunTooLong() throws Exception {
+        CommandRunner runner = runner(1, 200);
+        RecordingOutput out = new RecordingOutput();
+        HttpRequest request = request("sleep", "HTTP/1.1");
+        long start = System.currentTimeMillis();
+        runner.handle(request, null, out);
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(out.text().contains("started"));
+        // Cut off without the last chunk, on a connection that closes
+        assertFalse(out.text().endsWith("0\r\n\r\n"));
+        assertFalse(request.isKeepAlive());
+        assertEquals(1, runner.getKilledCommands());
+        runner.close();
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class CompressionPolicyTest {
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void negotiatesByWeight() {
+        assertNull(CompressionPolicy.negotiate(null));
+        assertNull(CompressionPolicy.negotiate("identity"));
+        assertEquals("gzip", CompressionPolicy.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", CompressionPolicy.negotiate("deflate, x-gzip"));
+        assertEquals("deflate", CompressionPolicy.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", CompressionPolicy.negotiate("gzip;q=0, *"));
+        assertNull(CompressionPolicy.negotiate("*;q=0"));
+        assertFalse(CompressionPolicy.acceptsGzip("deflate"));
+        assertTrue(CompressionPolicy.acceptsGzip("*"));
+    }
+
+    @Test
+    public void appliesAllowlistAndMinimumSize() {
+        CompressionPolicy policy = new CompressionPolicy();
+        assertTrue(policy.shouldCompress("text/html; charset=utf-8", 4096));
+        assertTrue(policy.shouldCompress("application/json", 4096));
+        assertFalse(policy.shouldCompress("image/jpeg", 4096));
+        assertFalse(policy.shouldCompress("text/html", 100));
+
+        policy.addCompressibleType("application/wasm");
+        policy.setMinimumSize(10);
+        assertTrue(policy.shouldCompress("application/wasm", 100));
+    }
+
+    @Test
+    public void compressesToGzipAndZlib() throws IOException {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ("abcdef".charAt(i % 6));
+        }
+
+        byte[] gzip = CompressionPolicy.compress(data, 0, data.length, CompressionPolicy.GZIP, Deflater.BEST_COMPRESSION);
+        assertTrue(gzip.length < data.length / 10);
+        assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+
+        byte[] zlib = CompressionPolicy.compress(data, 0, data.length, CompressionPolicy.DEFLATE, Deflater.BEST_SPEED);
+        assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(zlib))));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectionDispatcherTest {
+    private static final long SERVICE_MS = 500;
+
+    @Test
+    public void rejectsOnlyWhenQueueIsFull() throws Exception {
+        ConnectionDispatcher dispatcher = new ConnectionDispatcher(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                    Thread.sleep(SERVICE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        long begin = System.nanoTime();
+        assertTrue(dispatcher.dispatch(blocking));
+        // Wait until the single worker has taken the first task off the queue
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.dispatch(blocking));
+        assertTrue(dispatcher.dispatch(blocking));
+        assertFalse(dispatcher.dispatch(blocking));
+        assertEquals(2, dispatcher.getQueueDepth());
+
+        release.countDown();
+        dispatcher.shutdown();
+        assertTrue(dispatcher.awaitTermination(10, TimeUnit.SECONDS));
+        double elapsedSeconds = (System.nanoTime() - begin) / 1_000_000_000d;
+
+        assertEquals(4, dispatcher.getAcceptedCount());
+        assertEquals(3, dispatcher.getQueuedCount());
+        assertEquals(1, dispatcher.getRejectedCount());
+        assertEquals(3, dispatcher.getCompletedCount());
+        // Each task took at least SERVICE_MS and draining worker plus queue takes three of them
+        int retryAfter = dispatcher.getRetryAfterSeconds();
+        assertTrue("Retry-After " + retryAfter, retryAfter >= (int) Math.ceil(3 * SERVICE_MS / 1000d));
+        // and no task ran longer than the whole run, shared by three
+        assertTrue("Retry-After " + retryAfter + " for " + elapsedSeconds + " s", retryAfter <= Math.ceil(elapsedSeconds));
+    }
+}
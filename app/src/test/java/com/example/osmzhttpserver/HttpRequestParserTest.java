@@ -0,0 +1,148 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestParserTest {
+    private static final byte[] REQUEST = ("GET /files/a.txt?x=1&y=2 HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Accept:  text/html \r\n"
+            + "accept: */*\r\n"
+            + "Content-Length: 42\r\n"
+            + "\r\n").getBytes();
+
+    @Test
+    public void parsesRequestFedOneByteAtATime() throws ProtocolException {
+        HttpRequestParser parser = new HttpRequestParser();
+        for (int i = 0; i < REQUEST.length; i++) {
+            assertFalse(parser.isComplete());
+            assertEquals(1, parser.feed(REQUEST, i, 1));
+        }
+        assertTrue(parser.isComplete());
+
+        HttpRequest request = parser.getRequest();
+        assertEquals(HttpMethod.GET, request.getMethodType());
+        assertEquals("/files/a.txt?x=1&y=2", request.getUri());
+        assertEquals("/files/a.txt", request.getPath());
+        assertEquals("x=1&y=2", request.getQuery());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals("localhost", request.getHeader("HOST"));
+        assertEquals("text/html, */*", request.getHeader("Accept"));
+        assertNull(request.getHeader("Range"));
+        assertEquals(42, request.getContentLength());
+        assertTrue(request.wantsKeepAlive());
+    }
+
+    @Test
+    public void leavesPipelinedBytesUnconsumed() throws ProtocolException {
+        byte[] second = "POST / HTTP/1.0\r\nContent-Length: x\r\n\r\n".getBytes();
+        byte[] both = new byte[REQUEST.length + second.length];
+        System.arraycopy(REQUEST, 0, both, 0, REQUEST.length);
+        System.arraycopy(second, 0, both, REQUEST.length, second.length);
+
+        HttpRequestParser parser = new HttpRequestParser();
+        ByteBuffer buffer = ByteBuffer.wrap(both);
+        assertEquals(REQUEST.length, parser.feed(buffer));
+        assertEquals(REQUEST.length, buffer.position());
+
+        parser.reset();
+        parser.feed(buffer);
+        assertTrue(parser.isComplete());
+        HttpRequest request = parser.getRequest();
+        assertEquals(HttpMethod.POST, request.getMethodType());
+        assertEquals(-1, request.getContentLength());
+        assertFalse(request.wantsKeepAlive());
+    }
+
+    @Test
+    public void readFromPushesBodyBack() throws IOException {
+        byte[] data = "\r\nPUT /u HTTP/1.1\r\nContent-Length: 4\r\n\r\nbody".getBytes();
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(data), HttpRequestParser.READ_BUFFER_SIZE);
+        HttpRequestParser parser = new HttpRequestParser();
+
+        HttpRequest request = parser.readFrom(in);
+        assertEquals(HttpMethod.PUT, request.getMethodType());
+        assertEquals(4, request.getContentLength());
+        byte[] body = new byte[4];
+        assertEquals(4, in.read(body));
+        assertEquals("body", new String(body));
+        assertNull(parser.readFrom(in));
+    }
+
+    @Test
+    public void reportsUnknownMethodAsOther() throws ProtocolException {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] data = "BREW /pot\r\n\r\n".getBytes();
+        parser.feed(data, 0, data.length);
+        assertEquals(HttpMethod.OTHER, parser.getRequest().getMethodType());
+        assertEquals("BREW", parser.getRequest().getMethod());
+        assertEquals("HTTP/1.0", parser.getRequest().getVersion());
+    }
+
+    @Test
+    public void decodesQueryParameters() throws ProtocolException {
+        byte[] head = "GET /telemetry/history?channel=gyroscope&from=10&label=a%20b&flag HTTP/1.1\r\n\r\n".getBytes();
+        HttpRequestParser parser = new HttpRequestParser();
+        parser.feed(head, 0, head.length);
+        HttpRequest request = parser.getRequest();
+        assertEquals("/telemetry/history", request.getPath());
+        assertEquals("gyroscope", request.getQueryParameter("channel"));
+        assertEquals("10", request.getQueryParameter("from"));
+        assertEquals("a b", request.getQueryParameter("label"));
+        assertEquals("", request.getQueryParameter("flag"));
+        assertNull(request.getQueryParameter("to"));
+    }
+
+    @Test
+    public void decodesPathEscapesOnce() throws ProtocolException {
+        HttpRequest request = parse("GET /my%20files/a+b%2523%C3%BC.txt?x=%20 HTTP/1.1\r\n\r\n");
+        assertEquals("/my%20files/a+b%2523%C3%BC.txt", request.getPath());
+        assertEquals("/my files/a+b%23\u00fc.txt", request.getDecodedPath());
+
+        assertNull(parse("GET /a%2 HTTP/1.1\r\n\r\n").getDecodedPath());
+        assertNull(parse("GET /a%zz HTTP/1.1\r\n\r\n").getDecodedPath());
+        assertNull(parse("GET /a%00.txt HTTP/1.1\r\n\r\n").getDecodedPath());
+    }
+
+    private static HttpRequest parse(String head) throws ProtocolException {
+        byte[] data = head.getBytes();
+        HttpRequestParser parser = new HttpRequestParser();
+        parser.feed(data, 0, data.length);
+        return parser.getRequest();
+    }
+
+    @Test
+    public void enforcesLimits() {
+        assertRejected("GARBAGE\r\n\r\n", false);
+        assertRejected("GET / HTTP/1.1\r\nNoColon\r\n\r\n", false);
+
+        StringBuilder manyHeaders = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= HttpRequest.MAX_HEADERS; i++) {
+            manyHeaders.append("X-H").append(i).append(": v\r\n");
+        }
+        assertRejected(manyHeaders.toString(), true);
+
+        StringBuilder longHeader = new StringBuilder("GET / HTTP/1.1\r\nX-Long: ");
+        while (longHeader.length() <= HttpRequest.MAX_HEADER_SIZE) {
+            longHeader.append("aaaaaaaaaaaaaaaa");
+        }
+        assertRejected(longHeader.toString(), true);
+    }
+
+    private static void assertRejected(String head, boolean tooLarge) {
+        byte[] data = head.getBytes();
+        try {
+            new HttpRequestParser().feed(data, 0, data.length);
+            fail("Expected ProtocolException");
+        } catch (ProtocolException e) {
+            assertEquals(tooLarge, e instanceof HttpRequestParser.HeaderTooLargeException);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class HttpResponseTest {
+    private static class RecordingOutput extends HttpOutput {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int writes;
+
+        @Override
+        public void write(int b) {
+            bytes.write(b);
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+            writes++;
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        String body() {
+            String text = bytes.toString();
+            return text.substring(text.indexOf("\r\n\r\n") + 4);
+        }
+    }
+
+    private static HttpRequest request(String version) throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] head = ("GET /listing " + version + "\r\n\r\n").getBytes();
+        parser.feed(head, 0, head.length);
+        HttpRequest request = parser.getRequest();
+        request.setKeepAlive(request.wantsKeepAlive());
+        return request;
+    }
+
+    @Test
+    public void sendsSmallBodiesWithContentLength() throws IOException {
+        RecordingOutput out = new RecordingOutput();
+        HttpRequest request = request("HTTP/1.1");
+        HttpResponse response = new HttpResponse(out, request, 200, "text/plain", 16);
+        response.header("X-Test", "1");
+        for (byte b : "hello".getBytes()) {
+            response.write(b);
+        }
+        response.write(" world".getBytes());
+        response.close();
+
+        String text = out.bytes.toString();
+        assertTrue(text.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(text.contains("Content-Length: 11\r\n"));
+        assertTrue(text.contains("X-Test: 1\r\n"));
+        assertFalse(text.contains("Transfer-Encoding"));
+        assertEquals("hello world", out.body());
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    public void coalescesLargeBodiesIntoChunks() throws IOException {
+        RecordingOutput out = new RecordingOutput();
+        HttpRequest request = request("HTTP/1.1");
+        HttpResponse response = new HttpResponse(out, request, 200, "text/plain", 16);
+        for (int i = 0; i < 10; i++) {
+            response.write("abcd".getBytes());
+        }
+        response.write("0123456789abcdefXYZ".getBytes());
+        response.close();
+
+        assertTrue(out.bytes.toString().contains("Transfer-Encoding: chunked\r\n"));
+        assertEquals("10\r\nabcdabcdabcdabcd\r\n"
+                + "10\r\nabcdabcdabcdabcd\r\n"
+                + "8\r\nabcdabcd\r\n"
+                + "13\r\n0123456789abcdefXYZ\r\n"
+                + "0\r\n\r\n", out.body());
+        // Forty small writes went out in a handful of large ones
+        assertTrue(out.writes < 15);
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    public void flushCommitsAndAbortCutsTheBodyShort() throws IOException {
+        RecordingOutput out = new RecordingOutput();
+        HttpRequest request = request("HTTP/1.1");
+        HttpResponse response = new HttpResponse(out, request, 200, "text/plain");
+        response.write("partial".getBytes());
+        response.flush();
+        assertTrue(response.isCommitted());
+        response.write("lost".getBytes());
+        response.abort();
+
+        assertEquals("7\r\npartial\r\n", out.body());
+        assertFalse(request.isKeepAlive());
+
+        // HTTP/1.0 has no chunks, the connection delimits the body
+        RecordingOutput plain = new RecordingOutput();
+        HttpRequest old = request("HTTP/1.0");
+        old.setKeepAlive(true);
+        HttpResponse unframed = new HttpResponse(plain, old, 200, "text/plain", 4);
+        unframed.write("streamed body".getBytes());
+        unframed.close();
+        assertEquals("streamed body", plain.body());
+        assertTrue(plain.bytes.toString().contains("Connection: close\r\n"));
+        assertFalse(old.isKeepAlive());
+    }
+}
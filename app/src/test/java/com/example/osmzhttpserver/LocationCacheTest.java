@@ -0,0 +1,46 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LocationCacheTest {
+    @Test
+    public void followsTheReadRate() {
+        LocationCache.ReadRatePolicy policy = new LocationCache.ReadRatePolicy();
+        assertEquals(LocationCache.ReadRatePolicy.MAX_INTERVAL_MS, policy.targetIntervalMs(0));
+
+        policy.onRead(1000);
+        assertEquals(LocationCache.ReadRatePolicy.DEFAULT_INTERVAL_MS, policy.targetIntervalMs(1000));
+
+        // A dashboard polling every 5 seconds
+        long now = 1000;
+        for (int i = 0; i < 20; i++) {
+            now += 5000;
+            policy.onRead(now);
+        }
+        assertEquals(5000, policy.targetIntervalMs(now));
+
+        // Several reads a second never ask for more than one fix a second
+        for (int i = 0; i < 50; i++) {
+            now += 100;
+            policy.onRead(now);
+        }
+        assertEquals(LocationCache.ReadRatePolicy.MIN_INTERVAL_MS, policy.targetIntervalMs(now));
+    }
+
+    @Test
+    public void slowsDownWhenReadsStop() {
+        LocationCache.ReadRatePolicy policy = new LocationCache.ReadRatePolicy();
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            now += 2000;
+            policy.onRead(now);
+        }
+        assertEquals(2000, policy.targetIntervalMs(now));
+        assertEquals(30 * 1000, policy.targetIntervalMs(now + 30 * 1000));
+        assertEquals(LocationCache.ReadRatePolicy.MAX_INTERVAL_MS, policy.targetIntervalMs(now + 2 * 60 * 1000));
+        assertEquals(LocationCache.ReadRatePolicy.MAX_INTERVAL_MS,
+                policy.targetIntervalMs(now + LocationCache.ReadRatePolicy.IDLE_MS + 1));
+    }
+}
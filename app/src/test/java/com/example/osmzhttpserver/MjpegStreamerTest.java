@@ -0,0 +1,158 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MjpegStreamerTest {
+    /** Collects the stream; flush can be held to simulate a slow client. */
+    private static class ViewerOutput extends HttpOutput {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CountDownLatch release;
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+        int flushes;
+
+        ViewerOutput(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // The first flush is the response head, the second one the first frame
+            if (++flushes == 2) {
+                firstFrame.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        synchronized String text() {
+            return new String(bytes.toByteArray());
+        }
+    }
+
+    private static HttpRequest request() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] head = "GET /stream HTTP/1.1\r\n\r\n".getBytes();
+        parser.feed(head, 0, head.length);
+        return parser.getRequest();
+    }
+
+    private static Thread watch(final MjpegStreamer streamer, final ViewerOutput output) {
+        Thread viewer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    streamer.stream(output, request());
+                } catch (IOException e) {
+                    // ends the viewer
+                }
+            }
+        });
+        viewer.start();
+        return viewer;
+    }
+
+    private static void awaitViewers(MjpegStreamer streamer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (streamer.getViewerCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, streamer.getViewerCount());
+    }
+
+    @Test
+    public void slowViewerSkipsToNewestFrameWithoutBlockingPublisher() throws Exception {
+        MjpegStreamer streamer = new MjpegStreamer(0, 2);
+        assertFalse(streamer.wantsFrame());
+
+        CountDownLatch release = new CountDownLatch(1);
+        ViewerOutput slow = new ViewerOutput(release);
+        Thread viewer = watch(streamer, slow);
+        awaitViewers(streamer, 1);
+        assertTrue(streamer.wantsFrame());
+
+        streamer.publish("frame-1".getBytes());
+        assertTrue(slow.firstFrame.await(5, TimeUnit.SECONDS));
+        // The viewer is stuck sending frame 1; publishing must not wait for it
+        long start = System.nanoTime();
+        for (int i = 2; i <= 50; i++) {
+            streamer.publish(("frame-" + i).getBytes());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (streamer.getSentFrames() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        streamer.close();
+        viewer.join(5000);
+
+        String stream = slow.text();
+        assertTrue(stream.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(stream.contains("multipart/x-mixed-replace; boundary=OSMZ_boundary"));
+        assertTrue(stream.contains("Content-Length: 7\r\nX-Timestamp: "));
+        assertTrue(stream.contains("\r\n\r\nframe-1\r\n"));
+        assertTrue(stream.contains("\r\n\r\nframe-50\r\n"));
+        assertFalse(stream.contains("frame-2\r\n"));
+        assertEquals(2, streamer.getSentFrames());
+        assertEquals(48, streamer.getSkippedFrames());
+        assertEquals(0, streamer.getViewerCount());
+    }
+
+    @Test
+    public void rejectsViewersOverTheLimit() throws Exception {
+        MjpegStreamer streamer = new MjpegStreamer(0, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread viewer = watch(streamer, new ViewerOutput(release));
+        awaitViewers(streamer, 1);
+
+        ViewerOutput rejected = new ViewerOutput(new CountDownLatch(0));
+        streamer.stream(rejected, request());
+        assertTrue(rejected.text().startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertTrue(rejected.text().contains("Retry-After: 5\r\n"));
+        assertEquals(1, streamer.getRejectedViewers());
+
+        streamer.disconnectViewers();
+        viewer.join(5000);
+        assertFalse(viewer.isAlive());
+        assertEquals(0, streamer.getViewerCount());
+    }
+
+    @Test
+    public void capsFrameRate() throws Exception {
+        MjpegStreamer streamer = new MjpegStreamer(1, 1);
+        Thread viewer = watch(streamer, new ViewerOutput(new CountDownLatch(0)));
+        awaitViewers(streamer, 1);
+        assertTrue(streamer.wantsFrame());
+        streamer.publish(new byte[1]);
+        assertFalse(streamer.wantsFrame());
+        streamer.close();
+        viewer.join(5000);
+    }
+}
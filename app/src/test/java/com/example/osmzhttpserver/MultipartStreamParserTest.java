@@ -0,0 +1,153 @@
+package com.example.osmzhttpserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MultipartStreamParserTest {
+    private static final String BOUNDARY = "----boundary42";
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("uploads", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /** Hands out at most a few bytes per read, so boundaries straddle buffer refills. */
+    private static InputStream trickle(byte[] data, final int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static void part(ByteArrayOutputStream body, String disposition, byte[] content) throws IOException {
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: " + disposition + "\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes());
+        body.write(content);
+        body.write("\r\n".getBytes());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void storesBinaryPartsByteForByte() throws IOException {
+        byte[] binary = new byte[100000];
+        new Random(7).nextBytes(binary);
+        // Content that looks like line breaks and a truncated delimiter
+        byte[] tricky = ("line\r\n\r\n--" + BOUNDARY.substring(0, 8) + "\r\n--").getBytes();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("preamble\r\n".getBytes());
+        part(body, "form-data; name=\"file\"; filename=\"photo.bin\"", binary);
+        part(body, "form-data; name=\"comment\"", "ignored".getBytes());
+        part(body, "form-data; name=\"file\"; filename=\"C:\\Users\\me\\tricky.txt\"", tricky);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes());
+
+        List<File> files = new MultipartStreamParser(trickle(body.toByteArray(), 777), BOUNDARY,
+                directory, Long.MAX_VALUE, 10).parse();
+
+        assertEquals(2, files.size());
+        assertEquals(new File(directory, "photo.bin"), files.get(0));
+        assertArrayEquals(binary, readFile(files.get(0)));
+        assertEquals(new File(directory, "tricky.txt"), files.get(1));
+        assertArrayEquals(tricky, readFile(files.get(1)));
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    @Test
+    public void rejectsOversizedPartAndRemovesTempFile() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "form-data; name=\"file\"; filename=\"big.bin\"", new byte[5000]);
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes());
+
+        try {
+            new MultipartStreamParser(new ByteArrayInputStream(body.toByteArray()), BOUNDARY,
+                    directory, 4096, 10).parse();
+            fail("Expected LimitExceededException");
+        } catch (MultipartStreamParser.LimitExceededException expected) {
+            // expected
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void rejectsTooManyParts() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        part(body, "form-data; name=\"a\"", "1".getBytes());
+        part(body, "form-data; name=\"b\"", "2".getBytes());
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes());
+
+        try {
+            new MultipartStreamParser(new ByteArrayInputStream(body.toByteArray()), BOUNDARY,
+                    directory, Long.MAX_VALUE, 1).parse();
+            fail("Expected LimitExceededException");
+        } catch (MultipartStreamParser.LimitExceededException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedBody() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"cut.bin\"\r\n\r\n").getBytes());
+        body.write(new byte[1000]);
+
+        try {
+            new MultipartStreamParser(new ByteArrayInputStream(body.toByteArray()), BOUNDARY,
+                    directory, Long.MAX_VALUE, 10).parse();
+            fail("Expected ProtocolException");
+        } catch (ProtocolException expected) {
+            // expected
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void extractsBoundaryAndFilename() {
+        assertEquals("abc", MultipartStreamParser.boundaryFrom("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartStreamParser.boundaryFrom("multipart/form-data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartStreamParser.boundaryFrom("application/json"));
+        assertEquals("x.txt", MultipartStreamParser.sanitizeFilename("form-data; name=\"file\"; filename=\"../../x.txt\""));
+        assertNull(MultipartStreamParser.sanitizeFilename("form-data; name=\"file\"; filename=\"\""));
+        assertNull(MultipartStreamParser.sanitizeFilename("form-data; name=\"field\""));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ResponseHeaderWriterTest {
+    @Test
+    public void assemblesHeadInOneBuffer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long before = System.currentTimeMillis();
+        ResponseHeaderWriter.begin(206)
+                .contentType("text/plain")
+                .contentLength(1234567890123L)
+                .header("Retry-After", 5)
+                .lines("X-A: 1\r\n")
+                .connection(true)
+                .writeTo(out);
+
+        String head = new String(out.toByteArray(), "ISO-8859-1");
+        // The clock may tick over a second while the head is written
+        String date = head.substring(head.indexOf("\r\n") + 2, head.indexOf("Content-Type"));
+        String earliest = new String(ResponseHeaderWriter.currentDateLine(before), "ISO-8859-1");
+        String latest = new String(ResponseHeaderWriter.currentDateLine(System.currentTimeMillis()), "ISO-8859-1");
+        assertTrue(date.equals(earliest) || date.equals(latest));
+        assertEquals("HTTP/1.1 206 Partial Content\r\n" + date
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: 1234567890123\r\n"
+                + "Retry-After: 5\r\n"
+                + "X-A: 1\r\n"
+                + "Connection: keep-alive\r\n\r\n", head);
+    }
+
+    @Test
+    public void formatsUnknownStatusAndReusesBuffer() {
+        byte[] first = ResponseHeaderWriter.begin(299).contentLength(0).connection(false).toByteArray();
+        byte[] second = ResponseHeaderWriter.begin(404).connection(false).toByteArray();
+        assertTrue(new String(first).startsWith("HTTP/1.1 299 Unknown\r\nDate: "));
+        assertTrue(new String(first).endsWith("Content-Length: 0\r\nConnection: close\r\n\r\n"));
+        assertTrue(new String(second).startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertFalse(new String(second).contains("Content-Length"));
+    }
+
+    @Test
+    public void cachesDateLineWithinASecond() {
+        long now = 1700000000000L;
+        byte[] line = ResponseHeaderWriter.currentDateLine(now);
+        assertSame(line, ResponseHeaderWriter.currentDateLine(now + 999));
+        assertNotSame(line, ResponseHeaderWriter.currentDateLine(now + 1000));
+        assertEquals("Date: Tue, 14 Nov 2023 22:13:20 GMT\r\n", new String(line));
+    }
+}
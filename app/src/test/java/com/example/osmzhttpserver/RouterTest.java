@@ -0,0 +1,74 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class RouterTest {
+    private static Router.Handler handler() {
+        return new Router.Handler() {
+            @Override
+            public void handle(HttpRequest request, InputStream body, HttpOutput out) {
+            }
+        };
+    }
+
+    @Test
+    public void prefersExactThenLiteralThenParameterThenLongestPrefix() {
+        Router router = new Router();
+        Router.Handler files = handler();
+        Router.Handler telemetry = handler();
+        Router.Handler command = handler();
+        Router.Handler status = handler();
+        Router.Handler downloads = handler();
+        router.get("/*", files)
+                .get("/telemetry", telemetry)
+                .get("/cgi-bin/{command}", command)
+                .get("/cgi-bin/status", status)
+                .get("/files/downloads/*", downloads);
+
+        assertSame(telemetry, router.find(HttpMethod.GET, "/telemetry", new HttpRequest()));
+        assertSame(status, router.find(HttpMethod.GET, "/cgi-bin/status", new HttpRequest()));
+        assertSame(downloads, router.find(HttpMethod.GET, "/files/downloads/a/b.txt", new HttpRequest()));
+        assertSame(files, router.find(HttpMethod.GET, "/files/other.txt", new HttpRequest()));
+        assertSame(files, router.find(HttpMethod.GET, "/cgi-bin/ls/extra", new HttpRequest()));
+
+        HttpRequest request = new HttpRequest();
+        assertSame(command, router.find(HttpMethod.GET, "/cgi-bin/ls", request));
+        assertEquals("ls", request.getPathParameter("command"));
+        assertNull(request.getPathParameter("other"));
+    }
+
+    @Test
+    public void matchesByMethod() {
+        Router router = new Router();
+        Router.Handler files = handler();
+        Router.Handler upload = handler();
+        router.get("/*", files).post("/", upload);
+
+        // A POST-only exact route does not hide the GET prefix behind it
+        assertSame(files, router.find(HttpMethod.GET, "/", new HttpRequest()));
+        assertSame(upload, router.find(HttpMethod.POST, "/", new HttpRequest()));
+        assertNull(router.find(HttpMethod.POST, "/index.html", new HttpRequest()));
+        assertEquals("GET", router.allowedMethods("/index.html"));
+        assertEquals("GET, POST", router.allowedMethods("/"));
+        assertFalse(router.routes(HttpMethod.PUT));
+        assertNull(router.find(HttpMethod.PUT, "/", new HttpRequest()));
+    }
+
+    @Test
+    public void capturesSeveralParameters() {
+        Router router = new Router();
+        Router.Handler reading = handler();
+        router.get("/sensors/{sensor}/{axis}", reading);
+
+        HttpRequest request = new HttpRequest();
+        assertSame(reading, router.find(HttpMethod.GET, "/sensors/gyroscope/x", request));
+        assertEquals("gyroscope", request.getPathParameter("sensor"));
+        assertEquals("x", request.getPathParameter("axis"));
+        assertNull(router.find(HttpMethod.GET, "/sensors/gyroscope", new HttpRequest()));
+        assertNull(router.find(HttpMethod.GET, "/sensors//x", new HttpRequest()));
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorSamplingEngineTest {
+    private static final int ACCELEROMETER = 1;
+    private static final int GYROSCOPE = 4;
+
+    private static class Recorder implements SensorSamplingEngine.Consumer {
+        final List<Long> times = new ArrayList<>();
+
+        @Override
+        public void onSample(int sensorType, float x, float y, float z, long timeMs) {
+            times.add(timeMs);
+        }
+    }
+
+    @Test
+    public void decimatesEachConsumerToItsOwnRate() {
+        SensorSamplingEngine.Fanout fanout = new SensorSamplingEngine.Fanout();
+        Recorder fast = new Recorder();
+        Recorder slow = new Recorder();
+        Recorder gyroscope = new Recorder();
+        fanout.add(ACCELEROMETER, 10 * 1000, 0, fast);
+        fanout.add(ACCELEROMETER, 50 * 1000, 0, slow);
+        fanout.add(GYROSCOPE, 10 * 1000, 0, gyroscope);
+
+        // 100 Hz with a little jitter on every other event
+        for (int i = 0; i < 100; i++) {
+            long ns = i * 10000000L - (i % 2) * 500000L;
+            fanout.dispatch(ACCELEROMETER, 0, 0, 0, ns, ns / 1000000);
+        }
+        assertEquals(100, fast.times.size());
+        assertEquals(20, slow.times.size());
+        assertEquals(Long.valueOf(49), slow.times.get(1));
+        assertTrue(gyroscope.times.isEmpty());
+    }
+
+    @Test
+    public void registersForTheMostDemandingConsumer() {
+        SensorSamplingEngine.Fanout fanout = new SensorSamplingEngine.Fanout();
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        assertEquals(-1, fanout.fastestPeriodUs(ACCELEROMETER));
+
+        fanout.add(ACCELEROMETER, 200000, 1000000, a);
+        fanout.add(ACCELEROMETER, 50000, 2000000, b);
+        fanout.add(GYROSCOPE, 20000, 100000, b);
+        assertEquals(50000, fanout.fastestPeriodUs(ACCELEROMETER));
+        assertEquals(1000000, fanout.shortestLatencyUs(ACCELEROMETER));
+
+        assertEquals(Arrays.asList(ACCELEROMETER, GYROSCOPE), fanout.remove(b));
+        assertEquals(200000, fanout.fastestPeriodUs(ACCELEROMETER));
+        assertEquals(-1, fanout.fastestPeriodUs(GYROSCOPE));
+
+        fanout.dispatch(ACCELEROMETER, 1, 2, 3, 0, 7);
+        assertEquals(1, a.times.size());
+        assertTrue(b.times.isEmpty());
+    }
+}
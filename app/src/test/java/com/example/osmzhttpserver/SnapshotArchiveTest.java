@@ -0,0 +1,47 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SnapshotArchiveTest {
+    private static File tempDirectory() throws Exception {
+        File directory = File.createTempFile("archive", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    @Test
+    public void keepsNewestImagesWithinBudget() throws Exception {
+        File directory = tempDirectory();
+        SnapshotArchive archive = new SnapshotArchive(directory, 250, 0);
+        SnapshotHolder holder = new SnapshotHolder(0);
+        holder.setArchive(archive);
+        for (int i = 0; i < 5; i++) {
+            holder.update(new byte[100]);
+            Thread.sleep(2);
+        }
+        assertEquals(2, archive.getFileCount());
+        assertEquals(200, archive.getTotalBytes());
+        assertEquals(2, directory.listFiles().length);
+
+        // A restart picks up the existing images
+        SnapshotArchive reopened = new SnapshotArchive(directory, 150, 0);
+        assertEquals(1, reopened.getFileCount());
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void writesAtMostOncePerInterval() throws Exception {
+        File directory = tempDirectory();
+        SnapshotArchive archive = new SnapshotArchive(directory, 1 << 20, 60 * 1000);
+        SnapshotHolder holder = new SnapshotHolder(0);
+        holder.setArchive(archive);
+        holder.update(new byte[10]);
+        holder.update(new byte[10]);
+        assertEquals(1, archive.getFileCount());
+    }
+}
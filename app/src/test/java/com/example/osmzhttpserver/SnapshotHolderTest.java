@@ -0,0 +1,48 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SnapshotHolderTest {
+    @Test
+    public void producesOnlyOnDemandAndWhenStale() throws Exception {
+        SnapshotHolder holder = new SnapshotHolder(60 * 1000);
+        assertFalse(holder.wantsFrame());
+        // Nothing from the camera yet: the request waits out its timeout but creates demand
+        assertNull(holder.awaitFresh(10));
+        assertTrue(holder.wantsFrame());
+
+        holder.update(new byte[]{1, 2, 3});
+        assertFalse(holder.wantsFrame());
+        SnapshotHolder.Snapshot first = holder.awaitFresh(10);
+        assertArrayEquals(new byte[]{1, 2, 3}, first.jpeg);
+        assertTrue(new String(first.header).startsWith("ETag: " + first.etag + "\r\n"));
+
+        holder.update(new byte[]{4});
+        SnapshotHolder.Snapshot second = holder.getLatest();
+        assertEquals(first.sequence + 1, second.sequence);
+        assertFalse(first.etag.equals(second.etag));
+    }
+
+    @Test
+    public void staleRequestWaitsForTheNextImage() throws Exception {
+        final SnapshotHolder holder = new SnapshotHolder(0);
+        holder.update(new byte[]{1});
+        Thread camera = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                holder.update(new byte[]{2});
+            }
+        });
+        camera.start();
+        SnapshotHolder.Snapshot snapshot = holder.awaitFresh(5000);
+        camera.join();
+        assertArrayEquals(new byte[]{2}, snapshot.jpeg);
+    }
+}
@@ -0,0 +1,577 @@
+package com.example.osmzhttpserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SocketServerTest {
+    private SocketServer server;
+    private File root;
+
+    /** One parsed response off the wire. */
+    private static class Response {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body;
+
+        String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        String text() {
+            return new String(body);
+        }
+    }
+
+    @Before
+    public void createRoot() throws IOException {
+        root = File.createTempFile("root", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.close();
+            server.join(5000);
+        }
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        root.delete();
+    }
+
+    private SocketServer startServer(SocketServer.Mode mode, int workers) throws InterruptedException {
+        return startServer(mode, workers, 100);
+    }
+
+    private SocketServer startServer(SocketServer.Mode mode, int workers, int maxRequests) throws InterruptedException {
+        server = new SocketServer(workers, 8, mode, null, null, null);
+        server.setPort(0);
+        server.setKeepAlive(15 * 1000, maxRequests);
+        server.setDocumentRoot(root);
+        server.setListingDirectory(new File(root, "docs"));
+        server.mountStaticFiles();
+        server.getRouter().get("/hello", new Router.Handler() {
+            @Override
+            public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+                byte[] text = ("hello " + request.getQueryParameter("n")).getBytes();
+                ResponseHeaderWriter.begin(200)
+                        .contentType("text/plain")
+                        .contentLength(text.length)
+                        .connection(request.isKeepAlive())
+                        .writeTo(out, text);
+            }
+        });
+        server.getRouter().post("/echo", new Router.Handler() {
+            @Override
+            public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1000];
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    received.write(buffer, 0, n);
+                }
+                ResponseHeaderWriter.begin(200)
+                        .contentType("application/octet-stream")
+                        .contentLength(received.size())
+                        .connection(request.isKeepAlive())
+                        .writeTo(out, received.toByteArray());
+            }
+        });
+        server.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getLocalPort() <= 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(server.getLocalPort() > 0);
+        return server;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1 && line.length() == 0) {
+            throw new IOException("Connection closed");
+        }
+        return line.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int n = in.read(buffer, filled, buffer.length - filled);
+            if (n < 0) {
+                throw new IOException("Body cut short after " + filled + " bytes");
+            }
+            filled += n;
+        }
+    }
+
+    /** Reads a head and a body framed by Content-Length or chunks, or by the end of the stream. */
+    private static Response readResponse(InputStream in) throws IOException {
+        Response response = new Response();
+        String statusLine = readLine(in);
+        response.status = Integer.parseInt(statusLine.split(" ")[1]);
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (response.header("Content-Length") != null) {
+            byte[] bytes = new byte[Integer.parseInt(response.header("Content-Length"))];
+            readFully(in, bytes);
+            body.write(bytes);
+        } else if ("chunked".equals(response.header("Transfer-Encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                byte[] chunk = new byte[size];
+                readFully(in, chunk);
+                body.write(chunk);
+                readLine(in);
+            }
+            readLine(in);
+        } else {
+            int c;
+            while ((c = in.read()) != -1) {
+                body.write(c);
+            }
+        }
+        response.body = body.toByteArray();
+        return response;
+    }
+
+    @Test
+    public void nioServesRequestsAndReadsBodiesAcrossTheHandoff() throws Exception {
+        startServer(SocketServer.Mode.NIO, 2);
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            out.write("GET /hello?n=1 HTTP/1.1\r\nHost: test\r\n\r\n".getBytes());
+            Response first = readResponse(in);
+            assertEquals(200, first.status);
+            assertEquals("hello 1", first.text());
+            assertEquals("keep-alive", first.header("Connection"));
+
+            // Larger than the connection's inbound buffer and sent in pieces, so the worker
+            // parks for the loop to read more several times
+            byte[] upload = new byte[50000];
+            for (int i = 0; i < upload.length; i++) {
+                upload[i] = (byte) (i * 31);
+            }
+            out.write(("POST /echo HTTP/1.1\r\nContent-Length: " + upload.length + "\r\n\r\n").getBytes());
+            for (int off = 0; off < upload.length; off += 7000) {
+                out.write(upload, off, Math.min(7000, upload.length - off));
+                out.flush();
+                Thread.sleep(5);
+            }
+            Response echo = readResponse(in);
+            assertEquals(200, echo.status);
+            assertArrayEquals(upload, echo.body);
+
+            // Back to reading after the body, on the same connection
+            out.write("GET /hello?n=2 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("hello 2", readResponse(in).text());
+        }
+    }
+
+    @Test
+    public void nioEndsTheResponseWhenTheClientGoesAway() throws Exception {
+        startServer(SocketServer.Mode.NIO, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final CountDownLatch ended = new CountDownLatch(1);
+        server.getRouter().get("/endless", new Router.Handler() {
+            @Override
+            public void handle(HttpRequest request, InputStream body, HttpOutput out) throws IOException {
+                ResponseHeaderWriter.begin(200)
+                        .contentType("application/octet-stream")
+                        .connection(false)
+                        .writeTo(out);
+                byte[] block = new byte[16 * 1024];
+                try {
+                    for (int i = 0; i < 100000; i++) {
+                        out.write(block);
+                        out.flush();
+                        started.countDown();
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                    throw e;
+                } finally {
+                    ended.countDown();
+                }
+            }
+        });
+
+        Socket socket = connect();
+        socket.getOutputStream().write("GET /endless HTTP/1.1\r\n\r\n".getBytes());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals("HTTP/1.1 200 OK", readLine(socket.getInputStream()));
+        socket.close();
+
+        // The single worker is released and serves the next client
+        assertTrue(ended.await(10, TimeUnit.SECONDS));
+        assertNotNull(failure.get());
+        try (Socket next = connect()) {
+            next.getOutputStream().write("GET /hello?n=3 HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+            Response response = readResponse(next.getInputStream());
+            assertEquals("hello 3", response.text());
+            assertEquals("close", response.header("Connection"));
+            assertEquals(-1, next.getInputStream().read());
+        }
+    }
+
+    private void pipelinesRequestsInOrder(SocketServer.Mode mode) throws Exception {
+        startServer(mode, 2);
+        try (Socket socket = connect()) {
+            // All three in one write, answered one after another on the same connection
+            socket.getOutputStream().write(("GET /hello?n=1 HTTP/1.1\r\n\r\n"
+                    + "GET /hello?n=2 HTTP/1.1\r\n\r\n"
+                    + "GET /hello?n=3 HTTP/1.1\r\n\r\n").getBytes());
+            InputStream in = socket.getInputStream();
+            for (int i = 1; i <= 3; i++) {
+                Response response = readResponse(in);
+                assertEquals(200, response.status);
+                assertEquals("hello " + i, response.text());
+                assertEquals("keep-alive", response.header("Connection"));
+            }
+        }
+    }
+
+    @Test
+    public void blockingPipelinesRequestsInOrder() throws Exception {
+        pipelinesRequestsInOrder(SocketServer.Mode.BLOCKING);
+    }
+
+    @Test
+    public void nioPipelinesRequestsInOrder() throws Exception {
+        pipelinesRequestsInOrder(SocketServer.Mode.NIO);
+    }
+
+    private void closesWhenAskedOrAtTheLimit(SocketServer.Mode mode) throws Exception {
+        startServer(mode, 2, 2);
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("GET /hello?n=1 HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+            Response response = readResponse(socket.getInputStream());
+            assertEquals("hello 1", response.text());
+            assertEquals("close", response.header("Connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("GET /hello?n=1 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("keep-alive", readResponse(in).header("Connection"));
+            // The second request is the last one this connection serves
+            out.write("GET /hello?n=2 HTTP/1.1\r\n\r\n".getBytes());
+            Response last = readResponse(in);
+            assertEquals("hello 2", last.text());
+            assertEquals("close", last.header("Connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void blockingClosesWhenAskedOrAtTheLimit() throws Exception {
+        closesWhenAskedOrAtTheLimit(SocketServer.Mode.BLOCKING);
+    }
+
+    @Test
+    public void nioClosesWhenAskedOrAtTheLimit() throws Exception {
+        closesWhenAskedOrAtTheLimit(SocketServer.Mode.NIO);
+    }
+
+    private void requiresContentLengthOnPost(SocketServer.Mode mode) throws Exception {
+        startServer(mode, 2);
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("POST /echo HTTP/1.1\r\n\r\n".getBytes());
+            Response missing = readResponse(in);
+            assertEquals(411, missing.status);
+            // Without a body to skip the connection stays usable
+            assertEquals("keep-alive", missing.header("Connection"));
+
+            out.write("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n".getBytes());
+            Response chunked = readResponse(in);
+            assertEquals(411, chunked.status);
+            // The unread chunked body cannot be skipped, so the connection closes
+            assertEquals("close", chunked.header("Connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void blockingRequiresContentLengthOnPost() throws Exception {
+        requiresContentLengthOnPost(SocketServer.Mode.BLOCKING);
+    }
+
+    @Test
+    public void nioRequiresContentLengthOnPost() throws Exception {
+        requiresContentLengthOnPost(SocketServer.Mode.NIO);
+    }
+
+    private void servesLargeFilesWithTransferTo(SocketServer.Mode mode) throws Exception {
+        // Well past the 64 KB streaming threshold, so it is never read into memory
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(new File(root, "large.bin"))) {
+            out.write(content);
+        }
+        startServer(mode, 2);
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("GET /large.bin HTTP/1.1\r\n\r\n".getBytes());
+            Response response = readResponse(in);
+            assertEquals(200, response.status);
+            assertEquals(String.valueOf(content.length), response.header("Content-Length"));
+            // Typed from the server's own table, without the platform's
+            assertEquals("application/octet-stream", response.header("Content-Type"));
+            assertArrayEquals(content, response.body);
+
+            // The body ended exactly where its length said, the next response follows it
+            out.write("GET /hello?n=1 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("hello 1", readResponse(in).text());
+
+            out.write("GET /large.bin HTTP/1.1\r\nRange: bytes=10-19,2000000-2000099\r\n\r\n".getBytes());
+            Response ranges = readResponse(in);
+            assertEquals(206, ranges.status);
+            assertTrue(ranges.header("Content-Type").startsWith("multipart/byteranges"));
+            assertTrue(contains(ranges.body, Arrays.copyOfRange(content, 10, 20)));
+            assertTrue(contains(ranges.body, Arrays.copyOfRange(content, 2000000, 2000100)));
+        }
+    }
+
+    private static boolean contains(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void blockingServesLargeFilesWithTransferTo() throws Exception {
+        servesLargeFilesWithTransferTo(SocketServer.Mode.BLOCKING);
+    }
+
+    @Test
+    public void nioServesLargeFilesWithTransferTo() throws Exception {
+        servesLargeFilesWithTransferTo(SocketServer.Mode.NIO);
+    }
+
+    private void closesWhenTheFileShrinksMidTransfer(SocketServer.Mode mode) throws Exception {
+        File file = new File(root, "shrinking.bin");
+        long length = 64L * 1024 * 1024;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        startServer(mode, 1);
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("GET /shrinking.bin HTTP/1.1\r\n\r\n".getBytes());
+            InputStream in = socket.getInputStream();
+            assertEquals("HTTP/1.1 200 OK", readLine(in));
+            String contentLength = null;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.startsWith("Content-Length: ")) {
+                    contentLength = line.substring(16);
+                }
+            }
+            assertEquals(String.valueOf(length), contentLength);
+
+            // Not reading yet keeps the transfer stalled on a full socket buffer while the file is cut
+            Thread.sleep(200);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(1024 * 1024);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                received += n;
+            }
+            // Cut off short of the promised length rather than hanging or padding the body
+            assertTrue(received < length);
+        }
+
+        // The only worker was released
+        try (Socket next = connect()) {
+            next.getOutputStream().write("GET /hello?n=2 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("hello 2", readResponse(next.getInputStream()).text());
+        }
+    }
+
+    @Test
+    public void blockingClosesWhenTheFileShrinksMidTransfer() throws Exception {
+        closesWhenTheFileShrinksMidTransfer(SocketServer.Mode.BLOCKING);
+    }
+
+    @Test
+    public void nioClosesWhenTheFileShrinksMidTransfer() throws Exception {
+        closesWhenTheFileShrinksMidTransfer(SocketServer.Mode.NIO);
+    }
+
+    @Test
+    public void servesFilesByTheirEncodedNames() throws Exception {
+        File docs = new File(root, "docs");
+        assertTrue(docs.mkdir());
+        String name = "a b#%+.txt";
+        File file = new File(docs, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("found".getBytes());
+        }
+        startServer(SocketServer.Mode.BLOCKING, 2);
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("GET /docs/ HTTP/1.1\r\n\r\n".getBytes());
+            String listing = new String(readResponse(in).body, "UTF-8");
+            assertTrue(listing.contains(">" + name + "</a>"));
+            int hrefStart = listing.indexOf("href=\"") + 6;
+            String href = listing.substring(hrefStart, listing.indexOf('"', hrefStart));
+            assertEquals("/docs/a%20b%23%25%2B.txt", href);
+
+            // Following the link finds the file
+            out.write(("GET " + href + " HTTP/1.1\r\n\r\n").getBytes());
+            Response response = readResponse(in);
+            assertEquals(200, response.status);
+            assertEquals("found", response.text());
+
+            out.write("GET /docs/a%2 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals(400, readResponse(in).status);
+        } finally {
+            file.delete();
+            docs.delete();
+        }
+    }
+
+    @Test
+    public void keepsRequestsInsideTheDocumentRoot() throws Exception {
+        File outside = new File(root.getParentFile(), root.getName() + "-outside.txt");
+        File docs = new File(root, "docs");
+        File other = new File(root, "other");
+        assertTrue(docs.mkdir());
+        assertTrue(other.mkdir());
+        try (FileOutputStream out = new FileOutputStream(outside)) {
+            out.write("secret".getBytes());
+        }
+        startServer(SocketServer.Mode.BLOCKING, 2);
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            String escape = "/" + outside.getName();
+            for (String path : new String[]{"/..", "/../", "/.." + escape, "/docs/../.." + escape, "/%2e%2e" + escape, "/..%2f" + outside.getName()}) {
+                out.write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes());
+                assertEquals(path, 404, readResponse(in).status);
+            }
+
+            // Only the listing directory and what lies below it is listed
+            out.write("GET /other/ HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals(404, readResponse(in).status);
+            out.write("GET /docs HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals(200, readResponse(in).status);
+
+            // Dot and empty segments are refused before the filesystem is asked
+            for (String path : new String[]{"/docs/../docs", "/./docs/", "//docs/", "/docs/%2e/"}) {
+                out.write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes());
+                assertEquals(path, 404, readResponse(in).status);
+            }
+        } finally {
+            outside.delete();
+            other.delete();
+            docs.delete();
+        }
+    }
+
+    @Test
+    public void blockingIdleConnectionsGiveWayToQueuedOnes() throws Exception {
+        startServer(SocketServer.Mode.BLOCKING, 1);
+        try (Socket idle = connect(); Socket waiting = connect()) {
+            idle.getOutputStream().write("GET /hello?n=1 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("hello 1", readResponse(idle.getInputStream()).text());
+
+            // The only worker now waits on the idle connection while this one queues behind it
+            long start = System.currentTimeMillis();
+            waiting.getOutputStream().write("GET /hello?n=2 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("hello 2", readResponse(waiting.getInputStream()).text());
+            assertTrue(System.currentTimeMillis() - start < 1500);
+            assertEquals(-1, idle.getInputStream().read());
+        }
+
+        // Without anyone queued, an idle connection still closes well before the 15 s keep-alive
+        try (Socket idle = connect()) {
+            long start = System.currentTimeMillis();
+            assertEquals(-1, idle.getInputStream().read());
+            assertTrue(System.currentTimeMillis() - start < 4000);
+        }
+    }
+
+    @Test
+    public void nioSlowReadersHoldNoWorker() throws Exception {
+        byte[] content = new byte[16 * 1024 * 1024];
+        new Random(7).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(new File(root, "slow.bin"))) {
+            out.write(content);
+        }
+        startServer(SocketServer.Mode.NIO, 1);
+        try (Socket slow = connect(); Socket next = connect()) {
+            // Far more than the socket buffers take, so the transfer stalls until the client reads
+            slow.getOutputStream().write("GET /slow.bin HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("HTTP/1.1 200 OK", readLine(slow.getInputStream()));
+
+            // The only worker handed the file to the loop and is free for someone else
+            long start = System.currentTimeMillis();
+            next.getOutputStream().write("GET /hello?n=1 HTTP/1.1\r\n\r\n".getBytes());
+            assertEquals("hello 1", readResponse(next.getInputStream()).text());
+            assertTrue(System.currentTimeMillis() - start < 1000);
+
+            InputStream in = slow.getInputStream();
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                assertFalse(line.startsWith("Transfer-Encoding"));
+            }
+            byte[] body = new byte[content.length];
+            readFully(in, body);
+            assertArrayEquals(content, body);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscQueueTest {
+    @Test
+    public void boundedFifoAcrossWraparound() {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+        assertEquals(3, queue.capacity());
+        assertNull(queue.poll());
+        for (int round = 0; round < 10; round++) {
+            assertTrue(queue.offer(round * 3));
+            assertTrue(queue.offer(round * 3 + 1));
+            assertTrue(queue.offer(round * 3 + 2));
+            assertFalse(queue.offer(-1));
+            assertEquals(3, queue.size());
+            assertEquals(Integer.valueOf(round * 3), queue.poll());
+            assertEquals(Integer.valueOf(round * 3 + 1), queue.poll());
+            assertEquals(Integer.valueOf(round * 3 + 2), queue.poll());
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void handsOverInOrderBetweenThreads() throws Exception {
+        final SpscQueue<Integer> queue = new SpscQueue<>(4);
+        final int count = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        int expected = 0;
+        while (expected < count) {
+            Integer value = queue.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, value.intValue());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StaticFileCacheTest {
+    private static File writeFile(String name, int size) throws IOException {
+        File file = File.createTempFile(name, ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntryWhenOverBudget() throws IOException {
+        StaticFileCache cache = new StaticFileCache(250, 200, 60000);
+        File a = writeFile("cache-a", 100);
+        File b = writeFile("cache-b", 100);
+        File c = writeFile("cache-c", 100);
+
+        cache.put(a, a.lastModified(), "text/plain", "\"etag\"", new byte[0], new byte[100]);
+        cache.put(b, b.lastModified(), "text/plain", "\"etag\"", new byte[0], new byte[100]);
+        assertNotNull(cache.get(a));
+        cache.put(c, c.lastModified(), "text/plain", "\"etag\"", new byte[0], new byte[100]);
+
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(200, cache.getCurrentBytes());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void dropsEntryWhenFileChangesOnDisk() throws IOException {
+        StaticFileCache cache = new StaticFileCache(1024, 1024, 0);
+        File file = writeFile("changed", 10);
+        cache.put(file, file.lastModified(), "text/plain", "\"etag\"", new byte[0], new byte[10]);
+        assertNotNull(cache.get(file));
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(1);
+        }
+        assertNull(cache.get(file));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void doesNotKeepEntriesLargerThanTheLimit() throws IOException {
+        StaticFileCache cache = new StaticFileCache(1024, 16, 60000);
+        File file = writeFile("large", 32);
+        assertNotNull(cache.put(file, file.lastModified(), "text/plain", "\"etag\"", new byte[0], new byte[32]));
+        assertNull(cache.get(file));
+    }
+}
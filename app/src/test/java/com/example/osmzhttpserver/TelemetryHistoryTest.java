@@ -0,0 +1,57 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TelemetryHistoryTest {
+    @Test
+    public void downsamplesToMinMaxAvgBuckets() {
+        TelemetryHistory history = new TelemetryHistory(100);
+        TelemetryStore store = new TelemetryStore(history);
+        // Two buckets of 10 ms: values 0..9 and 10..19, bucket 3 empty
+        for (int t = 0; t < 20; t++) {
+            store.updateAccelerometer(t, -t, 1, 1000 + t);
+        }
+        store.updateAccelerometer(99, 99, 99, 1035);
+
+        TelemetryHistory.Channel channel = history.getChannel(TelemetryHistory.ACCELEROMETER);
+        assertEquals(21, channel.size());
+        List<double[]> buckets = channel.downsample(1000, 1040, 4);
+        assertEquals(3, buckets.size());
+
+        double[] first = buckets.get(0);
+        assertEquals(1000, first[0], 0);
+        assertEquals(10, first[1], 0);
+        // x: min, max, avg
+        assertEquals(0, first[2], 0);
+        assertEquals(9, first[3], 0);
+        assertEquals(4.5, first[4], 1e-9);
+        // y
+        assertEquals(-9, first[5], 0);
+        assertEquals(0, first[6], 0);
+
+        assertEquals(1010, buckets.get(1)[0], 0);
+        assertEquals(14.5, buckets.get(1)[4], 1e-9);
+        assertEquals(1030, buckets.get(2)[0], 0);
+        assertEquals(1, buckets.get(2)[1], 0);
+    }
+
+    @Test
+    public void keepsOnlyTheNewestSamples() {
+        TelemetryHistory history = new TelemetryHistory(8);
+        TelemetryHistory.Channel channel = history.getChannel(TelemetryHistory.GYROSCOPE);
+        for (int t = 0; t < 20; t++) {
+            channel.record(t, t, 0, 0);
+        }
+        assertEquals(8, channel.size());
+        assertEquals(12, channel.getOldestTime());
+        List<double[]> all = channel.downsample(0, 100, 1);
+        assertEquals(1, all.size());
+        assertEquals(8, all.get(0)[1], 0);
+        assertEquals(12, all.get(0)[2], 0);
+        assertEquals(19, all.get(0)[3], 0);
+    }
+}
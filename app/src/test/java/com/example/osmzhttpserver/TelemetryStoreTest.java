@@ -0,0 +1,73 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TelemetryStoreTest {
+    @Test
+    public void snapshotsAreCachedUntilTheNextUpdate() {
+        TelemetryStore store = new TelemetryStore();
+        TelemetrySnapshot empty = store.snapshot();
+        assertFalse(empty.hasAccelerometer());
+        assertFalse(empty.hasLocation());
+        assertSame(empty, store.snapshot());
+
+        store.updateAccelerometer(1.5f, -2f, 9.81f, 1000);
+        store.updateLocation(49.83, 18.16, 5f, 2000);
+        TelemetrySnapshot snapshot = store.snapshot();
+        assertEquals(2, snapshot.sequence);
+        assertEquals(2, store.getSequence());
+        assertEquals(-2f, snapshot.accelerometerY, 0);
+        assertEquals(9.81f, snapshot.accelerometerZ, 0);
+        assertEquals(1000, snapshot.accelerometerTimeMs);
+        assertEquals(49.83, snapshot.latitude, 0);
+        assertEquals(18.16, snapshot.longitude, 0);
+        assertFalse(snapshot.hasGyroscope());
+        assertSame(snapshot, store.snapshot());
+    }
+
+    @Test
+    public void readersNeverSeeTornUpdates() throws Exception {
+        final TelemetryStore store = new TelemetryStore();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] writers = new Thread[2];
+        for (int w = 0; w < writers.length; w++) {
+            final boolean gyroscope = w == 1;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; !done.get(); i++) {
+                        // Stays exact as a float
+                        int v = i % 1000000;
+                        if (gyroscope) {
+                            store.updateGyroscope(v, v, v, v);
+                        } else {
+                            store.updateAccelerometer(v, v, v, v);
+                        }
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        long lastSequence = -1;
+        long deadline = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < deadline) {
+            TelemetrySnapshot s = store.snapshot();
+            assertTrue(s.sequence >= lastSequence);
+            lastSequence = s.sequence;
+            assertEquals(s.accelerometerX, s.accelerometerY, 0);
+            assertEquals(s.accelerometerX, s.accelerometerZ, 0);
+            assertEquals((long) s.accelerometerX, s.accelerometerTimeMs);
+            assertEquals(s.gyroscopeX, s.gyroscopeZ, 0);
+            assertEquals((long) s.gyroscopeY, s.gyroscopeTimeMs);
+        }
+        done.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(lastSequence > 0);
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TelemetryStreamerTest {
+    /** Push connection that records what it is sent; the backlog is set by the test. */
+    private static class RecordingConnection implements PushConnection {
+        final List<ByteBuffer> sent = new ArrayList<>();
+        volatile long backlog;
+        volatile boolean open = true;
+
+        @Override
+        public synchronized boolean send(ByteBuffer data) {
+            if (!open) {
+                return false;
+            }
+            sent.add(data);
+            return true;
+        }
+
+        @Override
+        public long getBacklog() {
+            return backlog;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        synchronized int count() {
+            return sent.size();
+        }
+
+        synchronized String event(int i) {
+            ByteBuffer data = sent.get(i).duplicate();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return new String(bytes);
+        }
+    }
+
+    private static class SubscriberOutput extends HttpOutput {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        final RecordingConnection connection = new RecordingConnection();
+
+        @Override
+        public void write(int b) {
+            head.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            head.write(b, off, len);
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PushConnection detach() {
+            return connection;
+        }
+    }
+
+    private static HttpRequest request(String target) throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] head = ("GET " + target + " HTTP/1.1\r\n\r\n").getBytes();
+        parser.feed(head, 0, head.length);
+        return parser.getRequest();
+    }
+
+    private static void awaitEvents(RecordingConnection connection, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connection.count() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("expected " + count + " events, got " + connection.count(), connection.count() >= count);
+    }
+
+    @Test
+    public void encodesOnlyChangedGroups() {
+        TelemetryStore store = new TelemetryStore();
+        store.updateAccelerometer(1, 2, 3, 100);
+        store.updateLocation(50.5, 14.25, 8, 100);
+        TelemetrySnapshot first = store.snapshot();
+        store.updateGyroscope(0.5f, 0, 0, 200);
+        TelemetrySnapshot second = store.snapshot();
+
+        assertEquals(0, TelemetryStreamer.changedGroups(first, first));
+        int groups = TelemetryStreamer.changedGroups(first, second);
+        assertEquals(TelemetryStreamer.GYROSCOPE, groups);
+
+        String event = new String(TelemetryStreamer.encodeEvent(second, groups, 300));
+        assertEquals("id: 3\ndata: {\"time\":300,\"gyroscope_x\":0.5,\"gyroscope_y\":0.0,\"gyroscope_z\":0.0,"
+                + "\"gyroscope_time\":200}\n\n", event);
+
+        String full = new String(TelemetryStreamer.encodeEvent(first, TelemetryStreamer.ALL, 300));
+        assertTrue(full.contains("\"accelerometer_x\":1.0"));
+        assertTrue(full.contains("\"latitude\":50.5"));
+        assertFalse(full.contains("gyroscope"));
+    }
+
+    @Test
+    public void pushesDeltasAndSharesPayloads() throws Exception {
+        TelemetryStore store = new TelemetryStore();
+        store.updateAccelerometer(1, 2, 3, 100);
+        TelemetryStreamer streamer = new TelemetryStreamer(store, 4);
+        try {
+            SubscriberOutput a = new SubscriberOutput();
+            SubscriberOutput b = new SubscriberOutput();
+            HttpRequest request = request("/telemetry/stream?interval=100");
+            streamer.stream(a, request);
+            streamer.stream(b, request("/telemetry/stream?interval=100"));
+            assertFalse(request.isKeepAlive());
+            assertTrue(new String(a.head.toByteArray()).contains("Content-Type: text/event-stream"));
+
+            awaitEvents(a.connection, 1);
+            awaitEvents(b.connection, 1);
+            assertTrue(a.connection.event(0).contains("\"accelerometer_x\":1.0"));
+
+            // Many sensor events between ticks become one event with the newest values
+            for (int i = 0; i < 50; i++) {
+                store.updateGyroscope(i, 0, 0, 200 + i);
+            }
+            awaitEvents(a.connection, 2);
+            awaitEvents(b.connection, 2);
+            String delta = a.connection.event(1);
+            assertTrue(delta, delta.contains("\"gyroscope_x\":49.0"));
+            assertFalse(delta, delta.contains("accelerometer"));
+            assertTrue(streamer.getSentEvents() >= 4);
+            // Both subscribers were sent the same serialized bytes
+            assertSame(a.connection.sent.get(1).array(), b.connection.sent.get(1).array());
+        } finally {
+            streamer.close();
+        }
+    }
+
+    @Test
+    public void skipsThenDropsLaggingSubscribers() throws Exception {
+        TelemetryStore store = new TelemetryStore();
+        TelemetryStreamer streamer = new TelemetryStreamer(store, 1);
+        try {
+            SubscriberOutput output = new SubscriberOutput();
+            streamer.stream(output, request("/telemetry/stream?interval=100"));
+            RecordingConnection connection = output.connection;
+            awaitEvents(connection, 1);
+
+            // Over the limit while the first one is subscribed
+            SubscriberOutput rejected = new SubscriberOutput();
+            streamer.stream(rejected, request("/telemetry/stream"));
+            assertTrue(new String(rejected.head.toByteArray()).startsWith("HTTP/1.1 503"));
+
+            connection.backlog = 10;
+            store.updateAccelerometer(1, 1, 1, 100);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (streamer.getSkippedEvents() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(streamer.getSkippedEvents() > 0);
+            assertEquals(1, connection.count());
+
+            connection.backlog = 1024 * 1024;
+            while (streamer.getSubscriberCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, streamer.getSubscriberCount());
+            assertEquals(1, streamer.getDroppedSubscribers());
+            assertFalse(connection.isOpen());
+        } finally {
+            streamer.close();
+        }
+    }
+}
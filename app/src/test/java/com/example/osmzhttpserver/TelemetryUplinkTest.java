@@ -0,0 +1,152 @@
+package com.example.osmzhttpserver;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TelemetryUplinkTest {
+    private static File tempDirectory() throws Exception {
+        File directory = File.createTempFile("spool", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        return directory;
+    }
+
+    /** Reads one frame and returns the sequences of its records. */
+    private static List<Long> readFrame(DataInputStream in) throws IOException {
+        byte[] header = new byte[4];
+        in.readFully(header);
+        int length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        assertEquals(0, length % BinaryTelemetryEncoder.RECORD_SIZE);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        ByteBuffer records = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        List<Long> sequences = new ArrayList<>();
+        while (records.hasRemaining()) {
+            sequences.add(BinaryTelemetryEncoder.decode(records).sequence);
+        }
+        return sequences;
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    @Test
+    public void batchesSamplesOnOneConnection() throws Exception {
+        TelemetryStore store = new TelemetryStore();
+        try (ServerSocket collector = new ServerSocket(0)) {
+            collector.setSoTimeout(5000);
+            TelemetryUplink uplink = new TelemetryUplink("127.0.0.1", collector.getLocalPort(), tempDirectory(),
+                    1 << 20, 5, 60 * 1000);
+            try {
+                for (int i = 0; i < 10; i++) {
+                    store.updateAccelerometer(i, 0, 0, 1000 + i);
+                    assertTrue(uplink.offer(store.snapshot()));
+                    // Let the sender take a full batch before the next one fills up
+                    Thread.sleep(5);
+                }
+                try (Socket connection = collector.accept()) {
+                    connection.setSoTimeout(5000);
+                    DataInputStream in = new DataInputStream(connection.getInputStream());
+                    List<Long> sequences = new ArrayList<>(readFrame(in));
+                    assertEquals(5, sequences.size());
+                    sequences.addAll(readFrame(in));
+                    for (int i = 0; i < 10; i++) {
+                        assertEquals(i + 1, (long) sequences.get(i));
+                    }
+                }
+                assertEquals(2, uplink.getSentBatches());
+                assertEquals(10, uplink.getSentSamples());
+                assertEquals(0, uplink.getSpooledBatches());
+            } finally {
+                uplink.close();
+            }
+        }
+    }
+
+    @Test
+    public void spoolsWhileUnreachableAndReplaysInOrder() throws Exception {
+        TelemetryStore store = new TelemetryStore();
+        int port = unusedPort();
+        File spool = tempDirectory();
+        TelemetryUplink uplink = new TelemetryUplink("127.0.0.1", port, spool, 1 << 20, 2, 20);
+        try {
+            for (int i = 0; i < 6; i++) {
+                store.updateGyroscope(i, 0, 0, 1000 + i);
+                uplink.offer(store.snapshot());
+                Thread.sleep(40);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (uplink.getSpoolFileCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(uplink.getSpooledBatches() >= 3);
+            assertEquals(uplink.getSpoolFileCount(), spool.listFiles().length);
+
+            try (ServerSocket collector = new ServerSocket()) {
+                collector.setReuseAddress(true);
+                collector.bind(new InetSocketAddress("127.0.0.1", port));
+                collector.setSoTimeout(10 * 1000);
+                try (Socket connection = collector.accept()) {
+                    connection.setSoTimeout(5000);
+                    DataInputStream in = new DataInputStream(connection.getInputStream());
+                    List<Long> sequences = new ArrayList<>();
+                    while (sequences.size() < 6) {
+                        sequences.addAll(readFrame(in));
+                    }
+                    for (int i = 0; i < 6; i++) {
+                        assertEquals(i + 1, (long) sequences.get(i));
+                    }
+                }
+            }
+            assertEquals(0, uplink.getSpoolFileCount());
+            assertEquals(0, spool.listFiles().length);
+        } finally {
+            uplink.close();
+        }
+    }
+
+    @Test
+    public void keepsSpoolWithinBudgetAcrossRestarts() throws Exception {
+        TelemetryStore store = new TelemetryStore();
+        int port = unusedPort();
+        File spool = tempDirectory();
+        long frame = 4 + BinaryTelemetryEncoder.RECORD_SIZE;
+        TelemetryUplink uplink = new TelemetryUplink("127.0.0.1", port, spool, frame * 2, 1, 0);
+        for (int i = 0; i < 4; i++) {
+            store.updateLocation(50, 14, i, 1000 + i);
+            uplink.offer(store.snapshot());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (uplink.getSpooledBatches() < i + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+        uplink.close();
+        assertEquals(2, uplink.getSpoolFileCount());
+        assertEquals(2, uplink.getDroppedBatches());
+        assertFalse(uplink.offer(store.snapshot()));
+
+        // A new uplink picks up the spool and keeps numbering after it
+        TelemetryUplink reopened = new TelemetryUplink("127.0.0.1", port, spool, frame * 2, 1, 0);
+        try {
+            assertEquals(2, reopened.getSpoolFileCount());
+            assertEquals(frame * 2, reopened.getSpoolBytes());
+        } finally {
+            reopened.close();
+        }
+    }
+}